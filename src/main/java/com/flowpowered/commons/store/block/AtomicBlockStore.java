@@ -23,6 +23,8 @@
  */
 package com.flowpowered.commons.store.block;
 
+import java.nio.ByteBuffer;
+
 import gnu.trove.set.hash.TIntHashSet;
 
 import com.flowpowered.math.vector.Vector3i;
@@ -191,6 +193,17 @@ public interface AtomicBlockStore {
      */
     boolean compareAndSetBlock(int x, int y, int z, short expectId, short expectData, short newId, short newData);
 
+    /**
+     * Sets the states of several blocks, if the current state of every block matches its expected state.  Either every block is set, or none is.<br> <br> Blocks are given by their index, as
+     * for {@link #getFullData(int)}, and the indexes must be distinct.  The changed blocks are marked dirty as a single batch.
+     *
+     * @param indexes the indexes of the blocks
+     * @param expect the expected states, in the same order as the indexes
+     * @param update the new states, in the same order as the indexes
+     * @return true if the blocks were set
+     */
+    boolean compareAndSetBlocks(int[] indexes, int[] expect, int[] update);
+
     /**
      * Gets if the store would benefit from compression.<br> <br> If this method is called when the store is being accessed by another thread, it may give spurious results.
      *
@@ -312,6 +325,32 @@ public interface AtomicBlockStore {
      */
     int getDirtyNewState(int i);
 
+    /**
+     * Writes the blocks changed since the last reset of the dirty arrays to the buffer, in a compact binary form.<br> <br> Each changed block is written once, with its current state.  Nothing is
+     * written if the buffer is too small.
+     *
+     * @param buffer the destination buffer
+     * @return the number of bytes written
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    int encodeDelta(ByteBuffer buffer);
+
+    /**
+     * Applies the changes written by {@link #encodeDelta(ByteBuffer)} to this store.  The store must be of the same size as the store the changes were read from.<br> <br> The changed blocks are
+     * marked dirty.
+     *
+     * @param buffer the source buffer
+     * @return the number of blocks changed
+     */
+    int applyDelta(ByteBuffer buffer);
+
+    /**
+     * Gets the log2 of the side of the store.  Blocks are indexed as (y << (2 * shift)) + (z << shift) + x.
+     *
+     * @return the shift
+     */
+    int getShift();
+
     /**
      * Gets the width of each entry in the packed array
      */
@@ -0,0 +1,40 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block;
+
+/**
+ * Receives the changes made to the blocks of a store.  Changes are recorded as the blocks are updated, and delivered in batches when the changes of the store are flushed.
+ */
+public interface BlockChangeListener {
+    /**
+     * Called with a batch of changes.  The arrays are only valid during the call, and may hold more than count entries.
+     *
+     * @param store the store whose blocks changed
+     * @param indexes the indexes of the changed blocks, as for {@link AtomicBlockStore#getFullData(int)}
+     * @param oldStates the states of the blocks before each change
+     * @param newStates the states of the blocks after each change
+     * @param count the number of changes
+     */
+    void onBlockChanges(AtomicBlockStore store, int[] indexes, int[] oldStates, int[] newStates, int count);
+}
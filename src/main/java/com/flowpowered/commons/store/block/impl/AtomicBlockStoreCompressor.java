@@ -0,0 +1,150 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses many palette block stores in parallel on a fork join pool, under a time budget.<br> <br> The stores are split into batches which are compressed by the threads of the pool.  Only the stores
+ * which need compression are compressed.  Once the budget is spent, the stores which have not been reached are skipped, a store being compressed is not interrupted.  The memory reclaimed is
+ * measured with {@link AtomicPaletteBlockStore#getMemoryUsage()} before and after each store is compressed.
+ */
+public class AtomicBlockStoreCompressor {
+    /**
+     * The number of stores below which a batch is not split further
+     */
+    private static final int BATCH_SIZE = 16;
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a new compressor
+     *
+     * @param pool the pool running the compression
+     */
+    public AtomicBlockStoreCompressor(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Compresses the stores which need compression, waiting until the sweep completes.
+     *
+     * @param stores the stores to compress
+     * @param budget the time after which the remaining stores are skipped
+     * @param unit the unit of the budget
+     * @return the result of the sweep
+     */
+    public Result compress(Collection<? extends AtomicPaletteBlockStore> stores, long budget, TimeUnit unit) {
+        Result result = new Result();
+        List<AtomicPaletteBlockStore> list = new ArrayList<>(stores);
+        long deadline = System.nanoTime() + unit.toNanos(budget);
+        pool.invoke(new Sweep(list, 0, list.size(), deadline, result));
+        return result;
+    }
+
+    private static class Sweep extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<AtomicPaletteBlockStore> stores;
+        private final int start;
+        private final int end;
+        private final long deadline;
+        private final Result result;
+
+        private Sweep(List<AtomicPaletteBlockStore> stores, int start, int end, long deadline, Result result) {
+            this.stores = stores;
+            this.start = start;
+            this.end = end;
+            this.deadline = deadline;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > BATCH_SIZE) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new Sweep(stores, start, middle, deadline, result), new Sweep(stores, middle, end, deadline, result));
+                return;
+            }
+            for (int i = start; i < end; i++) {
+                if (System.nanoTime() - deadline >= 0) {
+                    result.skipped.addAndGet(end - i);
+                    return;
+                }
+                AtomicPaletteBlockStore store = stores.get(i);
+                if (!store.needsCompression()) {
+                    continue;
+                }
+                long before = store.getMemoryUsage();
+                store.compress();
+                result.reclaimed.addAndGet(before - store.getMemoryUsage());
+                result.compressed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The outcome of a compression sweep
+     */
+    public static class Result {
+        private final AtomicInteger compressed = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicLong reclaimed = new AtomicLong();
+
+        private Result() {
+        }
+
+        /**
+         * Gets the number of stores that were compressed
+         *
+         * @return the number of compressed stores
+         */
+        public int getCompressed() {
+            return compressed.get();
+        }
+
+        /**
+         * Gets the number of stores that were not checked because the budget was spent
+         *
+         * @return the number of skipped stores
+         */
+        public int getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * Gets the memory reclaimed by the compression, in bytes.  This may be negative if stores were updated during the sweep.
+         *
+         * @return the number of bytes reclaimed
+         */
+        public long getBytesReclaimed() {
+            return reclaimed.get();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An atomic bitmap with one bit for each element of a store.<br> <br> Unlike the dirty arrays, the bitmap can record every element of the store, so it never overflows.  Set bits can be iterated in
+ * index order, and the bitmap is reset in time proportional to the number of words.
+ */
+public class AtomicDirtyBitmap {
+    private static final int WORD_SHIFT = 6;
+    private static final int WORD_MASK = 63;
+    private final AtomicLongArray words;
+    private final int length;
+
+    /**
+     * Creates a new bitmap with all bits cleared
+     *
+     * @param length the number of bits
+     */
+    public AtomicDirtyBitmap(int length) {
+        this.words = new AtomicLongArray((length + WORD_MASK) >> WORD_SHIFT);
+        this.length = length;
+    }
+
+    /**
+     * Gets the number of bits in the bitmap
+     *
+     * @return the length
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Gets the bit at the given index
+     *
+     * @param i the index
+     * @return true if the bit is set
+     */
+    public boolean get(int i) {
+        checkIndex(i);
+        return (words.get(i >> WORD_SHIFT) & 1L << i) != 0;
+    }
+
+    /**
+     * Sets the bit at the given index
+     *
+     * @param i the index
+     * @return true if the bit was previously cleared
+     */
+    public boolean set(int i) {
+        checkIndex(i);
+        return setBits(i >> WORD_SHIFT, 1L << i);
+    }
+
+    /**
+     * Sets the bits from start, inclusive, to end, exclusive
+     *
+     * @param start the first index
+     * @param end the index after the last index
+     */
+    public void set(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Range " + start + " to " + end + " is outside of the bitmap, length " + length);
+        }
+        if (start == end) {
+            return;
+        }
+        int startWord = start >> WORD_SHIFT;
+        int endWord = (end - 1) >> WORD_SHIFT;
+        long startMask = -1L << start;
+        long endMask = -1L >>> -end;
+        if (startWord == endWord) {
+            setBits(startWord, startMask & endMask);
+            return;
+        }
+        setBits(startWord, startMask);
+        for (int w = startWord + 1; w < endWord; w++) {
+            words.set(w, -1L);
+        }
+        setBits(endWord, endMask);
+    }
+
+    /**
+     * Sets the bits of a cuboid region.  The region is described as for {@link AtomicShortIntBackingArray#fill(int, int, int, int, int, int, int)}.
+     *
+     * @param index the index of the first bit of the region
+     * @param sizeX the number of consecutive bits in each row
+     * @param sizeY the number of layers
+     * @param sizeZ the number of rows in each layer
+     * @param yStride the distance between two layers
+     * @param zStride the distance between two rows
+     */
+    public void set(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride) {
+        if (sizeX == zStride && sizeX * sizeZ == yStride) {
+            // The rows are contiguous
+            set(index, index + sizeX * sizeZ * sizeY);
+            return;
+        }
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                int rowStart = index + y * yStride + z * zStride;
+                set(rowStart, rowStart + sizeX);
+            }
+        }
+    }
+
+    /**
+     * Gets the index of the first set bit at or after the given index
+     *
+     * @param from the index to start searching from
+     * @return the index of the set bit, or -1 if there is none
+     */
+    public int nextSetBit(int from) {
+        if (from < 0) {
+            throw new IndexOutOfBoundsException("Index " + from + " is negative");
+        }
+        if (from >= length) {
+            return -1;
+        }
+        int w = from >> WORD_SHIFT;
+        long word = words.get(w) & -1L << from;
+        while (word == 0) {
+            if (++w == words.length()) {
+                return -1;
+            }
+            word = words.get(w);
+        }
+        return (w << WORD_SHIFT) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * Gets the number of set bits
+     *
+     * @return the number of set bits
+     */
+    public int cardinality() {
+        int count = 0;
+        for (int w = 0; w < words.length(); w++) {
+            count += Long.bitCount(words.get(w));
+        }
+        return count;
+    }
+
+    /**
+     * Clears all the bits
+     *
+     * @return true if any bit was set
+     */
+    public boolean clear() {
+        boolean set = false;
+        for (int w = 0; w < words.length(); w++) {
+            if (words.get(w) != 0) {
+                set |= words.getAndSet(w, 0) != 0;
+            }
+        }
+        return set;
+    }
+
+    private boolean setBits(int w, long mask) {
+        long old;
+        while (((old = words.get(w)) & mask) != mask) {
+            if (words.compareAndSet(w, old, old | mask)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= length) {
+            throw new IndexOutOfBoundsException("Index " + i + " is outside of the bitmap, length " + length);
+        }
+    }
+}
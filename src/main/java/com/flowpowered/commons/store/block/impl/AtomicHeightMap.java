@@ -0,0 +1,181 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.flowpowered.commons.store.block.StateFilter;
+
+/**
+ * The height of each column of a store, which is the y coordinate of the topmost block whose state matches a filter, or -1 if no block of the column matches.<br> <br> The heights are maintained
+ * by the store as its blocks are updated.  Lowering a height requires scanning down the column, raising it does not.  Once concurrent updates of a column complete, its height is exact.
+ */
+public class AtomicHeightMap {
+    private final AtomicShortIntArray store;
+    private final StateFilter filter;
+    private final int shift;
+    private final int doubleShift;
+    private final int side;
+    private final AtomicIntegerArray heights;
+
+    AtomicHeightMap(AtomicShortIntArray store, int shift, StateFilter filter) {
+        this.store = store;
+        this.filter = filter;
+        this.shift = shift;
+        this.doubleShift = shift << 1;
+        this.side = 1 << shift;
+        this.heights = new AtomicIntegerArray(side * side);
+        for (int column = 0; column < heights.length(); column++) {
+            heights.set(column, scan(column, side - 1, -1));
+        }
+    }
+
+    /**
+     * Gets the filter that selects the states counted by the height map
+     *
+     * @return the filter
+     */
+    public StateFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Gets the y coordinate of the topmost matching block of a column
+     *
+     * @param x the x coordinate of the column
+     * @param z the z coordinate of the column
+     * @return the height, or -1 if no block of the column matches
+     */
+    public int getHeight(int x, int z) {
+        return heights.get((z << shift) + x);
+    }
+
+    /**
+     * Copies the height of every column into the given array.  The height of the column (x, z) is at the index z * side + x.
+     *
+     * @param array the destination array, or null to create a new array
+     * @return the destination array
+     */
+    public short[] getHeights(short[] array) {
+        int length = heights.length();
+        if (array == null || array.length != length) {
+            array = new short[length];
+        }
+        for (int column = 0; column < length; column++) {
+            array[column] = (short) heights.get(column);
+        }
+        return array;
+    }
+
+    /**
+     * Updates the height of the column holding the block at the given index, after the block has been updated
+     *
+     * @param index the index of the block
+     */
+    void update(int index) {
+        int column = index & (side * side - 1);
+        int y = index >> doubleShift;
+        if (filter.matches(store.get(index))) {
+            raise(column, y);
+            return;
+        }
+        if (heights.get(column) == y) {
+            lower(column, y);
+        }
+    }
+
+    /**
+     * Recalculates the height of every column of the region from (minX, minZ) to (maxX, maxZ), inclusive, after blocks of the region have been updated
+     */
+    void update(int minX, int minZ, int maxX, int maxZ) {
+        for (int z = minZ; z <= maxZ; z++) {
+            for (int x = minX; x <= maxX; x++) {
+                int column = (z << shift) + x;
+                while (true) {
+                    int height = heights.get(column);
+                    if (heights.compareAndSet(column, height, scan(column, side - 1, -1))) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Raises the height of a column to the given y coordinate, if it is lower.  The block is checked again once the height is set, as a thread clearing it in the meantime saw the old height and
+     * left the column to this thread.
+     */
+    private void raise(int column, int y) {
+        int height;
+        while ((height = heights.get(column)) < y) {
+            if (heights.compareAndSet(column, height, y)) {
+                if (!matches(column, y)) {
+                    lower(column, y);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Lowers the height of a column from the given height, whose block no longer matches.  If another thread changes the height first, that thread is left to complete the update.
+     */
+    private void lower(int column, int height) {
+        while (true) {
+            int lowered = scan(column, height - 1, -1);
+            if (!heights.compareAndSet(column, height, lowered)) {
+                return;
+            }
+            // Blocks set below the old height while scanning did not raise it, so they are found again
+            int found = scan(column, height, lowered);
+            if (found > lowered) {
+                raise(column, found);
+                return;
+            }
+            // The block found may have been cleared while scanning, the thread clearing it saw the old height and left the column to this thread
+            if (lowered < 0 || matches(column, lowered)) {
+                return;
+            }
+            height = lowered;
+        }
+    }
+
+    private boolean matches(int column, int y) {
+        return filter.matches(store.get((y << doubleShift) + column));
+    }
+
+    /**
+     * Scans a column down from the top y coordinate, excluding the bottom y coordinate, for a matching block
+     *
+     * @return the y coordinate of the first matching block, or the bottom y coordinate if none matches
+     */
+    private int scan(int column, int top, int bottom) {
+        for (int y = top; y > bottom; y--) {
+            if (matches(column, y)) {
+                return y;
+            }
+        }
+        return bottom;
+    }
+}
@@ -23,74 +23,132 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
-import java.util.concurrent.atomic.AtomicLongArray;
+import com.flowpowered.math.GenericMath;
 
 /**
- * An atomic HashMap that maps integers to positive short values<br> <br> Once a key value pair is set, it cannot be changed again
+ * An atomic HashMap that maps integers to positive short values<br> <br> Once a key value pair is set, it cannot be changed again<br> <br> The capacity of the map is a power of two, so that
+ * probing only requires masking the index.
  */
 public class AtomicIntShortSingleUseHashMap {
     private final static short EMPTY_VALUE = -1;
     private final static long EMPTY_ENTRY = 0xFFFF000000000000L;
-    private final AtomicLongArray array;
-    private final int length;
+    private final AtomicLongStorage array;
+    private final int mask;
 
     AtomicIntShortSingleUseHashMap(int length) {
-        this.array = new AtomicLongArray(length);
-        for (int i = 0; i < length; i++) {
+        this(length, false);
+    }
+
+    /**
+     * Creates a new map
+     *
+     * @param length the minimum capacity of the map, it is rounded up to a power of two
+     * @param offHeap whether or not the map should be stored in direct memory
+     */
+    AtomicIntShortSingleUseHashMap(int length, boolean offHeap) {
+        int capacity = GenericMath.roundUpPow2(Math.max(length, 1));
+        this.array = AtomicLongStorage.allocate(capacity, offHeap);
+        for (int i = 0; i < capacity; i++) {
             this.array.set(i, EMPTY_ENTRY);
         }
-        this.length = length;
+        this.mask = capacity - 1;
     }
 
     public short get(int key) {
-        int hashed = hash(key);
-        int index = hashed;
-        long probedEntry;
-        boolean empty;
-        while (!(empty = isEmpty(probedEntry = array.get(index))) && getKey(probedEntry) != key) {
-            index = (index + 1) % length;
-            if (index == hashed) {
+        int index = hash(key);
+        for (int probes = 0; probes <= mask; probes++) {
+            long probedEntry = array.get(index);
+            if (isEmpty(probedEntry)) {
                 return EMPTY_VALUE;
             }
+            if (getKey(probedEntry) == key) {
+                return getValue(probedEntry);
+            }
+            index = (index + 1) & mask;
         }
-        if (!empty) {
-            return getValue(probedEntry);
-        } else {
-            return EMPTY_VALUE;
-        }
+        return EMPTY_VALUE;
     }
 
     public short putIfAbsent(int key, short value) {
-        int hashed = hash(key);
-        int index = hashed;
-        long probedEntry = 0; // Doesn't actually need initialization
-        boolean entrySet;
-        while (!(entrySet = setEntry(index, key, value)) && getKey(probedEntry = array.get(index)) != key) {
-            index = (index + 1) % length;
-            if (index == hashed) {
-                throw new IllegalStateException("Map is full");
+        int index = hash(key);
+        long entry = pack(key, value);
+        for (int probes = 0; probes <= mask; probes++) {
+            long probedEntry = array.get(index);
+            if (isEmpty(probedEntry)) {
+                if (array.compareAndSet(index, EMPTY_ENTRY, entry)) {
+                    return EMPTY_VALUE;
+                }
+                probedEntry = array.get(index);
+            }
+            if (getKey(probedEntry) == key) {
+                return getValue(probedEntry);
             }
+            index = (index + 1) & mask;
         }
-        if (entrySet) {
-            return EMPTY_VALUE;
-        } else {
-            return getValue(probedEntry);
+        throw new IllegalStateException("Map is full");
+    }
+
+    /**
+     * Gets the value for the given key, assigning a value from the allocator if the key is absent.  The key is looked up and inserted using a single probe sequence.<br> <br> The allocator is
+     * called at most once.  If another thread inserts the key concurrently, the value assigned by that thread is returned and the allocated value is not used.
+     *
+     * @param key the key
+     * @param allocator the allocator for the value
+     * @return the value for the key
+     * @throws PaletteFullException if the allocator is unable to allocate a value
+     */
+    short getOrAssign(int key, ValueAllocator allocator) throws PaletteFullException {
+        int index = hash(key);
+        long entry = EMPTY_ENTRY;
+        for (int probes = 0; probes <= mask; probes++) {
+            long probedEntry = array.get(index);
+            if (isEmpty(probedEntry)) {
+                if (entry == EMPTY_ENTRY) {
+                    entry = pack(key, allocator.allocate(key));
+                }
+                if (array.compareAndSet(index, EMPTY_ENTRY, entry)) {
+                    return getValue(entry);
+                }
+                probedEntry = array.get(index);
+            }
+            if (getKey(probedEntry) == key) {
+                return getValue(probedEntry);
+            }
+            index = (index + 1) & mask;
         }
+        throw new IllegalStateException("Map is full");
     }
 
-    public boolean isEmptyValue(short value) {
-        return value == EMPTY_VALUE;
+    /**
+     * Gets the number of entries that the map can hold
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Frees the direct memory used by an off-heap map.  The map must not be accessed after this call.
+     */
+    public void release() {
+        array.release();
     }
 
-    private boolean setEntry(int index, int key, short value) {
-        return array.compareAndSet(index, EMPTY_ENTRY, pack(key, value));
+    public boolean isEmptyValue(short value) {
+        return value == EMPTY_VALUE;
     }
 
+    /**
+     * Uses the finalization step of MurmurHash3, so that keys which only differ in their high bits are spread over the map
+     */
     private int hash(int h) {
-        h ^= (h >>> 20) ^ (h >>> 12);
-        h = (h ^ (h >>> 7) ^ (h >>> 4));
-        h = (h & 0x7FFFFFFF) % length;
-        return h;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & mask;
     }
 
     private static int getKey(long entry) {
@@ -108,4 +166,18 @@ public class AtomicIntShortSingleUseHashMap {
     private static long pack(int key, short value) {
         return ((key & 0xFFFFFFFFL) << 16) | (value & 0xFFFFL);
     }
+
+    /**
+     * Allocates the values assigned to absent keys by {@link #getOrAssign(int, ValueAllocator)}
+     */
+    interface ValueAllocator {
+        /**
+         * Allocates a value for the given key
+         *
+         * @param key the key
+         * @return the value, it must be positive
+         * @throws PaletteFullException if no value can be allocated
+         */
+        short allocate(int key) throws PaletteFullException;
+    }
 }
@@ -0,0 +1,285 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.io.Serializable;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A fixed length array of integers with atomic access to its elements.<br> <br> The elements are either stored on the Java heap, or in direct memory, which keeps large stores out of the garbage
+ * collected heap. Off-heap storages must be released once they are no longer used, or their memory will only be reclaimed after they have been garbage collected.
+ */
+public abstract class AtomicIntStorage implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final int length;
+
+    private AtomicIntStorage(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Allocates a new storage with all the elements set to zero
+     *
+     * @param length the number of elements
+     * @param offHeap whether or not the elements should be stored in direct memory
+     * @return the storage
+     */
+    public static AtomicIntStorage allocate(int length, boolean offHeap) {
+        return offHeap ? new OffHeap(length) : new Heap(new AtomicIntegerArray(length));
+    }
+
+    /**
+     * Allocates a new storage with the elements copied from the given array
+     *
+     * @param initial the initial elements
+     * @param offHeap whether or not the elements should be stored in direct memory
+     * @return the storage
+     */
+    public static AtomicIntStorage allocate(int[] initial, boolean offHeap) {
+        if (!offHeap) {
+            return new Heap(new AtomicIntegerArray(initial));
+        }
+        return allocate(IntBuffer.wrap(initial), true);
+    }
+
+    /**
+     * Allocates a new storage with the elements read from the remaining elements of the given buffer.  The position of the buffer is not changed.
+     *
+     * @param initial the initial elements
+     * @param offHeap whether or not the elements should be stored in direct memory
+     * @return the storage
+     */
+    public static AtomicIntStorage allocate(IntBuffer initial, boolean offHeap) {
+        int position = initial.position();
+        AtomicIntStorage storage = allocate(initial.remaining(), offHeap);
+        for (int i = 0; i < storage.length(); i++) {
+            storage.set(i, initial.get(position + i));
+        }
+        return storage;
+    }
+
+    /**
+     * Gets the number of elements in the storage
+     *
+     * @return the length
+     */
+    public final int length() {
+        return length;
+    }
+
+    /**
+     * Gets if the elements are stored in direct memory
+     *
+     * @return true if the storage is off-heap
+     */
+    public abstract boolean isOffHeap();
+
+    /**
+     * Gets an element from the storage at a given index
+     *
+     * @param i the index
+     * @return the element
+     */
+    public abstract int get(int i);
+
+    /**
+     * Sets an element to the given value
+     *
+     * @param i the index
+     * @param newValue the new value
+     */
+    public abstract void set(int i, int newValue);
+
+    /**
+     * Sets an element to the given value and returns the old value
+     *
+     * @param i the index
+     * @param newValue the new value
+     * @return the old value
+     */
+    public abstract int getAndSet(int i, int newValue);
+
+    /**
+     * Sets the element at the given index, but only if the previous value was the expected value.
+     *
+     * @param i the index
+     * @param expect the expected value
+     * @param update the new value
+     * @return true on success
+     */
+    public abstract boolean compareAndSet(int i, int expect, int update);
+
+    /**
+     * Adds the delta to the element at the given index
+     *
+     * @param i the index
+     * @param delta the value to add
+     * @return the new value
+     */
+    public abstract int addAndGet(int i, int delta);
+
+    /**
+     * Copies the first elements of the storage into a new array.  Tearing may occur if the storage is updated during this method call.
+     *
+     * @param length the number of elements to copy
+     * @return the array
+     */
+    public int[] toArray(int length) {
+        int[] array = new int[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Copies the elements of the storage into a new array.  Tearing may occur if the storage is updated during this method call.
+     *
+     * @return the array
+     */
+    public int[] toArray() {
+        return toArray(length);
+    }
+
+    /**
+     * Frees the memory used by an off-heap storage.  The storage must not be accessed after this call.  This has no effect for storages on the heap.
+     */
+    public abstract void release();
+
+    private static class Heap extends AtomicIntStorage {
+        private static final long serialVersionUID = 1L;
+        private final AtomicIntegerArray array;
+
+        private Heap(AtomicIntegerArray array) {
+            super(array.length());
+            this.array = array;
+        }
+
+        @Override
+        public boolean isOffHeap() {
+            return false;
+        }
+
+        @Override
+        public int get(int i) {
+            return array.get(i);
+        }
+
+        @Override
+        public void set(int i, int newValue) {
+            array.set(i, newValue);
+        }
+
+        @Override
+        public int getAndSet(int i, int newValue) {
+            return array.getAndSet(i, newValue);
+        }
+
+        @Override
+        public boolean compareAndSet(int i, int expect, int update) {
+            return array.compareAndSet(i, expect, update);
+        }
+
+        @Override
+        public int addAndGet(int i, int delta) {
+            return array.addAndGet(i, delta);
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    private static class OffHeap extends AtomicIntStorage {
+        private static final long serialVersionUID = 1L;
+        private final transient OffHeapMemory.Deallocator deallocator;
+        private final transient long address;
+
+        private OffHeap(int length) {
+            super(length);
+            deallocator = OffHeapMemory.allocate(this, (long) length << 2);
+            address = deallocator.getAddress();
+        }
+
+        @Override
+        public boolean isOffHeap() {
+            return true;
+        }
+
+        @Override
+        public int get(int i) {
+            return OffHeapMemory.getInt(offset(i));
+        }
+
+        @Override
+        public void set(int i, int newValue) {
+            OffHeapMemory.putInt(offset(i), newValue);
+        }
+
+        @Override
+        public int getAndSet(int i, int newValue) {
+            long offset = offset(i);
+            int prev;
+            do {
+                prev = OffHeapMemory.getInt(offset);
+            } while (!OffHeapMemory.compareAndSwapInt(offset, prev, newValue));
+            return prev;
+        }
+
+        @Override
+        public boolean compareAndSet(int i, int expect, int update) {
+            return OffHeapMemory.compareAndSwapInt(offset(i), expect, update);
+        }
+
+        @Override
+        public int addAndGet(int i, int delta) {
+            long offset = offset(i);
+            int prev;
+            do {
+                prev = OffHeapMemory.getInt(offset);
+            } while (!OffHeapMemory.compareAndSwapInt(offset, prev, prev + delta));
+            return prev + delta;
+        }
+
+        @Override
+        public void release() {
+            deallocator.free();
+        }
+
+        private long offset(int i) {
+            if (i < 0 || i >= length()) {
+                throw new IndexOutOfBoundsException("index " + i);
+            }
+            return address + ((long) i << 2);
+        }
+
+        /**
+         * Off-heap storages are serialized as heap storages
+         */
+        private Object writeReplace() {
+            return new Heap(new AtomicIntegerArray(toArray()));
+        }
+    }
+}
@@ -0,0 +1,932 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import com.flowpowered.commons.store.block.AtomicBlockStore;
+import com.flowpowered.commons.store.block.BlockVisitor;
+import com.flowpowered.math.vector.Vector3i;
+
+/**
+ * A block store backed by a sparse octree, for large volumes that are mostly uniform.<br> <br> Each node of the tree is either uniform, holding a single state for its entire cube, a branch
+ * holding its eight child nodes, or a dense leaf holding the states of a small cube of blocks.  Uniform nodes are split when a block inside them is set to a different state, and filling the entire
+ * cube of a node replaces it by a uniform node.  Nodes which have become uniform through single block updates are collapsed by {@link #compress()}.<br> <br> Reads do not lock.  Updates replace
+ * nodes and set the states of dense leaves atomically, so concurrent updates do not block each other.  Updating threads enter an update gate, which is only closed while the store is compressed or
+ * write locked.<br> <br> The store does not use a palette.  {@link #getPalette()} returns an empty palette and {@link #getPackedArray()} returns the states of the blocks, as for a direct palette
+ * store.
+ */
+public class AtomicOctreeBlockStore implements AtomicBlockStore {
+    /**
+     * The log2 of the side of the dense leaves
+     */
+    private static final int LEAF_SHIFT = 2;
+    /**
+     * The estimated memory used by a branch, and by a dense leaf excluding its states
+     */
+    private static final int BRANCH_SIZE = 64;
+    private static final int LEAF_SIZE = 32;
+    private final int shift;
+    private final int doubleShift;
+    private final int length;
+    private final int leafShift;
+    private final int leafMask;
+    /**
+     * Holds the root node in its single element.  Nodes are {@link Integer} states for uniform nodes, {@link Branch} for branches and {@link AtomicIntegerArray} for dense leaves.
+     */
+    private final AtomicReferenceArray<Object> root = new AtomicReferenceArray<>(1);
+    /**
+     * The lock held while the store is compressed or write locked, during which the update gate is closed
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final StripedUpdateGate updateGate = new StripedUpdateGate();
+    private final DirtyBlockTracker dirty;
+
+    /**
+     * Creates a new store with every block set to zero
+     *
+     * @param shift the log2 of the side of the store, at most 8
+     * @param storeState whether or not the old and new states of the dirty blocks are recorded
+     * @param dirtySize the maximum number of dirty blocks that can be recorded before overflowing
+     */
+    public AtomicOctreeBlockStore(int shift, boolean storeState, int dirtySize) {
+        if (shift < 0 || shift > 8) {
+            throw new IllegalArgumentException("The shift must be between 0 and 8, got " + shift);
+        }
+        int side = 1 << shift;
+        this.shift = shift;
+        this.doubleShift = shift << 1;
+        this.length = side * side * side;
+        this.leafShift = Math.min(shift, LEAF_SHIFT);
+        this.leafMask = (1 << leafShift) - 1;
+        this.dirty = new DirtyBlockTracker(shift, storeState, dirtySize, true);
+        root.set(0, 0);
+    }
+
+    @Override
+    public int getShift() {
+        return shift;
+    }
+
+    private int getIndex(int x, int y, int z) {
+        return (y << doubleShift) + (z << shift) + x;
+    }
+
+    private int getLeafIndex(int x, int y, int z) {
+        return ((y & leafMask) << (leafShift << 1)) + ((z & leafMask) << leafShift) + (x & leafMask);
+    }
+
+    /**
+     * Gets the index of the child of a branch of the given level which contains the block
+     */
+    private static int getChildIndex(int x, int y, int z, int level) {
+        int bit = level - 1;
+        return (y >> bit & 1) << 2 | (z >> bit & 1) << 1 | x >> bit & 1;
+    }
+
+    /**
+     * Splits a uniform node into a branch of uniform nodes, or a dense leaf if the node is at the level of the leaves
+     */
+    private Object split(Integer state, int level) {
+        if (level > leafShift) {
+            return new Branch(state);
+        }
+        AtomicIntegerArray leaf = new AtomicIntegerArray(1 << leafShift * 3);
+        if (state != 0) {
+            for (int i = 0; i < leaf.length(); i++) {
+                leaf.set(i, state);
+            }
+        }
+        return leaf;
+    }
+
+    private int get(int x, int y, int z) {
+        Object node = root.get(0);
+        int level = shift;
+        while (true) {
+            if (node instanceof Integer) {
+                return (Integer) node;
+            }
+            if (node instanceof AtomicIntegerArray) {
+                return ((AtomicIntegerArray) node).get(getLeafIndex(x, y, z));
+            }
+            node = ((Branch) node).get(getChildIndex(x, y, z, level--));
+        }
+    }
+
+    /**
+     * Sets the state of a block, splitting the uniform nodes containing it as required.  The caller must have entered the update gate.
+     *
+     * @param compare whether or not the block is only set if its state is the expected state
+     * @return the old state
+     */
+    private int set(int x, int y, int z, int expect, int update, boolean compare) {
+        AtomicReferenceArray<Object> parent = root;
+        int slot = 0;
+        int level = shift;
+        while (true) {
+            Object node = parent.get(slot);
+            if (node instanceof Integer) {
+                int state = (Integer) node;
+                if (state == update || compare && state != expect) {
+                    return state;
+                }
+                // If another thread replaced the node, it is read again
+                parent.compareAndSet(slot, node, split((Integer) node, level));
+            } else if (node instanceof AtomicIntegerArray) {
+                AtomicIntegerArray leaf = (AtomicIntegerArray) node;
+                int i = getLeafIndex(x, y, z);
+                if (!compare) {
+                    return leaf.getAndSet(i, update);
+                }
+                while (true) {
+                    int state = leaf.get(i);
+                    if (state != expect || leaf.compareAndSet(i, expect, update)) {
+                        return state;
+                    }
+                }
+            } else {
+                parent = (Branch) node;
+                slot = getChildIndex(x, y, z, level--);
+            }
+        }
+    }
+
+    /**
+     * Sets the blocks of the region from (x0, y0, z0) inclusive to (x1, y1, z1) exclusive inside the node at the given slot.  Nodes entirely inside the region are replaced by a uniform node.  The
+     * caller must have entered the update gate.
+     */
+    private void fill(AtomicReferenceArray<Object> parent, int slot, int level, int ox, int oy, int oz, int x0, int y0, int z0, int x1, int y1, int z1, Integer state) {
+        int size = 1 << level;
+        if (x0 >= ox + size || y0 >= oy + size || z0 >= oz + size || x1 <= ox || y1 <= oy || z1 <= oz) {
+            return;
+        }
+        if (x0 <= ox && y0 <= oy && z0 <= oz && x1 >= ox + size && y1 >= oy + size && z1 >= oz + size) {
+            parent.set(slot, state);
+            return;
+        }
+        while (true) {
+            Object node = parent.get(slot);
+            if (node instanceof Integer) {
+                if (node.equals(state)) {
+                    return;
+                }
+                parent.compareAndSet(slot, node, split((Integer) node, level));
+            } else if (node instanceof AtomicIntegerArray) {
+                AtomicIntegerArray leaf = (AtomicIntegerArray) node;
+                for (int y = Math.max(y0, oy); y < Math.min(y1, oy + size); y++) {
+                    for (int z = Math.max(z0, oz); z < Math.min(z1, oz + size); z++) {
+                        for (int x = Math.max(x0, ox); x < Math.min(x1, ox + size); x++) {
+                            leaf.set(getLeafIndex(x, y, z), state);
+                        }
+                    }
+                }
+                return;
+            } else {
+                Branch branch = (Branch) node;
+                int half = size >> 1;
+                for (int c = 0; c < 8; c++) {
+                    fill(branch, c, level - 1, ox + (c & 1) * half, oy + (c >> 2) * half, oz + (c >> 1 & 1) * half, x0, y0, z0, x1, y1, z1, state);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the states of the blocks of the region of origin (x, y, z) inside the node into the array
+     */
+    private void get(Object node, int level, int ox, int oy, int oz, int x, int y, int z, int sizeX, int sizeY, int sizeZ, int[] array) {
+        int size = 1 << level;
+        int minX = Math.max(x, ox), minY = Math.max(y, oy), minZ = Math.max(z, oz);
+        int maxX = Math.min(x + sizeX, ox + size), maxY = Math.min(y + sizeY, oy + size), maxZ = Math.min(z + sizeZ, oz + size);
+        if (minX >= maxX || minY >= maxY || minZ >= maxZ) {
+            return;
+        }
+        if (node instanceof Branch) {
+            Branch branch = (Branch) node;
+            int half = size >> 1;
+            for (int c = 0; c < 8; c++) {
+                get(branch.get(c), level - 1, ox + (c & 1) * half, oy + (c >> 2) * half, oz + (c >> 1 & 1) * half, x, y, z, sizeX, sizeY, sizeZ, array);
+            }
+            return;
+        }
+        AtomicIntegerArray leaf = node instanceof AtomicIntegerArray ? (AtomicIntegerArray) node : null;
+        int state = leaf == null ? (Integer) node : 0;
+        for (int by = minY; by < maxY; by++) {
+            for (int bz = minZ; bz < maxZ; bz++) {
+                int offset = ((by - y) * sizeZ + bz - z) * sizeX - x;
+                for (int bx = minX; bx < maxX; bx++) {
+                    array[offset + bx] = leaf == null ? state : leaf.get(getLeafIndex(bx, by, bz));
+                }
+            }
+        }
+    }
+
+    private int visit(Object node, int level, int ox, int oy, int oz, BlockVisitor visitor) {
+        int size = 1 << level;
+        if (node instanceof Branch) {
+            Branch branch = (Branch) node;
+            int half = size >> 1;
+            int visited = 0;
+            for (int c = 0; c < 8; c++) {
+                visited += visit(branch.get(c), level - 1, ox + (c & 1) * half, oy + (c >> 2) * half, oz + (c >> 1 & 1) * half, visitor);
+            }
+            return visited;
+        }
+        if (node instanceof Integer) {
+            int state = (Integer) node;
+            if (!visitor.matches(state)) {
+                return 0;
+            }
+            for (int y = oy; y < oy + size; y++) {
+                for (int z = oz; z < oz + size; z++) {
+                    for (int x = ox; x < ox + size; x++) {
+                        visitor.visit(getIndex(x, y, z), state);
+                    }
+                }
+            }
+            return size * size * size;
+        }
+        AtomicIntegerArray leaf = (AtomicIntegerArray) node;
+        // The filter is only tested again when the state differs from the previous block
+        int tested = leaf.get(0);
+        boolean matches = visitor.matches(tested);
+        int visited = 0;
+        for (int y = oy; y < oy + size; y++) {
+            for (int z = oz; z < oz + size; z++) {
+                for (int x = ox; x < ox + size; x++) {
+                    int state = leaf.get(getLeafIndex(x, y, z));
+                    if (state != tested) {
+                        tested = state;
+                        matches = visitor.matches(state);
+                    }
+                    if (matches) {
+                        visitor.visit(getIndex(x, y, z), state);
+                        visited++;
+                    }
+                }
+            }
+        }
+        return visited;
+    }
+
+    private static void count(Object node, int level, TIntIntHashMap counts) {
+        if (node instanceof Integer) {
+            int volume = 1 << level * 3;
+            counts.adjustOrPutValue((Integer) node, volume, volume);
+        } else if (node instanceof AtomicIntegerArray) {
+            AtomicIntegerArray leaf = (AtomicIntegerArray) node;
+            for (int i = 0; i < leaf.length(); i++) {
+                counts.adjustOrPutValue(leaf.get(i), 1, 1);
+            }
+        } else {
+            Branch branch = (Branch) node;
+            for (int c = 0; c < 8; c++) {
+                count(branch.get(c), level - 1, counts);
+            }
+        }
+    }
+
+    private static int count(Object node, int level, int state) {
+        if (node instanceof Integer) {
+            return (Integer) node == state ? 1 << level * 3 : 0;
+        }
+        int count = 0;
+        if (node instanceof AtomicIntegerArray) {
+            AtomicIntegerArray leaf = (AtomicIntegerArray) node;
+            for (int i = 0; i < leaf.length(); i++) {
+                if (leaf.get(i) == state) {
+                    count++;
+                }
+            }
+        } else {
+            Branch branch = (Branch) node;
+            for (int c = 0; c < 8; c++) {
+                count += count(branch.get(c), level - 1, state);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets if the node, or one of its descendants, holds a single state without being a uniform node
+     */
+    private static boolean canCollapse(Object node) {
+        if (node instanceof Integer) {
+            return false;
+        }
+        if (node instanceof AtomicIntegerArray) {
+            return isUniform((AtomicIntegerArray) node);
+        }
+        Branch branch = (Branch) node;
+        Object first = branch.get(0);
+        boolean uniform = true;
+        for (int c = 0; c < 8; c++) {
+            Object child = branch.get(c);
+            if (canCollapse(child)) {
+                return true;
+            }
+            uniform &= child instanceof Integer && child.equals(first);
+        }
+        return uniform;
+    }
+
+    /**
+     * Replaces the descendants of the node which hold a single state by uniform nodes.  The store must be locked.
+     *
+     * @return the node, or a uniform node if the node holds a single state
+     */
+    private static Object collapse(Object node) {
+        if (node instanceof Integer) {
+            return node;
+        }
+        if (node instanceof AtomicIntegerArray) {
+            AtomicIntegerArray leaf = (AtomicIntegerArray) node;
+            return isUniform(leaf) ? (Object) leaf.get(0) : leaf;
+        }
+        Branch branch = (Branch) node;
+        boolean uniform = true;
+        for (int c = 0; c < 8; c++) {
+            Object child = collapse(branch.get(c));
+            branch.set(c, child);
+            uniform &= child instanceof Integer && child.equals(branch.get(0));
+        }
+        return uniform ? branch.get(0) : branch;
+    }
+
+    private static boolean isUniform(AtomicIntegerArray leaf) {
+        int first = leaf.get(0);
+        for (int i = 1; i < leaf.length(); i++) {
+            if (leaf.get(i) != first) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long getMemoryUsage(Object node) {
+        if (node instanceof Integer) {
+            return 0;
+        }
+        if (node instanceof AtomicIntegerArray) {
+            return LEAF_SIZE + ((long) ((AtomicIntegerArray) node).length() << 2);
+        }
+        Branch branch = (Branch) node;
+        long usage = BRANCH_SIZE;
+        for (int c = 0; c < 8; c++) {
+            usage += getMemoryUsage(branch.get(c));
+        }
+        return usage;
+    }
+
+    /**
+     * Enters the update gate, waiting while another thread holds the lock.  If the calling thread holds the lock, the gate is not entered.
+     *
+     * @return the slot to pass to {@link #exitUpdate(int)}
+     */
+    private int enterUpdate() {
+        while (true) {
+            int slot = updateGate.enter();
+            if (slot != StripedUpdateGate.CLOSED || lock.isHeldByCurrentThread()) {
+                return slot;
+            }
+            lock.lock();
+            lock.unlock();
+        }
+    }
+
+    private void exitUpdate(int slot) {
+        if (slot != StripedUpdateGate.CLOSED) {
+            updateGate.exit(slot);
+        }
+    }
+
+    private int update(int x, int y, int z, int expect, int update, boolean compare) {
+        int slot = enterUpdate();
+        try {
+            return set(x, y, z, expect, update, compare);
+        } finally {
+            exitUpdate(slot);
+        }
+    }
+
+    @Override
+    public short getBlockId(int x, int y, int z) {
+        return (short) (getFullData(x, y, z) >> 16);
+    }
+
+    @Override
+    public short getData(int x, int y, int z) {
+        return (short) getFullData(x, y, z);
+    }
+
+    @Override
+    public short getData(int x, int y, int z, DataMask mask) {
+        return mask.extract(getData(x, y, z));
+    }
+
+    @Override
+    public int getFullData(int x, int y, int z) {
+        return get(x, y, z);
+    }
+
+    @Override
+    public int getFullData(int index) {
+        int mask = (1 << shift) - 1;
+        return get(index & mask, index >> doubleShift, index >> shift & mask);
+    }
+
+    @Override
+    public int touchBlock(int x, int y, int z) {
+        int state = getFullData(x, y, z);
+        markDirty(x, y, z, state, state);
+        return state;
+    }
+
+    @Override
+    public void setBlockId(int x, int y, int z, short id) {
+        int oldState, newState;
+        do {
+            oldState = get(x, y, z);
+            newState = id << 16 | oldState & 0xFFFF;
+        } while (update(x, y, z, oldState, newState, true) != oldState);
+        markDirty(x, y, z, oldState, newState);
+    }
+
+    @Override
+    public void setData(int x, int y, int z, short data) {
+        int oldState, newState;
+        do {
+            oldState = get(x, y, z);
+            newState = oldState & 0xFFFF0000 | data & 0xFFFF;
+        } while (update(x, y, z, oldState, newState, true) != oldState);
+        markDirty(x, y, z, oldState, newState);
+    }
+
+    @Override
+    public void setData(int x, int y, int z, short data, DataMask mask) {
+        setData(x, y, z, mask.apply(data));
+    }
+
+    @Override
+    public boolean isBlockUniform() {
+        return root.get(0) instanceof Integer;
+    }
+
+    @Override
+    public void setBlock(int x, int y, int z, short id, short data) {
+        getAndSetBlock(x, y, z, id, data);
+    }
+
+    @Override
+    public void setBlock(int x, int y, int z, short id, short data, DataMask mask) {
+        getAndSetBlock(x, y, z, id, data, mask);
+    }
+
+    @Override
+    public int getAndSetBlock(int x, int y, int z, short id, short data) {
+        int newState = id << 16 | data & 0xFFFF;
+        int oldState = update(x, y, z, 0, newState, false);
+        markDirty(x, y, z, oldState, newState);
+        return oldState;
+    }
+
+    @Override
+    public int getAndSetBlock(int x, int y, int z, short id, short data, DataMask mask) {
+        data = mask.apply(data);
+        int oldState, newState;
+        do {
+            oldState = get(x, y, z);
+            newState = id << 16 | (oldState & ~(mask.getMask() << mask.getShift()) & 0xFFFF | data & 0xFFFF);
+        } while (update(x, y, z, oldState, newState, true) != oldState);
+        markDirty(x, y, z, oldState, newState);
+        return oldState;
+    }
+
+    @Override
+    public boolean compareAndSetBlock(int x, int y, int z, short expectId, short expectData, short newId, short newData) {
+        int exp = expectId << 16 | expectData & 0xFFFF;
+        int update = newId << 16 | newData & 0xFFFF;
+        if (update(x, y, z, exp, update, true) != exp) {
+            return false;
+        }
+        if (exp != update) {
+            markDirty(x, y, z, exp, update);
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}<br> <br> The store is locked while the batch is checked and applied.
+     */
+    @Override
+    public boolean compareAndSetBlocks(int[] indexes, int[] expect, int[] update) {
+        if (expect.length != indexes.length || update.length != indexes.length) {
+            throw new IllegalArgumentException("The index, expected state and new state arrays must have the same length");
+        }
+        int mask = (1 << shift) - 1;
+        writeLock();
+        try {
+            for (int i = 0; i < indexes.length; i++) {
+                if (getFullData(indexes[i]) != expect[i]) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < indexes.length; i++) {
+                if (expect[i] != update[i]) {
+                    int index = indexes[i];
+                    int x = index & mask, y = index >> doubleShift, z = index >> shift & mask;
+                    set(x, y, z, 0, update[i], false);
+                }
+            }
+            dirty.mark(indexes, expect, update);
+            return true;
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    /**
+     * Visits every block whose state matches the visitor.  Data tearing may occur if the store is updated during this method call.<br> <br> The filter is tested once for each uniform node, so
+     * uniform regions which do not match are skipped without visiting their blocks.  The blocks are visited in the order of the tree, not in index order.
+     *
+     * @param visitor the visitor
+     * @return the number of blocks visited
+     */
+    public int visitBlocks(BlockVisitor visitor) {
+        return visit(root.get(0), shift, 0, 0, 0, visitor);
+    }
+
+    /**
+     * Gets the number of blocks with the given state.<br> <br> The counts are not maintained, uniform nodes are counted as a whole and the blocks of dense leaves are scanned.
+     *
+     * @param state the block state, the block id in the upper 16 bits and the data in the lower 16 bits
+     * @return the number of blocks
+     */
+    public int getBlockCount(int state) {
+        return count(root.get(0), shift, state);
+    }
+
+    /**
+     * Gets the number of blocks with each state in use.<br> <br> The counts are not maintained, uniform nodes are counted as a whole and the blocks of dense leaves are scanned.
+     *
+     * @return a map of the block states to their counts
+     */
+    public TIntIntHashMap getStateCounts() {
+        TIntIntHashMap counts = new TIntIntHashMap();
+        count(root.get(0), shift, counts);
+        return counts;
+    }
+
+    /**
+     * Sets the block id and data for every block in the cuboid region starting at (x, y, z) and of the given size.<br> <br> The region is marked dirty as a whole, by updating the dirty bounds and
+     * overflowing the dirty arrays, instead of recording each block.<br> <br> Nodes entirely inside the region are replaced by a single uniform node, discarding their descendants.
+     *
+     * @param x the x coordinate of the region origin
+     * @param y the y coordinate of the region origin
+     * @param z the z coordinate of the region origin
+     * @param sizeX the size of the region on the x axis
+     * @param sizeY the size of the region on the y axis
+     * @param sizeZ the size of the region on the z axis
+     * @param id the block id
+     * @param data the block data
+     */
+    public void fillBlocks(int x, int y, int z, int sizeX, int sizeY, int sizeZ, short id, short data) {
+        if (!BlockRegions.check(shift, x, y, z, sizeX, sizeY, sizeZ)) {
+            return;
+        }
+        Integer state = id << 16 | data & 0xFFFF;
+        int slot = enterUpdate();
+        try {
+            fill(root, 0, shift, 0, 0, 0, x, y, z, x + sizeX, y + sizeY, z + sizeZ, state);
+        } finally {
+            exitUpdate(slot);
+        }
+        markRegionDirty(x, y, z, x + sizeX - 1, y + sizeY - 1, z + sizeZ - 1);
+    }
+
+    /**
+     * Sets the full state for every block in the cuboid region starting at (x, y, z) and of the given size.<br> <br> The states are read from the array in x, z, y order, so the state for the block
+     * at (x + dx, y + dy, z + dz) is at index (dy * sizeZ + dz) * sizeX + dx. The region is marked dirty as a whole, by updating the dirty bounds and overflowing the dirty arrays, instead of recording
+     * each block.
+     *
+     * @param x the x coordinate of the region origin
+     * @param y the y coordinate of the region origin
+     * @param z the z coordinate of the region origin
+     * @param sizeX the size of the region on the x axis
+     * @param sizeY the size of the region on the y axis
+     * @param sizeZ the size of the region on the z axis
+     * @param states the full states of the blocks
+     */
+    public void setBlocks(int x, int y, int z, int sizeX, int sizeY, int sizeZ, int[] states) {
+        if (!BlockRegions.check(shift, x, y, z, sizeX, sizeY, sizeZ)) {
+            return;
+        }
+        BlockRegions.checkStates(states, sizeX, sizeY, sizeZ);
+        int slot = enterUpdate();
+        try {
+            int offset = 0;
+            for (int dy = 0; dy < sizeY; dy++) {
+                for (int dz = 0; dz < sizeZ; dz++) {
+                    for (int dx = 0; dx < sizeX; dx++) {
+                        set(x + dx, y + dy, z + dz, 0, states[offset++], false);
+                    }
+                }
+            }
+        } finally {
+            exitUpdate(slot);
+        }
+        markRegionDirty(x, y, z, x + sizeX - 1, y + sizeY - 1, z + sizeZ - 1);
+    }
+
+    /**
+     * Copies the full state of every block in the cuboid region starting at (x, y, z) and of the given size into an array.<br> <br> The states are written in the same order as for {@link
+     * #setBlocks(int, int, int, int, int, int, int[])}. If the store is updated while the region is being copied, data tearing could occur.<br> <br> If the array is the wrong length or null, a new
+     * array is created.
+     *
+     * @param x the x coordinate of the region origin
+     * @param y the y coordinate of the region origin
+     * @param z the z coordinate of the region origin
+     * @param sizeX the size of the region on the x axis
+     * @param sizeY the size of the region on the y axis
+     * @param sizeZ the size of the region on the z axis
+     * @param array to place the states
+     * @return the array
+     */
+    public int[] getBlocks(int x, int y, int z, int sizeX, int sizeY, int sizeZ, int[] array) {
+        array = BlockRegions.getArray(array, sizeX, sizeY, sizeZ);
+        if (BlockRegions.check(shift, x, y, z, sizeX, sizeY, sizeZ)) {
+            get(root.get(0), shift, 0, 0, 0, x, y, z, sizeX, sizeY, sizeZ, array);
+        }
+        return array;
+    }
+
+    /**
+     * {@inheritDoc}<br> <br> The store needs compression if a node which is not uniform holds a single state.
+     */
+    @Override
+    public boolean needsCompression() {
+        return canCollapse(root.get(0));
+    }
+
+    @Override
+    public int[] getFullArray() {
+        return getFullArray(null);
+    }
+
+    /**
+     * Copies both the block ids and data in the store into an array.<br> <br> If the store is updated while this snapshot is being taken, data tearing could occur.<br> <br> If the array is the
+     * wrong length or null, a new array is created.
+     *
+     * @param array to place the data
+     * @return the array
+     */
+    public int[] getFullArray(int[] array) {
+        int side = 1 << shift;
+        return getBlocks(0, 0, 0, side, side, side, array);
+    }
+
+    @Override
+    public short[] getBlockIdArray() {
+        return getBlockIdArray(new short[length]);
+    }
+
+    @Override
+    public short[] getBlockIdArray(short[] array) {
+        if (array.length != length) {
+            throw new IllegalArgumentException("Invalid array size! Expected: " + length + " Got: " + array.length);
+        }
+        int[] states = getFullArray();
+        for (int i = 0; i < length; i++) {
+            array[i] = (short) (states[i] >> 16);
+        }
+        return array;
+    }
+
+    @Override
+    public short[] getDataArray() {
+        return getDataArray(new short[length]);
+    }
+
+    @Override
+    public short[] getDataArray(DataMask mask) {
+        return getDataArray(new short[length], mask);
+    }
+
+    @Override
+    public short[] getDataArray(short[] array) {
+        if (array.length != length) {
+            array = new short[length];
+        }
+        int[] states = getFullArray();
+        for (int i = 0; i < length; i++) {
+            array[i] = (short) states[i];
+        }
+        return array;
+    }
+
+    @Override
+    public short[] getDataArray(short[] array, DataMask mask) {
+        if (array.length != length) {
+            array = new short[length];
+        }
+        int[] states = getFullArray();
+        for (int i = 0; i < length; i++) {
+            array[i] = mask.extract((short) states[i]);
+        }
+        return array;
+    }
+
+    /**
+     * Collapses the nodes which hold a single state into uniform nodes.  The store is locked while it is compressed.
+     */
+    @Override
+    public void compress() {
+        writeLock();
+        try {
+            root.set(0, collapse(root.get(0)));
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    @Override
+    public boolean isDirtyOverflow() {
+        return dirty.isOverflow();
+    }
+
+    @Override
+    public boolean isDirty() {
+        return dirty.isDirty();
+    }
+
+    @Override
+    public boolean resetDirtyArrays() {
+        return dirty.reset();
+    }
+
+    @Override
+    public int getDirtyBlocks() {
+        return dirty.getDirtyBlocks();
+    }
+
+    @Override
+    public Vector3i getMinDirty() {
+        return dirty.getMinDirty();
+    }
+
+    @Override
+    public Vector3i getMaxDirty() {
+        return dirty.getMaxDirty();
+    }
+
+    @Override
+    public Vector3i getDirtyBlock(int i) {
+        return dirty.getDirtyBlock(i);
+    }
+
+    /**
+     * Gets the block index of the dirty block at a given index.<br> <br> If there is no block at that index, then the method returns -1.  Block indexes are in the same order as for {@link
+     * #getFullData(int)}.
+     *
+     * @param i the index in the dirty arrays
+     * @return the block index
+     */
+    public int getDirtyIndex(int i) {
+        return dirty.getDirtyIndex(i);
+    }
+
+    @Override
+    public int getDirtyOldState(int i) {
+        return dirty.getDirtyOldState(i);
+    }
+
+    @Override
+    public int getDirtyNewState(int i) {
+        return dirty.getDirtyNewState(i);
+    }
+
+    @Override
+    public int encodeDelta(ByteBuffer buffer) {
+        return AtomicPaletteBlockStoreDeltaCodec.encode(this, buffer);
+    }
+
+    @Override
+    public int applyDelta(ByteBuffer buffer) {
+        return AtomicPaletteBlockStoreDeltaCodec.apply(this, buffer);
+    }
+
+    public void markDirty(int x, int y, int z, int oldState, int newState) {
+        dirty.mark(getIndex(x, y, z), oldState, newState);
+    }
+
+    /**
+     * Marks every block in the region from (minX, minY, minZ) to (maxX, maxY, maxZ), inclusive, as dirty.<br> <br> Only the dirty bounds are updated, the dirty arrays are marked as overflowed.
+     */
+    public void markRegionDirty(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        dirty.markRegion(minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /**
+     * Gets the number of bytes used by the block data of the store, excluding object headers.<br> <br> This can be summed over the loaded stores to account for the memory used by the block
+     * data.<br> <br> This is an estimate of the memory used by the branches and the dense leaves of the tree.
+     *
+     * @return the memory usage, in bytes
+     */
+    public long getMemoryUsage() {
+        return getMemoryUsage(root.get(0));
+    }
+
+    @Override
+    public int getPackedWidth() {
+        return AtomicShortIntPaletteBackingArray.roundUpWidth(length - 1);
+    }
+
+    @Override
+    public int[] getPackedArray() {
+        return getFullArray();
+    }
+
+    @Override
+    public int[] getPalette() {
+        return new int[0];
+    }
+
+    /**
+     * Locks the store, waiting for the updates in progress to complete.  Updates from other threads wait until the store is unlocked.
+     */
+    @Override
+    public void writeLock() {
+        lock.lock();
+        if (lock.getHoldCount() == 1) {
+            updateGate.close();
+        }
+    }
+
+    @Override
+    public void writeUnlock() {
+        if (lock.getHoldCount() == 1) {
+            updateGate.open();
+        }
+        lock.unlock();
+    }
+
+    @Override
+    public boolean tryWriteLock() {
+        if (!lock.tryLock()) {
+            return false;
+        }
+        if (lock.getHoldCount() == 1) {
+            updateGate.close();
+        }
+        return true;
+    }
+
+    /**
+     * Gets the tracker of the dirty blocks, used to encode the changed blocks
+     */
+    DirtyBlockTracker getDirtyTracker() {
+        return dirty;
+    }
+
+    /**
+     * A branch of the tree, holding its eight children.  The index of a child is (y << 2 | z << 1 | x), where each coordinate is 1 for the upper half of the branch.
+     */
+    private static final class Branch extends AtomicReferenceArray<Object> {
+        private static final long serialVersionUID = 1L;
+
+        private Branch(Object child) {
+            super(8);
+            for (int c = 0; c < 8; c++) {
+                set(c, child);
+            }
+        }
+    }
+}
@@ -23,57 +23,128 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import gnu.trove.map.hash.TIntIntHashMap;
 
 import com.flowpowered.commons.store.block.AtomicBlockStore;
+import com.flowpowered.commons.store.block.BlockChangeListener;
+import com.flowpowered.commons.store.block.BlockReadTransaction;
+import com.flowpowered.commons.store.block.BlockVisitor;
+import com.flowpowered.commons.store.block.StateFilter;
 import com.flowpowered.math.vector.Vector3i;
 
 public class AtomicPaletteBlockStore implements AtomicBlockStore {
+    /**
+     * The number of optimistic attempts made by a read transaction before it locks the store
+     */
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 8;
     private final int shift;
     private final int doubleShift;
     private final int length;
     private final AtomicShortIntArray store;
-    private final byte[] dirtyX;
-    private final byte[] dirtyY;
-    private final byte[] dirtyZ;
-    private final int[] newState;
-    private final int[] oldState;
-    private final AtomicInteger maxX = new AtomicInteger();
-    private final AtomicInteger maxY = new AtomicInteger();
-    private final AtomicInteger maxZ = new AtomicInteger();
-    private final AtomicInteger minX = new AtomicInteger();
-    private final AtomicInteger minY = new AtomicInteger();
-    private final AtomicInteger minZ = new AtomicInteger();
-    private final AtomicInteger dirtyBlocks = new AtomicInteger(0);
+    private final DirtyBlockTracker dirty;
+    /**
+     * Records every dirty block, or null if only the dirty arrays are used
+     */
+    private final AtomicDirtyBitmap dirtyBitmap;
+    private static final AtomicHeightMap[] NO_HEIGHT_MAPS = new AtomicHeightMap[0];
+    private static final AtomicReferenceFieldUpdater<AtomicPaletteBlockStore, AtomicHeightMap[]> HEIGHT_MAPS_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(AtomicPaletteBlockStore.class, AtomicHeightMap[].class, "heightMaps");
+    /**
+     * The height maps maintained as the blocks are updated, replaced as a whole when a height map is added or removed
+     */
+    private volatile AtomicHeightMap[] heightMaps = NO_HEIGHT_MAPS;
+    private static final BlockChangeListener[] NO_CHANGE_LISTENERS = new BlockChangeListener[0];
+    private static final AtomicReferenceFieldUpdater<AtomicPaletteBlockStore, BlockChangeListener[]> CHANGE_LISTENERS_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(AtomicPaletteBlockStore.class, BlockChangeListener[].class, "changeListeners");
+    private static final AtomicReferenceFieldUpdater<AtomicPaletteBlockStore, StripedChangeLog> CHANGE_LOG_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(AtomicPaletteBlockStore.class, StripedChangeLog.class, "changeLog");
+    /**
+     * The listeners notified of the changes when they are flushed.  Changes are only recorded while there are listeners.
+     */
+    private volatile BlockChangeListener[] changeListeners = NO_CHANGE_LISTENERS;
+    /**
+     * The changes recorded since the last flush, created when the first listener is added
+     */
+    private volatile StripedChangeLog changeLog;
 
     public AtomicPaletteBlockStore(int shift, boolean storeState, int dirtySize) {
+        this(shift, storeState, dirtySize, false);
+    }
+
+    /**
+     * Creates a new store.  If the store is off-heap, the block data is kept in direct memory and {@link #release()} should be called once the store is no longer used.
+     *
+     * @param shift the log2 of the side of the store
+     * @param storeState whether or not the old and new states of the dirty blocks are recorded
+     * @param dirtySize the maximum number of dirty blocks that can be recorded before overflowing
+     * @param offHeap whether or not the block data should be stored in direct memory
+     */
+    public AtomicPaletteBlockStore(int shift, boolean storeState, int dirtySize, boolean offHeap) {
+        this(shift, storeState, dirtySize, offHeap, false);
+    }
+
+    /**
+     * Creates a new store.  If the store has a dirty bitmap, every dirty block is recorded in the bitmap as well as in the dirty arrays, so the dirty blocks can still be iterated once the dirty arrays
+     * have overflowed.
+     *
+     * @param shift the log2 of the side of the store
+     * @param storeState whether or not the old and new states of the dirty blocks are recorded
+     * @param dirtySize the maximum number of dirty blocks that can be recorded before overflowing
+     * @param offHeap whether or not the block data should be stored in direct memory
+     * @param dirtyBitmap whether or not the dirty blocks should be recorded in a bitmap
+     */
+    public AtomicPaletteBlockStore(int shift, boolean storeState, int dirtySize, boolean offHeap, boolean dirtyBitmap) {
+        this(shift, storeState, dirtySize, offHeap, dirtyBitmap, false);
+    }
+
+    /**
+     * Creates a new store.  If the store uses compact widths, the packed array uses the smallest number of bits per block that can hold the palette ids, instead of rounding it up to a power of 2.
+     *
+     * @param shift the log2 of the side of the store
+     * @param storeState whether or not the old and new states of the dirty blocks are recorded
+     * @param dirtySize the maximum number of dirty blocks that can be recorded before overflowing
+     * @param offHeap whether or not the block data should be stored in direct memory
+     * @param dirtyBitmap whether or not the dirty blocks should be recorded in a bitmap
+     * @param compactWidths whether or not the packed array may use any number of bits per block
+     */
+    public AtomicPaletteBlockStore(int shift, boolean storeState, int dirtySize, boolean offHeap, boolean dirtyBitmap, boolean compactWidths) {
         int side = 1 << shift;
         this.shift = shift;
         this.doubleShift = shift << 1;
         int size = side * side * side;
-        store = new AtomicShortIntArray(size);
+        store = new AtomicShortIntArray(size, offHeap, compactWidths);
         this.length = size;
-        dirtyX = new byte[dirtySize];
-        dirtyY = new byte[dirtySize];
-        dirtyZ = new byte[dirtySize];
-        if (storeState) {
-            oldState = new int[dirtySize];
-            newState = new int[dirtySize];
-        } else {
-            oldState = null;
-            newState = null;
-        }
+        this.dirty = new DirtyBlockTracker(shift, storeState, dirtySize, true);
+        this.dirtyBitmap = dirtyBitmap ? new AtomicDirtyBitmap(size) : null;
     }
 
     public AtomicPaletteBlockStore(int shift, boolean storeState, boolean compress, int dirtySize, int[] initial) {
-        this(shift, storeState, dirtySize);
+        this(shift, storeState, compress, dirtySize, initial, false);
+    }
+
+    public AtomicPaletteBlockStore(int shift, boolean storeState, boolean compress, int dirtySize, int[] initial, boolean offHeap) {
+        this(shift, storeState, compress, dirtySize, initial, offHeap, false);
+    }
+
+    public AtomicPaletteBlockStore(int shift, boolean storeState, boolean compress, int dirtySize, int[] initial, boolean offHeap, boolean dirtyBitmap) {
+        this(shift, storeState, compress, dirtySize, initial, offHeap, dirtyBitmap, false);
+    }
+
+    public AtomicPaletteBlockStore(int shift, boolean storeState, boolean compress, int dirtySize, int[] initial, boolean offHeap, boolean dirtyBitmap, boolean compactWidths) {
+        this(shift, storeState, dirtySize, offHeap, dirtyBitmap, compactWidths);
         if (initial != null) {
             if (compress) {
                 store.set(initial);
             } else {
                 store.uncompressedSet(initial);
             }
-            dirtyBlocks.set(initial.length);
+            markRegionDirty(0, 0, 0, (1 << shift) - 1, (1 << shift) - 1, (1 << shift) - 1);
         }
     }
 
@@ -82,7 +153,37 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
     }
 
     public AtomicPaletteBlockStore(int shift, boolean storeState, boolean compress, int dirtySize, int[] palette, int blockArrayWidth, int[] variableWidthBlockArray) {
-        this(shift, storeState, dirtySize);
+        this(shift, storeState, compress, dirtySize, palette, blockArrayWidth, variableWidthBlockArray, false);
+    }
+
+    public AtomicPaletteBlockStore(int shift, boolean storeState, boolean compress, int dirtySize, int[] palette, int blockArrayWidth, int[] variableWidthBlockArray, boolean offHeap) {
+        this(shift, storeState, compress, dirtySize, palette, blockArrayWidth, IntBuffer.wrap(variableWidthBlockArray), offHeap);
+    }
+
+    /**
+     * Creates a new store from a palette and a packed array.  The packed array is read from the remaining elements of the buffer, without copying it to an intermediate array.
+     *
+     * @param shift the log2 of the side of the store
+     * @param storeState whether or not the old and new states of the dirty blocks are recorded
+     * @param compress must be true
+     * @param dirtySize the maximum number of dirty blocks that can be recorded before overflowing
+     * @param palette the palette, if the palette is of length 0, the packed array contains the states, in flat format
+     * @param blockArrayWidth the width of each entry in the packed array
+     * @param variableWidthBlockArray the buffer containing the packed array
+     * @param offHeap whether or not the block data should be stored in direct memory
+     */
+    public AtomicPaletteBlockStore(int shift, boolean storeState, boolean compress, int dirtySize, int[] palette, int blockArrayWidth, IntBuffer variableWidthBlockArray, boolean offHeap) {
+        this(shift, storeState, compress, dirtySize, palette, blockArrayWidth, variableWidthBlockArray, offHeap, false);
+    }
+
+    public AtomicPaletteBlockStore(int shift, boolean storeState, boolean compress, int dirtySize, int[] palette, int blockArrayWidth, IntBuffer variableWidthBlockArray, boolean offHeap,
+                                   boolean dirtyBitmap) {
+        this(shift, storeState, compress, dirtySize, palette, blockArrayWidth, variableWidthBlockArray, offHeap, dirtyBitmap, false);
+    }
+
+    public AtomicPaletteBlockStore(int shift, boolean storeState, boolean compress, int dirtySize, int[] palette, int blockArrayWidth, IntBuffer variableWidthBlockArray, boolean offHeap,
+                                   boolean dirtyBitmap, boolean compactWidths) {
+        this(shift, storeState, dirtySize, offHeap, dirtyBitmap, compactWidths);
         if (!compress) {
             throw new IllegalArgumentException("Cannot disable compression when loading from palette");
         }
@@ -230,21 +331,175 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
         return success;
     }
 
+    /**
+     * {@inheritDoc}<br> <br> This is {@link #writeLock()} held while the batch is checked and set, preceded by a check without locking so that a batch that is bound to fail does not block writers.
+     */
     @Override
-    public boolean needsCompression() {
-        // TODO - needs removal or optimisation
+    public boolean compareAndSetBlocks(int[] indexes, int[] expect, int[] update) {
+        if (!store.compareAndSet(indexes, expect, update)) {
+            return false;
+        }
+        markDirty(indexes, expect, update);
         return true;
     }
 
-    @Override
-    public int[] getFullArray() {
-        int[] array = new int[length];
-        for (int i = 0; i < length; i++) {
-            array[i] = store.get(i);
+    /**
+     * Visits every block whose state matches the visitor, in index order.  Uniform stores are skipped at once when their state does not match, and palette stores only read the packed data if a
+     * palette entry matches.  Data tearing may occur if the store is updated during this method call.
+     *
+     * @param visitor the visitor
+     * @return the number of blocks visited
+     */
+    public int visitBlocks(BlockVisitor visitor) {
+        return store.visit(visitor);
+    }
+
+    /**
+     * Gets the number of blocks with the given state.  The counts are maintained as blocks are set, so for uniform and palette stores this does not scan the blocks.
+     *
+     * @param state the block state, the block id in the upper 16 bits and the data in the lower 16 bits
+     * @return the number of blocks
+     */
+    public int getBlockCount(int state) {
+        return store.getValueCount(state);
+    }
+
+    /**
+     * Gets the number of blocks with each state in use.  For uniform and palette stores, this takes a time proportional to the size of the palette.
+     *
+     * @return a map of the block states to their counts
+     */
+    public TIntIntHashMap getStateCounts() {
+        return store.getValueCounts();
+    }
+
+    /**
+     * Sets the block id and data for every block in the cuboid region starting at (x, y, z) and of the given size.<br> <br> The region is marked dirty as a whole, by updating the dirty bounds and
+     * overflowing the dirty arrays, instead of recording each block.
+     *
+     * @param x the x coordinate of the region origin
+     * @param y the y coordinate of the region origin
+     * @param z the z coordinate of the region origin
+     * @param sizeX the size of the region on the x axis
+     * @param sizeY the size of the region on the y axis
+     * @param sizeZ the size of the region on the z axis
+     * @param id the block id
+     * @param data the block data
+     */
+    public void fillBlocks(int x, int y, int z, int sizeX, int sizeY, int sizeZ, short id, short data) {
+        if (!BlockRegions.check(shift, x, y, z, sizeX, sizeY, sizeZ)) {
+            return;
+        }
+        int state = id << 16 | data & 0xFFFF;
+        int[] oldStates = changeListeners.length != 0 ? getBlocks(x, y, z, sizeX, sizeY, sizeZ, null) : null;
+        store.fill(getIndex(x, y, z), sizeX, sizeY, sizeZ, 1 << doubleShift, 1 << shift, state);
+        if (oldStates != null) {
+            recordRegionChanges(x, y, z, sizeX, sizeY, sizeZ, oldStates, null, state);
+        }
+        markRegionDirty(x, y, z, x + sizeX - 1, y + sizeY - 1, z + sizeZ - 1);
+    }
+
+    /**
+     * Sets the full state for every block in the cuboid region starting at (x, y, z) and of the given size.<br> <br> The states are read from the array in x, z, y order, so the state for the block
+     * at (x + dx, y + dy, z + dz) is at index (dy * sizeZ + dz) * sizeX + dx. The region is marked dirty as a whole, by updating the dirty bounds and overflowing the dirty arrays, instead of recording
+     * each block.
+     *
+     * @param x the x coordinate of the region origin
+     * @param y the y coordinate of the region origin
+     * @param z the z coordinate of the region origin
+     * @param sizeX the size of the region on the x axis
+     * @param sizeY the size of the region on the y axis
+     * @param sizeZ the size of the region on the z axis
+     * @param states the full states of the blocks
+     */
+    public void setBlocks(int x, int y, int z, int sizeX, int sizeY, int sizeZ, int[] states) {
+        if (!BlockRegions.check(shift, x, y, z, sizeX, sizeY, sizeZ)) {
+            return;
+        }
+        BlockRegions.checkStates(states, sizeX, sizeY, sizeZ);
+        int[] oldStates = changeListeners.length != 0 ? getBlocks(x, y, z, sizeX, sizeY, sizeZ, null) : null;
+        store.set(getIndex(x, y, z), sizeX, sizeY, sizeZ, 1 << doubleShift, 1 << shift, states, 0);
+        if (oldStates != null) {
+            recordRegionChanges(x, y, z, sizeX, sizeY, sizeZ, oldStates, states, 0);
+        }
+        markRegionDirty(x, y, z, x + sizeX - 1, y + sizeY - 1, z + sizeZ - 1);
+    }
+
+    /**
+     * Copies the full state of every block in the cuboid region starting at (x, y, z) and of the given size into an array.<br> <br> The states are written in the same order as for {@link
+     * #setBlocks(int, int, int, int, int, int, int[])}. If the store is updated while the region is being copied, data tearing could occur.<br> <br> If the array is the wrong length or null, a new
+     * array is created.
+     *
+     * @param x the x coordinate of the region origin
+     * @param y the y coordinate of the region origin
+     * @param z the z coordinate of the region origin
+     * @param sizeX the size of the region on the x axis
+     * @param sizeY the size of the region on the y axis
+     * @param sizeZ the size of the region on the z axis
+     * @param array to place the states
+     * @return the array
+     */
+    public int[] getBlocks(int x, int y, int z, int sizeX, int sizeY, int sizeZ, int[] array) {
+        array = BlockRegions.getArray(array, sizeX, sizeY, sizeZ);
+        if (BlockRegions.check(shift, x, y, z, sizeX, sizeY, sizeZ)) {
+            store.get(getIndex(x, y, z), sizeX, sizeY, sizeZ, 1 << doubleShift, 1 << shift, array, 0);
         }
         return array;
     }
 
+    /**
+     * Copies the states of the blocks of a cuboid region into a cuboid region of the given array.  The state of the block at (x + dx, y + dy, z + dz) is written at the index offset + dy *
+     * arrayYStride + dz * arrayZStride + dx.  Data tearing may occur if the store is updated during this method call.
+     *
+     * @param x the x coordinate of the region origin
+     * @param y the y coordinate of the region origin
+     * @param z the z coordinate of the region origin
+     * @param sizeX the size of the region on the x axis
+     * @param sizeY the size of the region on the y axis
+     * @param sizeZ the size of the region on the z axis
+     * @param array the destination array
+     * @param offset the index of the state of the region origin in the destination array
+     * @param arrayYStride the distance between two layers in the destination array
+     * @param arrayZStride the distance between two rows in the destination array
+     */
+    public void getBlocks(int x, int y, int z, int sizeX, int sizeY, int sizeZ, int[] array, int offset, int arrayYStride, int arrayZStride) {
+        if (BlockRegions.check(shift, x, y, z, sizeX, sizeY, sizeZ)) {
+            store.get(getIndex(x, y, z), sizeX, sizeY, sizeZ, 1 << doubleShift, 1 << shift, array, offset, arrayYStride, arrayZStride);
+        }
+    }
+
+    @Override
+    public boolean needsCompression() {
+        return store.needsCompression();
+    }
+
+    @Override
+    public int[] getFullArray() {
+        return store.getArray(new int[length]);
+    }
+
+    /**
+     * Copies both the block ids and data in the store into an array.<br> <br> If the store is updated while this snapshot is being taken, data tearing could occur.<br> <br> If the array is the
+     * wrong length or null, a new array is created.<br> <br> No memory is allocated if the array is of the right length.
+     *
+     * @param array to place the data
+     * @return the array
+     */
+    public int[] getFullArray(int[] array) {
+        return store.getArray(array);
+    }
+
+    /**
+     * Copies the states of the blocks into the buffer, starting at its position, without allocating.  The position of the buffer is advanced past the states.  If the store is updated while the
+     * states are being copied, data tearing could occur.
+     *
+     * @param buffer the destination buffer
+     * @throws IllegalArgumentException if the buffer has fewer states remaining than the number of blocks
+     */
+    public void writeFullArray(IntBuffer buffer) {
+        store.writeArray(buffer);
+    }
+
     @Override
     public short[] getBlockIdArray() {
         return getBlockIdArray(new short[length]);
@@ -252,15 +507,21 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 
     @Override
     public short[] getBlockIdArray(short[] array) {
-        if (array.length != length) {
-            throw new IllegalArgumentException("Invalid array size! Expected: " + length + " Got: " + array.length);
-        }
-        for (int i = 0; i < length; i++) {
-            array[i] = (short) (store.get(i) >> 16);
-        }
+        store.getArray(array, 16);
         return array;
     }
 
+    /**
+     * Copies the block ids into the buffer, starting at its position, without allocating.  The position of the buffer is advanced past the ids.  If the store is updated while the ids are being
+     * copied, data tearing could occur.
+     *
+     * @param buffer the destination buffer
+     * @throws IllegalArgumentException if the buffer has fewer ids remaining than the number of blocks
+     */
+    public void writeBlockIdArray(ShortBuffer buffer) {
+        store.writeArray(buffer, 16);
+    }
+
     @Override
     public short[] getDataArray() {
         return getDataArray(new short[length]);
@@ -276,12 +537,21 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
         if (array.length != length) {
             array = new short[length];
         }
-        for (int i = 0; i < length; i++) {
-            array[i] = (short) (store.get(i));
-        }
+        store.getArray(array, 0);
         return array;
     }
 
+    /**
+     * Copies the block data into the buffer, starting at its position, without allocating.  The position of the buffer is advanced past the data.  If the store is updated while the data is being
+     * copied, data tearing could occur.
+     *
+     * @param buffer the destination buffer
+     * @throws IllegalArgumentException if the buffer has fewer values remaining than the number of blocks
+     */
+    public void writeDataArray(ShortBuffer buffer) {
+        store.writeArray(buffer, 0);
+    }
+
     @Override
     public short[] getDataArray(short[] array, DataMask mask) {
         if (array.length != length) {
@@ -300,107 +570,390 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
 
     @Override
     public boolean isDirtyOverflow() {
-        return dirtyBlocks.get() >= dirtyX.length;
+        return dirty.isOverflow();
     }
 
     @Override
     public boolean isDirty() {
-        return dirtyBlocks.get() > 0;
+        return dirty.isDirty();
     }
 
     @Override
     public boolean resetDirtyArrays() {
-        minX.set(Integer.MAX_VALUE);
-        minY.set(Integer.MAX_VALUE);
-        minZ.set(Integer.MAX_VALUE);
-        maxX.set(Integer.MIN_VALUE);
-        maxY.set(Integer.MIN_VALUE);
-        maxZ.set(Integer.MIN_VALUE);
-        return dirtyBlocks.getAndSet(0) > 0;
+        if (dirtyBitmap != null) {
+            dirtyBitmap.clear();
+        }
+        return dirty.reset();
     }
 
     @Override
     public int getDirtyBlocks() {
-        return dirtyBlocks.get();
+        return dirty.getDirtyBlocks();
     }
 
     @Override
     public Vector3i getMaxDirty() {
-        return new Vector3i(maxX.get(), maxY.get(), maxZ.get());
+        return dirty.getMaxDirty();
     }
 
     @Override
     public Vector3i getMinDirty() {
-        return new Vector3i(minX.get(), minY.get(), minZ.get());
+        return dirty.getMinDirty();
     }
 
     @Override
     public Vector3i getDirtyBlock(int i) {
-        if (i >= dirtyBlocks.get()) {
-            return null;
-        }
-
-        return new Vector3i(dirtyX[i] & 0xFF, dirtyY[i] & 0xFF, dirtyZ[i] & 0xFF);
+        return dirty.getDirtyBlock(i);
     }
 
     @Override
     public int getDirtyOldState(int i) {
-        if (oldState == null || i >= dirtyBlocks.get()) {
-            return -1;
-        }
-
-        return oldState[i];
+        return dirty.getDirtyOldState(i);
     }
 
     @Override
     public int getDirtyNewState(int i) {
-        if (newState == null || i >= dirtyBlocks.get()) {
-            return -1;
+        return dirty.getDirtyNewState(i);
+    }
+
+    /**
+     * Gets if the dirty blocks are also recorded in a bitmap.<br> <br> The bitmap holds one bit for each block, so it never overflows, even when the dirty arrays do.
+     *
+     * @return true if the store has a dirty bitmap
+     */
+    public boolean hasDirtyBitmap() {
+        return dirtyBitmap != null;
+    }
+
+    /**
+     * Gets the index of the first dirty block at or after the given block index.<br> <br> Block indexes are in the same order as for {@link #getFullData(int)}, so iterating from 0 visits the dirty
+     * blocks in index order.  The dirty blocks are tracked until the next reset of the dirty arrays.
+     *
+     * @param index the block index to start searching from
+     * @return the index of the dirty block, or -1 if there is none
+     * @throws IllegalStateException if the store does not have a dirty bitmap
+     */
+    public int getNextDirtyIndex(int index) {
+        if (dirtyBitmap == null) {
+            throw new IllegalStateException("The store does not have a dirty bitmap");
         }
+        return dirtyBitmap.nextSetBit(index);
+    }
 
-        return newState[i];
+    @Override
+    public int encodeDelta(ByteBuffer buffer) {
+        return AtomicPaletteBlockStoreDeltaCodec.encode(this, buffer);
     }
 
+    @Override
+    public int applyDelta(ByteBuffer buffer) {
+        return AtomicPaletteBlockStoreDeltaCodec.apply(this, buffer);
+    }
+
+    /**
+     * Gets the block index of the dirty block at a given index.<br> <br> If there is no block at that index, then the method returns -1.  Block indexes are in the same order as for {@link
+     * #getFullData(int)}.
+     *
+     * @param i the index in the dirty arrays
+     * @return the block index
+     */
+    public int getDirtyIndex(int i) {
+        return dirty.getDirtyIndex(i);
+    }
+
+    /**
+     * Marks a block as dirty.  The block is recorded in the dirty stripe of the calling thread, and merged into the dirty arrays when the dirty blocks are next queried.  Blocks marked by the same
+     * thread are merged in the order they were marked.
+     */
     public void markDirty(int x, int y, int z, int oldState, int newState) {
-        setAsMax(maxX, x);
-        setAsMin(minX, x);
-
-        setAsMax(maxY, y);
-        setAsMin(minY, y);
-
-        setAsMax(maxZ, z);
-        setAsMin(minZ, z);
-
-        int index = incrementDirtyIndex();
-        if (index < dirtyX.length) {
-            dirtyX[index] = (byte) x;
-            dirtyY[index] = (byte) y;
-            dirtyZ[index] = (byte) z;
-            if (this.oldState != null) {
-                this.oldState[index] = oldState;
-                this.newState[index] = newState;
+        int index = getIndex(x, y, z);
+        if (oldState != newState) {
+            updateHeightMaps(index);
+            if (changeListeners.length != 0) {
+                changeLog.add(index, oldState, newState);
+            }
+        }
+
+        if (dirtyBitmap != null) {
+            dirtyBitmap.set(index);
+        }
+
+        dirty.mark(index, oldState, newState);
+    }
+
+    /**
+     * Marks the blocks at the given indexes as dirty, skipping the blocks whose state did not change.  The batch is recorded in the dirty stripe of the calling thread under a single lock.
+     */
+    private void markDirty(int[] indexes, int[] oldStates, int[] newStates) {
+        for (int i = 0; i < indexes.length; i++) {
+            if (oldStates[i] == newStates[i]) {
+                continue;
+            }
+            int index = indexes[i];
+            if (dirtyBitmap != null) {
+                dirtyBitmap.set(index);
+            }
+            updateHeightMaps(index);
+            if (changeListeners.length != 0) {
+                changeLog.add(index, oldStates[i], newStates[i]);
             }
         }
+        dirty.mark(indexes, oldStates, newStates);
     }
 
-    public int incrementDirtyIndex() {
-        boolean success = false;
-        int index = -1;
-        while (!success) {
-            index = dirtyBlocks.get();
-            if (index > dirtyX.length) {
+    /**
+     * Marks every block in the region from (minX, minY, minZ) to (maxX, maxY, maxZ), inclusive, as dirty.<br> <br> Only the dirty bounds and the dirty bitmap are updated, the dirty arrays are marked
+     * as overflowed.
+     */
+    public void markRegionDirty(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        for (AtomicHeightMap heightMap : heightMaps) {
+            heightMap.update(minX, minZ, maxX, maxZ);
+        }
+
+        if (dirtyBitmap != null && BlockRegions.check(shift, minX, minY, minZ, maxX - minX + 1, maxY - minY + 1, maxZ - minZ + 1)) {
+            dirtyBitmap.set(getIndex(minX, minY, minZ), maxX - minX + 1, maxY - minY + 1, maxZ - minZ + 1, 1 << doubleShift, 1 << shift);
+        }
+
+        dirty.markRegion(minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    private void updateHeightMaps(int index) {
+        for (AtomicHeightMap heightMap : heightMaps) {
+            heightMap.update(index);
+        }
+    }
+
+    /**
+     * Adds a height map, which is maintained as the blocks are updated until it is removed.  The heights are calculated from the current blocks.<br> <br> Stores without height maps do not pay
+     * for maintaining them.
+     *
+     * @param filter the filter selecting the states counted by the height map
+     * @return the height map
+     */
+    public AtomicHeightMap addHeightMap(StateFilter filter) {
+        AtomicHeightMap heightMap = new AtomicHeightMap(store, shift, filter);
+        while (true) {
+            AtomicHeightMap[] current = heightMaps;
+            AtomicHeightMap[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = heightMap;
+            if (HEIGHT_MAPS_UPDATER.compareAndSet(this, current, updated)) {
                 break;
             }
-            int next = index + 1;
-            success = dirtyBlocks.compareAndSet(index, next);
         }
-        return index;
+        // Blocks updated while the heights were calculated may have been missed
+        heightMap.update(0, 0, (1 << shift) - 1, (1 << shift) - 1);
+        return heightMap;
+    }
+
+    /**
+     * Removes a height map, which is no longer maintained
+     *
+     * @param heightMap the height map
+     * @return true if the height map was removed
+     */
+    public boolean removeHeightMap(AtomicHeightMap heightMap) {
+        while (true) {
+            AtomicHeightMap[] current = heightMaps;
+            int index = Arrays.asList(current).indexOf(heightMap);
+            if (index < 0) {
+                return false;
+            }
+            AtomicHeightMap[] updated = new AtomicHeightMap[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, updated.length - index);
+            if (HEIGHT_MAPS_UPDATER.compareAndSet(this, current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records the changes of a region for the change listeners.  The new states are taken from the array, or are all the given state if the array is null.
+     */
+    private void recordRegionChanges(int x, int y, int z, int sizeX, int sizeY, int sizeZ, int[] oldStates, int[] newStates, int state) {
+        StripedChangeLog log = changeLog;
+        int i = 0;
+        for (int dy = 0; dy < sizeY; dy++) {
+            for (int dz = 0; dz < sizeZ; dz++) {
+                int index = getIndex(x, y + dy, z + dz);
+                for (int dx = 0; dx < sizeX; dx++, i++) {
+                    int newState = newStates == null ? state : newStates[i];
+                    if (oldStates[i] != newState) {
+                        log.add(index + dx, oldStates[i], newState);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a listener notified of the changes made to the blocks when they are flushed by {@link #flushChanges()}.  Changes are only recorded while the store has listeners, so a store without
+     * listeners does not pay for recording them.<br> <br> Each single block update is recorded with its exact old and new states.  Region updates read the old states of the region before
+     * updating it, so concurrent updates of the region may be recorded out of order.
+     *
+     * @param listener the listener
+     */
+    public void addChangeListener(BlockChangeListener listener) {
+        if (changeLog == null) {
+            CHANGE_LOG_UPDATER.compareAndSet(this, null, new StripedChangeLog());
+        }
+        while (true) {
+            BlockChangeListener[] current = changeListeners;
+            BlockChangeListener[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = listener;
+            if (CHANGE_LISTENERS_UPDATER.compareAndSet(this, current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes a change listener.  Once the last listener is removed, the changes that were not flushed are discarded.
+     *
+     * @param listener the listener
+     * @return true if the listener was removed
+     */
+    public boolean removeChangeListener(BlockChangeListener listener) {
+        while (true) {
+            BlockChangeListener[] current = changeListeners;
+            int index = Arrays.asList(current).indexOf(listener);
+            if (index < 0) {
+                return false;
+            }
+            BlockChangeListener[] updated = new BlockChangeListener[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, updated.length - index);
+            if (CHANGE_LISTENERS_UPDATER.compareAndSet(this, current, updated)) {
+                if (updated.length == 0) {
+                    changeLog.clear();
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Delivers the changes recorded since the last flush to the change listeners, as a single batch.  The changes made by a thread are delivered in the order they were made.  Concurrent flushes
+     * deliver their batches one after the other.
+     *
+     * @return the number of changes delivered
+     */
+    public int flushChanges() {
+        StripedChangeLog log = changeLog;
+        if (log == null) {
+            return 0;
+        }
+        synchronized (log) {
+            int count = log.drain();
+            if (count == 0) {
+                return 0;
+            }
+            for (BlockChangeListener listener : changeListeners) {
+                listener.onBlockChanges(this, log.getIndexes(), log.getOldStates(), log.getNewStates(), count);
+            }
+            return count;
+        }
+    }
+
+    public int incrementDirtyIndex() {
+        return dirty.incrementDirtyIndex();
+    }
+
+    /**
+     * Gets the tracker of the dirty blocks, used to carry the dirty blocks over when ownership is handed off
+     */
+    DirtyBlockTracker getDirtyTracker() {
+        return dirty;
     }
 
     private int getIndex(int x, int y, int z) {
         return (y << doubleShift) + (z << shift) + x;
     }
 
+    @Override
+    public int getShift() {
+        return shift;
+    }
+
+    /**
+     * Takes an immutable snapshot of the blocks of the store.<br> <br> Updates in progress are completed before the snapshot is taken, but updates are not blocked while the snapshot is read.  The
+     * next update of the store copies its backing array.
+     *
+     * @return the snapshot
+     */
+    public AtomicPaletteBlockStoreSnapshot snapshot() {
+        store.lock();
+        try {
+            return new AtomicPaletteBlockStoreSnapshot(this, store.freeze(), store.getVersion());
+        } finally {
+            store.unlock();
+        }
+    }
+
+    /**
+     * Gets the version of the store.  The version changes when the backing array of the store is replaced, which includes the first update after a snapshot is taken.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return store.getVersion();
+    }
+
+    /**
+     * Starts an optimistic read of the blocks.  The blocks read after this call are consistent with each other if {@link #validate(long)} returns true for the returned stamp once they have been
+     * read.  Optimistic reads do not block updates.
+     *
+     * @return a stamp, or 0 if an update is in progress
+     */
+    public long tryOptimisticRead() {
+        return store.tryOptimisticRead();
+    }
+
+    /**
+     * Checks that the store has not been updated since the stamp was obtained by {@link #tryOptimisticRead()}
+     *
+     * @param stamp the stamp
+     * @return true if the blocks read since the stamp was obtained are consistent
+     */
+    public boolean validate(long stamp) {
+        return store.validate(stamp);
+    }
+
+    /**
+     * Runs a read transaction, so that the blocks it reads are consistent with each other.  The transaction is first run optimistically, and run again if the store was updated while it ran.  If
+     * the optimistic runs keep failing, the transaction is run while the store is locked.
+     *
+     * @param transaction the transaction
+     * @return true if the transaction ran without locking the store
+     */
+    public boolean read(BlockReadTransaction transaction) {
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            long stamp = store.tryOptimisticRead();
+            if (stamp == 0) {
+                Thread.yield();
+                continue;
+            }
+            transaction.read(this);
+            if (store.validate(stamp)) {
+                return true;
+            }
+        }
+        writeLock();
+        try {
+            transaction.read(this);
+            return false;
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    /**
+     * Gets the array holding the states of the blocks
+     */
+    AtomicShortIntArray getStore() {
+        return store;
+    }
+
     @Override
     public int getPackedWidth() {
         return store.width();
@@ -431,26 +984,34 @@ public class AtomicPaletteBlockStore implements AtomicBlockStore {
         return store.tryLock();
     }
 
-    @Override
-    public boolean isBlockUniform() {
-        return store.isUniform();
+    /**
+     * Gets the number of bytes used by the block data of the store, excluding object headers.<br> <br> This can be summed over the loaded stores to account for the memory used by the block data.
+     *
+     * @return the memory usage, in bytes
+     */
+    public long getMemoryUsage() {
+        return store.getMemoryUsage();
     }
 
-    private void setAsMin(AtomicInteger i, int x) {
-        int old;
-        while ((old = i.get()) > x) {
-            if (i.compareAndSet(old, x)) {
-                return;
-            }
-        }
+    /**
+     * Gets if the block data is stored in direct memory
+     *
+     * @return true if the store is off-heap
+     */
+    public boolean isOffHeap() {
+        return store.isOffHeap();
     }
 
-    private void setAsMax(AtomicInteger i, int x) {
-        int old;
-        while ((old = i.get()) < x) {
-            if (i.compareAndSet(old, x)) {
-                return;
-            }
-        }
+    /**
+     * Resets all the blocks to zero and drops the block data.  This should be called when an off-heap store is unloaded, the direct memory is freed once the dropped data has been garbage
+     * collected.
+     */
+    public void release() {
+        store.release();
+    }
+
+    @Override
+    public boolean isBlockUniform() {
+        return store.isUniform();
     }
 }
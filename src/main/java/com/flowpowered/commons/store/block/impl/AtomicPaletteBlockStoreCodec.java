@@ -0,0 +1,250 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Encodes {@link AtomicPaletteBlockStore}s to a compact binary form and decodes them back.<br> <br> A store is encoded in one of three forms: uniform (a single state), palette (the packed array
+ * followed by the palette) or direct (one state per block). The packed array is read straight from the backing array, and decoded stores are created by the palette constructor directly from the
+ * buffer, so the packed data is never copied to an intermediate array. Ints are written and read in the byte order of the buffer.<br> <br> Encoding does not lock the store. The packed array is
+ * written before the palette, so every palette id found in the packed array is present in the palette, but data tearing may occur if the store is updated during encoding.
+ */
+public class AtomicPaletteBlockStoreCodec {
+    private static final byte VERSION = 1;
+    private static final byte UNIFORM = 0;
+    private static final byte PALETTE = 1;
+    private static final byte DIRECT = 2;
+    private static final int HEADER_SIZE = 3;
+    /**
+     * The largest shift for which the number of blocks fits in an int index
+     */
+    private static final int MAX_SHIFT = 10;
+    /**
+     * Palette ids are stored as shorts, so palette stores are never wider than 16 bits
+     */
+    private static final int MAX_WIDTH = 16;
+    private static final int CHANNEL_BUFFER_SIZE = 8192;
+
+    /**
+     * Gets the number of bytes needed to encode the store.<br> <br> If the store is updated after this call, the size of its encoded form may change.
+     *
+     * @param store the store
+     * @return the encoded size, in bytes
+     */
+    public static int getEncodedSize(AtomicPaletteBlockStore store) {
+        AtomicShortIntBackingArray s = store.getStore().getStore();
+        int[] palette = s.getPalette();
+        switch (palette.length) {
+            case 0:
+                return HEADER_SIZE + (s.length() << 2);
+            case 1:
+                return HEADER_SIZE + 4;
+            default:
+                return HEADER_SIZE + 1 + 4 + (s.getPackedLength() << 2) + 4 + (palette.length << 2);
+        }
+    }
+
+    /**
+     * Encodes the store into the buffer.
+     *
+     * @param store the store
+     * @param buffer the destination buffer
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public static void encode(AtomicPaletteBlockStore store, ByteBuffer buffer) {
+        try {
+            encode(store, buffer, null);
+        } catch (IOException e) {
+            throw new IllegalStateException("Buffer encoding should not perform I/O", e);
+        }
+    }
+
+    /**
+     * Encodes the store and writes it to the channel.
+     *
+     * @param store the store
+     * @param channel the destination channel
+     * @throws IOException if writing to the channel fails
+     */
+    public static void encode(AtomicPaletteBlockStore store, WritableByteChannel channel) throws IOException {
+        encode(store, channel, ByteBuffer.allocate(CHANNEL_BUFFER_SIZE));
+    }
+
+    /**
+     * Encodes the store and writes it to the channel, using the given buffer to batch the writes.  The buffer can be reused between calls, and can be a direct buffer to avoid copies by the
+     * channel.
+     *
+     * @param store the store
+     * @param channel the destination channel
+     * @param buffer the buffer used to batch writes, it must have room for at least 4 bytes
+     * @throws IOException if writing to the channel fails
+     */
+    public static void encode(AtomicPaletteBlockStore store, WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        encode(store, buffer, channel);
+        flush(buffer, channel);
+    }
+
+    /**
+     * Decodes a store from the buffer.  The position of the buffer is moved past the encoded store.
+     *
+     * @param buffer the source buffer
+     * @param storeState whether or not the old and new states of the dirty blocks are recorded
+     * @param dirtySize the maximum number of dirty blocks that can be recorded before overflowing
+     * @param offHeap whether or not the block data should be stored in direct memory
+     * @return the decoded store
+     * @throws BufferUnderflowException if the buffer does not contain the entire store
+     * @throws IllegalArgumentException if the buffer does not contain a valid encoded store
+     */
+    public static AtomicPaletteBlockStore decode(ByteBuffer buffer, boolean storeState, int dirtySize, boolean offHeap) {
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported encoding version " + version);
+        }
+        int shift = buffer.get();
+        if (shift < 0 || shift > MAX_SHIFT) {
+            throw new IllegalArgumentException("Shift must be between 0 and " + MAX_SHIFT + ": " + shift);
+        }
+        byte form = buffer.get();
+        int[] palette;
+        int width;
+        IntBuffer packed;
+        switch (form) {
+            case UNIFORM:
+                palette = new int[] {buffer.getInt()};
+                width = 0;
+                packed = IntBuffer.allocate(0);
+                break;
+            case PALETTE:
+                width = buffer.get();
+                if (width < 1 || width > MAX_WIDTH) {
+                    throw new IllegalArgumentException("Palette width must be between 1 and " + MAX_WIDTH + ": " + width);
+                }
+                packed = slice(buffer, getLength(buffer, "packed array"));
+                int paletteLength = getLength(buffer, "palette");
+                if (paletteLength < 2 || paletteLength > AtomicShortIntPaletteBackingArray.widthToPaletteSize(width)) {
+                    throw new IllegalArgumentException("Palette length " + paletteLength + " does not match the width " + width);
+                }
+                palette = new int[paletteLength];
+                buffer.asIntBuffer().get(palette);
+                buffer.position(buffer.position() + (palette.length << 2));
+                break;
+            case DIRECT:
+                width = 0;
+                palette = new int[0];
+                packed = slice(buffer, 1 << shift * 3);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown encoding form " + form);
+        }
+        return new AtomicPaletteBlockStore(shift, storeState, true, dirtySize, palette, width, packed, offHeap);
+    }
+
+    private static void encode(AtomicPaletteBlockStore store, ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        AtomicShortIntBackingArray s = store.getStore().getStore();
+        int[] palette = s.getPalette();
+        byte form = palette.length == 0 ? DIRECT : palette.length == 1 ? UNIFORM : PALETTE;
+        ensureRemaining(buffer, channel, HEADER_SIZE);
+        buffer.put(VERSION);
+        buffer.put((byte) store.getShift());
+        buffer.put(form);
+        switch (form) {
+            case UNIFORM:
+                ensureRemaining(buffer, channel, 4);
+                buffer.putInt(palette[0]);
+                break;
+            case PALETTE:
+                int packedLength = s.getPackedLength();
+                ensureRemaining(buffer, channel, 5);
+                buffer.put((byte) s.width());
+                buffer.putInt(packedLength);
+                for (int i = 0; i < packedLength; i++) {
+                    ensureRemaining(buffer, channel, 4);
+                    buffer.putInt(s.getPacked(i));
+                }
+                // The palette is read again, as it may have grown while the packed array was written
+                palette = s.getPalette();
+                ensureRemaining(buffer, channel, 4);
+                buffer.putInt(palette.length);
+                for (int state : palette) {
+                    ensureRemaining(buffer, channel, 4);
+                    buffer.putInt(state);
+                }
+                break;
+            case DIRECT:
+                int length = s.getPackedLength();
+                for (int i = 0; i < length; i++) {
+                    ensureRemaining(buffer, channel, 4);
+                    buffer.putInt(s.getPacked(i));
+                }
+                break;
+        }
+    }
+
+    /**
+     * Reads a length, which must not be negative and must not exceed the number of ints remaining in the buffer
+     */
+    private static int getLength(ByteBuffer buffer, String name) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining() >> 2) {
+            throw new IllegalArgumentException("Length of the " + name + " is out of range: " + length + ", " + (buffer.remaining() >> 2) + " ints remaining");
+        }
+        return length;
+    }
+
+    /**
+     * Returns a view of the next ints of the byte buffer, and moves its position past them.
+     */
+    private static IntBuffer slice(ByteBuffer buffer, int length) {
+        if (buffer.remaining() < length << 2) {
+            throw new BufferUnderflowException();
+        }
+        IntBuffer view = buffer.slice().order(buffer.order()).asIntBuffer();
+        view.limit(length);
+        buffer.position(buffer.position() + (length << 2));
+        return view;
+    }
+
+    /**
+     * Flushes the buffer to the channel if there is no room for the given number of bytes.  If there is no channel, the buffer is left as is.
+     */
+    private static void ensureRemaining(ByteBuffer buffer, WritableByteChannel channel, int bytes) throws IOException {
+        if (channel != null && buffer.remaining() < bytes) {
+            flush(buffer, channel);
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
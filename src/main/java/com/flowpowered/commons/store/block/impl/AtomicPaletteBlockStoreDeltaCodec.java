@@ -0,0 +1,288 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import com.flowpowered.commons.store.block.AtomicBlockStore;
+import com.flowpowered.math.vector.Vector3i;
+
+/**
+ * Encodes the blocks of an {@link AtomicBlockStore} that changed since the last reset of the dirty arrays, and applies the encoded changes to another store.<br> <br> The changed blocks are
+ * written in index order, grouped into runs of consecutive indexes.  Each run is written as the gap from the end of the previous run and its length, both as variable length ints, followed by the
+ * new states of its blocks.  If there are few distinct new states, they are written once in a palette and each block is written as a single byte palette id.  Ints are written and read in the byte
+ * order of the buffer.<br> <br> The changed blocks are taken from the dirty bitmap if the store has one, otherwise from the dirty arrays.  If the dirty arrays have overflowed, every block inside
+ * the dirty bounds is written.  The encoded state is the current state of each block, so a block changed several times is written once.  Encoding does not lock the store, data tearing may occur if
+ * the store is updated during encoding.
+ */
+public class AtomicPaletteBlockStoreDeltaCodec {
+    private static final byte VERSION = 1;
+    private static final int MAX_PALETTE_SIZE = 256;
+    private static final int HEADER_SIZE = 1 + 1 + 4 + 2 + 4;
+
+    /**
+     * Encodes the blocks changed since the last reset of the dirty arrays into the buffer.  Nothing is written if the buffer is too small.
+     *
+     * @param store the store
+     * @param buffer the destination buffer
+     * @return the number of bytes written
+     * @throws BufferOverflowException if the buffer is too small
+     */
+    public static int encode(AtomicBlockStore store, ByteBuffer buffer) {
+        int shift = store.getShift();
+        int[] indexes = getDirtyIndexes(store, shift);
+        int[] states = new int[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            states[i] = store.getFullData(indexes[i]);
+        }
+
+        TIntIntHashMap ids = new TIntIntHashMap();
+        TIntArrayList palette = new TIntArrayList();
+        for (int state : states) {
+            if (!ids.containsKey(state)) {
+                if (palette.size() == MAX_PALETTE_SIZE) {
+                    palette = null;
+                    break;
+                }
+                ids.put(state, palette.size());
+                palette.add(state);
+            }
+        }
+
+        int runs = 0;
+        int size = HEADER_SIZE;
+        int end = 0;
+        for (int start = 0, i; start < indexes.length; start = i) {
+            i = getRunEnd(indexes, start);
+            size += getVarIntSize(indexes[start] - end) + getVarIntSize(i - start);
+            end = indexes[i - 1] + 1;
+            runs++;
+        }
+        size += palette == null ? states.length << 2 : (palette.size() << 2) + states.length;
+        if (buffer.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+
+        buffer.put(VERSION);
+        buffer.put((byte) shift);
+        buffer.putInt(indexes.length);
+        buffer.putShort((short) (palette == null ? 0 : palette.size()));
+        if (palette != null) {
+            for (int i = 0; i < palette.size(); i++) {
+                buffer.putInt(palette.get(i));
+            }
+        }
+        buffer.putInt(runs);
+        end = 0;
+        for (int start = 0, i; start < indexes.length; start = i) {
+            i = getRunEnd(indexes, start);
+            putVarInt(buffer, indexes[start] - end);
+            putVarInt(buffer, i - start);
+            for (int j = start; j < i; j++) {
+                if (palette == null) {
+                    buffer.putInt(states[j]);
+                } else {
+                    buffer.put((byte) ids.get(states[j]));
+                }
+            }
+            end = indexes[i - 1] + 1;
+        }
+        return size;
+    }
+
+    /**
+     * Applies changes encoded by {@link #encode(AtomicBlockStore, ByteBuffer)} to the store.  The changed blocks are marked dirty in the store.
+     *
+     * @param store the store, it must be of the same size as the encoded store
+     * @param buffer the source buffer
+     * @return the number of blocks changed
+     * @throws BufferUnderflowException if the buffer does not contain the entire delta
+     * @throws IllegalArgumentException if the buffer does not contain a valid delta for the store
+     */
+    public static int apply(AtomicBlockStore store, ByteBuffer buffer) {
+        int storeShift = store.getShift();
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported encoding version " + version);
+        }
+        int shift = buffer.get();
+        if (shift != storeShift) {
+            throw new IllegalArgumentException("Delta was encoded for a store of shift " + shift + ", expected " + storeShift);
+        }
+        int blocks = buffer.getInt();
+        int[] palette = new int[buffer.getShort() & 0xFFFF];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = buffer.getInt();
+        }
+        int runs = buffer.getInt();
+        int doubleShift = shift << 1;
+        int mask = (1 << shift) - 1;
+        int length = 1 << (shift * 3);
+        int index = 0;
+        int applied = 0;
+        for (int run = 0; run < runs; run++) {
+            int gap = getVarInt(buffer);
+            if (gap < 0 || gap > length - index) {
+                throw new IllegalArgumentException("Gap of " + gap + " blocks after index " + index + " is outside of the store");
+            }
+            index += gap;
+            int runLength = getVarInt(buffer);
+            if (runLength < 0 || runLength > length - index || runLength > blocks - applied) {
+                throw new IllegalArgumentException("Run of " + runLength + " blocks at index " + index + " is outside of the store");
+            }
+            for (int end = index + runLength; index < end; index++) {
+                int state;
+                if (palette.length == 0) {
+                    state = buffer.getInt();
+                } else {
+                    int id = buffer.get() & 0xFF;
+                    if (id >= palette.length) {
+                        throw new IllegalArgumentException("Palette id " + id + " at index " + index + " is not in the palette of length " + palette.length);
+                    }
+                    state = palette[id];
+                }
+                store.setBlock(index & mask, index >> doubleShift, (index >> shift) & mask, (short) (state >> 16), (short) state);
+            }
+            applied += runLength;
+        }
+        return applied;
+    }
+
+    /**
+     * Gets the sorted indexes of the dirty blocks, without duplicates
+     */
+    private static int[] getDirtyIndexes(AtomicBlockStore store, int shift) {
+        if (store instanceof AtomicPaletteBlockStore && ((AtomicPaletteBlockStore) store).hasDirtyBitmap()) {
+            AtomicPaletteBlockStore palette = (AtomicPaletteBlockStore) store;
+            TIntArrayList indexes = new TIntArrayList();
+            for (int i = palette.getNextDirtyIndex(0); i != -1; i = palette.getNextDirtyIndex(i + 1)) {
+                indexes.add(i);
+            }
+            return indexes.toArray();
+        }
+        int[] indexes = null;
+        DirtyBlockTracker tracker = getDirtyTracker(store);
+        if (tracker != null) {
+            // A single snapshot, the count and the entries of the dirty arrays can't be read separately while the store is updated
+            indexes = tracker.copyIndexes();
+        } else if (!store.isDirtyOverflow()) {
+            indexes = new int[store.getDirtyBlocks()];
+            for (int i = 0; i < indexes.length; i++) {
+                Vector3i block = store.getDirtyBlock(i);
+                if (block == null) {
+                    // The dirty arrays overflowed or were reset concurrently, the bounds are encoded instead
+                    indexes = null;
+                    break;
+                }
+                indexes[i] = (block.getY() << (shift << 1)) + (block.getZ() << shift) + block.getX();
+            }
+        }
+        if (indexes != null) {
+            Arrays.sort(indexes);
+            int unique = 0;
+            for (int i = 0; i < indexes.length; i++) {
+                if (unique == 0 || indexes[i] != indexes[unique - 1]) {
+                    indexes[unique++] = indexes[i];
+                }
+            }
+            return Arrays.copyOf(indexes, unique);
+        }
+        int side = 1 << shift;
+        Vector3i min = store.getMinDirty().max(0, 0, 0);
+        Vector3i max = store.getMaxDirty().min(side - 1, side - 1, side - 1);
+        if (min.getX() > max.getX() || min.getY() > max.getY() || min.getZ() > max.getZ()) {
+            return new int[0];
+        }
+        TIntArrayList region = new TIntArrayList();
+        for (int y = min.getY(); y <= max.getY(); y++) {
+            for (int z = min.getZ(); z <= max.getZ(); z++) {
+                for (int x = min.getX(); x <= max.getX(); x++) {
+                    region.add((y << (shift << 1)) + (z << shift) + x);
+                }
+            }
+        }
+        return region.toArray();
+    }
+
+    /**
+     * Gets the dirty block tracker of the store, or null if the store does not use one
+     */
+    private static DirtyBlockTracker getDirtyTracker(AtomicBlockStore store) {
+        if (store instanceof AtomicPaletteBlockStore) {
+            return ((AtomicPaletteBlockStore) store).getDirtyTracker();
+        }
+        if (store instanceof ConfinedPaletteBlockStore) {
+            return ((ConfinedPaletteBlockStore) store).getDirtyTracker();
+        }
+        if (store instanceof AtomicOctreeBlockStore) {
+            return ((AtomicOctreeBlockStore) store).getDirtyTracker();
+        }
+        return null;
+    }
+
+    /**
+     * Gets the end, exclusive, of the run of consecutive indexes starting at the given position
+     */
+    private static int getRunEnd(int[] indexes, int start) {
+        int end = start + 1;
+        while (end < indexes.length && indexes[end] == indexes[end - 1] + 1) {
+            end++;
+        }
+        return end;
+    }
+
+    private static int getVarIntSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Variable length int is too long");
+    }
+}
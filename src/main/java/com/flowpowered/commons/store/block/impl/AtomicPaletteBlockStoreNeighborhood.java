@@ -0,0 +1,128 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.Arrays;
+
+/**
+ * Copies the blocks of a store and a border taken from its neighbours into a single padded array, as used for meshing and light propagation.<br> <br> The stores are given as an array of 27
+ * entries, the store at the offset (dx, dy, dz) from the center store, where each offset is -1, 0 or 1, is at the index (dy + 1) * 9 + (dz + 1) * 3 + (dx + 1).  Missing neighbours may be null,
+ * their border is then filled with a default state.<br> <br> The padded array has a side of the store side plus twice the padding.  The block (x, y, z) of the center store is at the index ((y +
+ * padding) * paddedSide + z + padding) * paddedSide + x + padding.  Each store is copied by rows straight from its backing array, and the palette is read once per store.  Data tearing may occur if
+ * the stores are updated during the copy.
+ */
+public class AtomicPaletteBlockStoreNeighborhood {
+    private static final int NEIGHBORHOOD_SIZE = 27;
+
+    /**
+     * Gets the index of the store at the given offset from the center store in the neighbourhood array
+     *
+     * @param dx the x offset, -1, 0 or 1
+     * @param dy the y offset, -1, 0 or 1
+     * @param dz the z offset, -1, 0 or 1
+     * @return the index
+     */
+    public static int getNeighborIndex(int dx, int dy, int dz) {
+        return (dy + 1) * 9 + (dz + 1) * 3 + dx + 1;
+    }
+
+    /**
+     * Copies the blocks of the center store and a border of its neighbours into the padded array.
+     *
+     * @param stores the center store and its neighbours, the center store must not be null
+     * @param padding the thickness of the border, at most the store side
+     * @param outside the state used for the border of missing neighbours
+     * @param array the destination array, or null to create a new array
+     * @return the destination array
+     */
+    public static int[] getPaddedBlocks(AtomicPaletteBlockStore[] stores, int padding, int outside, int[] array) {
+        if (stores.length != NEIGHBORHOOD_SIZE) {
+            throw new IllegalArgumentException("Expected " + NEIGHBORHOOD_SIZE + " stores, got " + stores.length);
+        }
+        AtomicPaletteBlockStore center = stores[getNeighborIndex(0, 0, 0)];
+        if (center == null) {
+            throw new IllegalArgumentException("The center store is missing");
+        }
+        int shift = center.getShift();
+        int side = 1 << shift;
+        if (padding < 0 || padding > side) {
+            throw new IllegalArgumentException("The padding must be between 0 and " + side + ", got " + padding);
+        }
+        int paddedSide = side + (padding << 1);
+        int length = paddedSide * paddedSide * paddedSide;
+        if (array == null || array.length != length) {
+            array = new int[length];
+        }
+        int yStride = paddedSide * paddedSide;
+        for (int dy = -1; dy <= 1; dy++) {
+            int sizeY = dy == 0 ? side : padding;
+            if (sizeY == 0) {
+                continue;
+            }
+            for (int dz = -1; dz <= 1; dz++) {
+                int sizeZ = dz == 0 ? side : padding;
+                if (sizeZ == 0) {
+                    continue;
+                }
+                for (int dx = -1; dx <= 1; dx++) {
+                    int sizeX = dx == 0 ? side : padding;
+                    if (sizeX == 0) {
+                        continue;
+                    }
+                    int offset = getStart(dy, padding, side) * yStride + getStart(dz, padding, side) * paddedSide + getStart(dx, padding, side);
+                    AtomicPaletteBlockStore store = stores[getNeighborIndex(dx, dy, dz)];
+                    if (store == null) {
+                        fill(array, offset, sizeX, sizeY, sizeZ, yStride, paddedSide, outside);
+                        continue;
+                    }
+                    if (store.getShift() != shift) {
+                        throw new IllegalArgumentException("All the stores must have the same size");
+                    }
+                    // The border is taken from the side of the neighbour facing the center store
+                    int x = dx < 0 ? side - padding : 0;
+                    int y = dy < 0 ? side - padding : 0;
+                    int z = dz < 0 ? side - padding : 0;
+                    store.getBlocks(x, y, z, sizeX, sizeY, sizeZ, array, offset, yStride, paddedSide);
+                }
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Gets the coordinate, in the padded array, of the first block copied from a store at the given offset on an axis
+     */
+    private static int getStart(int offset, int padding, int side) {
+        return offset < 0 ? 0 : offset == 0 ? padding : padding + side;
+    }
+
+    private static void fill(int[] array, int offset, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int value) {
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                int rowStart = offset + y * yStride + z * zStride;
+                Arrays.fill(array, rowStart, rowStart + sizeX, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import com.flowpowered.commons.store.block.BlockVisitor;
+
+/**
+ * An immutable view of the blocks of an {@link AtomicPaletteBlockStore} at the time the snapshot was taken.<br> <br> Taking a snapshot freezes the backing array of the store instead of copying it.
+ * The store copies the backing array before its next update, so the snapshot is consistent and reading it never blocks the threads updating the store.  A snapshot is stale once the store has been
+ * updated after it was taken.<br> <br> If the store is off-heap, the snapshot must not be used after the store is released.
+ */
+public class AtomicPaletteBlockStoreSnapshot {
+    private final AtomicPaletteBlockStore source;
+    private final AtomicShortIntBackingArray store;
+    private final long version;
+    private final int shift;
+    private final int doubleShift;
+
+    AtomicPaletteBlockStoreSnapshot(AtomicPaletteBlockStore source, AtomicShortIntBackingArray store, long version) {
+        this.source = source;
+        this.store = store;
+        this.version = version;
+        this.shift = source.getShift();
+        this.doubleShift = shift << 1;
+    }
+
+    /**
+     * Gets the version of the store when the snapshot was taken
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets if the store may have been updated since the snapshot was taken.<br> <br> Replacing the backing array of the store, for example when compressing it, also makes the snapshot stale.
+     *
+     * @return true if the snapshot is stale
+     */
+    public boolean isStale() {
+        return source.getVersion() != version;
+    }
+
+    /**
+     * Gets the log2 of the side of the store
+     *
+     * @return the shift
+     */
+    public int getShift() {
+        return shift;
+    }
+
+    /**
+     * Gets the full state of the block at (x, y, z)
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @return the full state of the block
+     */
+    public int getFullData(int x, int y, int z) {
+        return store.get((y << doubleShift) + (z << shift) + x);
+    }
+
+    /**
+     * Gets the full state of the block at the given index
+     *
+     * @param index the block index
+     * @return the full state of the block
+     */
+    public int getFullData(int index) {
+        return store.get(index);
+    }
+
+    /**
+     * Gets the block id of the block at (x, y, z)
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @return the block id
+     */
+    public short getBlockId(int x, int y, int z) {
+        return (short) (getFullData(x, y, z) >> 16);
+    }
+
+    /**
+     * Gets the block data of the block at (x, y, z)
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     * @return the block data
+     */
+    public short getData(int x, int y, int z) {
+        return (short) getFullData(x, y, z);
+    }
+
+    /**
+     * Gets an array containing the full state of every block
+     *
+     * @return the array
+     */
+    public int[] getFullArray() {
+        int[] array = new int[store.length()];
+        store.getArray(array);
+        return array;
+    }
+
+    /**
+     * Gets an array containing the block id of every block
+     *
+     * @param array the array to use, or null to create a new array
+     * @return the array
+     */
+    public short[] getBlockIdArray(short[] array) {
+        int length = store.length();
+        if (array == null || array.length != length) {
+            array = new short[length];
+        }
+        for (int i = 0; i < length; i++) {
+            array[i] = (short) (store.get(i) >> 16);
+        }
+        return array;
+    }
+
+    /**
+     * Gets an array containing the block data of every block
+     *
+     * @param array the array to use, or null to create a new array
+     * @return the array
+     */
+    public short[] getDataArray(short[] array) {
+        int length = store.length();
+        if (array == null || array.length != length) {
+            array = new short[length];
+        }
+        for (int i = 0; i < length; i++) {
+            array[i] = (short) store.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Copies the full states of the blocks of a cuboid region into the given array.  The region is described as for {@link AtomicPaletteBlockStore#getBlocks(int, int, int, int, int, int, int[])}.
+     *
+     * @param x the x coordinate of the first block of the region
+     * @param y the y coordinate of the first block of the region
+     * @param z the z coordinate of the first block of the region
+     * @param sizeX the size of the region along the x axis
+     * @param sizeY the size of the region along the y axis
+     * @param sizeZ the size of the region along the z axis
+     * @param array the array to use, or null to create a new array
+     * @return the array
+     */
+    public int[] getBlocks(int x, int y, int z, int sizeX, int sizeY, int sizeZ, int[] array) {
+        array = BlockRegions.getArray(array, sizeX, sizeY, sizeZ);
+        if (BlockRegions.check(shift, x, y, z, sizeX, sizeY, sizeZ)) {
+            store.get((y << doubleShift) + (z << shift) + x, sizeX, sizeY, sizeZ, 1 << doubleShift, 1 << shift, array, 0);
+        }
+        return array;
+    }
+
+    /**
+     * Visits every block of the snapshot whose state matches the visitor, in index order
+     *
+     * @param visitor the visitor
+     * @return the number of blocks visited
+     */
+    public int visitBlocks(BlockVisitor visitor) {
+        return store.visit(visitor);
+    }
+
+    /**
+     * Gets the palette of the snapshot, or an array of zero length if no palette is in use
+     *
+     * @return the palette
+     */
+    public int[] getPalette() {
+        return store.getPalette();
+    }
+
+    /**
+     * Gets if every block of the snapshot has the same state
+     *
+     * @return true if the snapshot is uniform
+     */
+    public boolean isBlockUniform() {
+        return store instanceof AtomicShortIntUniformBackingArray;
+    }
+}
@@ -23,12 +23,16 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.hash.TIntHashSet;
 
+import com.flowpowered.commons.store.block.BlockVisitor;
+
 /**
  * An integer array that has a short index.  The array is atomic and is backed by a palette based lookup system.
  */
@@ -37,22 +41,61 @@ public class AtomicShortIntArray {
      * The length of the array
      */
     private final int length;
+    /**
+     * If the backing arrays are stored in direct memory
+     */
+    private final boolean offHeap;
+    /**
+     * If the palette widths may be any number of bits, instead of a power of 2
+     */
+    private final boolean compactWidths;
     /**
      * A reference to the store.  When the palette fills, or when the store is compressed.  A new store is created.
      */
     private final AtomicReference<AtomicShortIntBackingArray> store = new AtomicReference<>();
     /**
-     * Locks<br> A ReadWrite lock is used to managing locking<br> When copying to a new store instance, and updating to new the store reference, all updates must be stopped.  The write lock is used as
-     * the resize lock.<br> When making changes to the data stored in an array instance, multiple threads can access the array concurrently.  The read lock is used for the update lock. Reads to the
-     * array are atomic and do not require any locking. <br>
+     * Incremented each time the store is replaced.  Only updated while the array is locked exclusively.
+     */
+    private volatile long version = 0;
+    /**
+     * Incremented when the array is locked exclusively and again when it is unlocked, so it is odd while the array is held exclusively.  It starts at 2 so that stamps are never 0.
+     */
+    private volatile int exclusiveSequence = 2;
+    /**
+     * Locks<br> When copying to a new store instance, and updating to new the store reference, all updates must be stopped.  The resize lock is held while doing so, and the update gate is closed.<br>
+     * When making changes to the data stored in an array instance, multiple threads can access the array concurrently.  Updating threads enter the update gate, which does not make them share a
+     * counter, and only wait if the gate is closed by a resizing thread.  Reads to the array are atomic and do not require any locking. <br>
      */
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    private final Lock resizeLock = lock.writeLock();
-    private final Lock updateLock = lock.readLock();
+    private final ReentrantLock resizeLock = new ReentrantLock();
+    private final StripedUpdateGate updateGate = new StripedUpdateGate();
 
     public AtomicShortIntArray(int length) {
+        this(length, false);
+    }
+
+    /**
+     * Creates a new array.  If the array is off-heap, the backing arrays are stored in direct memory and {@link #release()} should be called once the array is no longer used.
+     *
+     * @param length the length of the array
+     * @param offHeap whether or not the backing arrays should be stored in direct memory
+     */
+    public AtomicShortIntArray(int length, boolean offHeap) {
+        this(length, offHeap, false);
+    }
+
+    /**
+     * Creates a new array.  If the array uses compact widths, the width of the palette is the smallest number of bits that can hold the palette ids, instead of being rounded up to a power of 2.
+     * This reduces the memory used by the packed array at the cost of more frequent palette expansions.
+     *
+     * @param length the length of the array
+     * @param offHeap whether or not the backing arrays should be stored in direct memory
+     * @param compactWidths whether or not the palette width may be any number of bits
+     */
+    public AtomicShortIntArray(int length, boolean offHeap, boolean compactWidths) {
         this.length = length;
-        store.set(new AtomicShortIntUniformBackingArray(length));
+        this.offHeap = offHeap;
+        this.compactWidths = compactWidths;
+        store.set(AtomicShortIntUniformBackingArray.getShared(length, 0));
     }
 
     /**
@@ -73,6 +116,33 @@ public class AtomicShortIntArray {
         return length;
     }
 
+    /**
+     * Gets if the backing arrays are stored in direct memory
+     *
+     * @return true if the array is off-heap
+     */
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Gets if the palette width may be any number of bits
+     *
+     * @return true if compact widths are used
+     */
+    public boolean isCompactWidths() {
+        return compactWidths;
+    }
+
+    /**
+     * Gets the number of bytes used by the data of the backing array, excluding object headers
+     *
+     * @return the memory usage, in bytes
+     */
+    public long getMemoryUsage() {
+        return store.get().getMemoryUsage();
+    }
+
     /**
      * Gets the size of the internal palette
      *
@@ -110,39 +180,276 @@ public class AtomicShortIntArray {
      */
     public int set(int i, int newValue) {
         while (true) {
-            try {
-                updateLock.lock();
+            int slot = updateGate.enter();
+            if (slot != StripedUpdateGate.CLOSED) {
                 try {
-                    return store.get().set(i, newValue);
+                    AtomicShortIntBackingArray s = store.get();
+                    if (!s.isFrozen()) {
+                        return s.set(i, newValue);
+                    } else if (s instanceof AtomicShortIntUniformBackingArray && s.get(i) == newValue) {
+                        // Writing the shared value is a no-op, there is no need to expand the store
+                        return newValue;
+                    }
+                } catch (PaletteFullException pfe) {
+                    // The store must be resized, this is done below
                 } finally {
-                    updateLock.unlock();
+                    updateGate.exit(slot);
                 }
+            } else if (!resizeLock.isHeldByCurrentThread()) {
+                awaitResize();
+                continue;
+            }
+            lockExclusive();
+            try {
+                thaw();
+                return store.get().set(i, newValue);
             } catch (PaletteFullException pfe) {
-                resizeLock.lock();
+                expand();
+            } finally {
+                unlockExclusive();
+            }
+        }
+    }
+
+    /**
+     * Sets every element of a cuboid region to the given value.  The update gate is only entered once for the entire region.<br> <br> The region is described as for {@link
+     * AtomicShortIntBackingArray#fill(int, int, int, int, int, int, int)}.  If the region covers the entire array, the store is replaced by a uniform store.
+     *
+     * @param index the index of the first element of the region
+     * @param sizeX the number of consecutive elements in each row
+     * @param sizeY the number of layers
+     * @param sizeZ the number of rows in each layer
+     * @param yStride the distance between two layers
+     * @param zStride the distance between two rows
+     * @param value the new value
+     */
+    public void fill(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int value) {
+        if (sizeX * sizeY * sizeZ == length) {
+            lockExclusive();
+            try {
+                setStore(AtomicShortIntUniformBackingArray.getShared(length, value));
+            } finally {
+                unlockExclusive();
+            }
+            return;
+        }
+        while (true) {
+            int slot = updateGate.enter();
+            if (slot != StripedUpdateGate.CLOSED) {
                 try {
+                    AtomicShortIntBackingArray s = store.get();
+                    if (!s.isFrozen()) {
+                        s.fill(index, sizeX, sizeY, sizeZ, yStride, zStride, value);
+                        return;
+                    }
+                } catch (PaletteFullException pfe) {
+                    // The store must be resized, this is done below
+                } finally {
+                    updateGate.exit(slot);
+                }
+            } else if (!resizeLock.isHeldByCurrentThread()) {
+                awaitResize();
+                continue;
+            }
+            lockExclusive();
+            try {
+                thaw();
+                while (true) {
                     try {
-                        return store.get().set(i, newValue);
-                    } catch (PaletteFullException pfe2) {
-                        if (store.get().isPaletteMaxSize()) {
-                            store.set(new AtomicShortIntDirectBackingArray(store.get()));
-                        } else {
-                            store.set(new AtomicShortIntPaletteBackingArray(store.get(), true));
-                        }
+                        store.get().fill(index, sizeX, sizeY, sizeZ, yStride, zStride, value);
+                        return;
+                    } catch (PaletteFullException pfe) {
+                        expand();
                     }
+                }
+            } finally {
+                unlockExclusive();
+            }
+        }
+    }
+
+    /**
+     * Sets the elements of a cuboid region to the values of the given array.  The update gate is only entered once for the entire region.<br> <br> The region is described as for {@link
+     * AtomicShortIntBackingArray#set(int, int, int, int, int, int, int[], int)}.
+     *
+     * @param index the index of the first element of the region
+     * @param sizeX the number of consecutive elements in each row
+     * @param sizeY the number of layers
+     * @param sizeZ the number of rows in each layer
+     * @param yStride the distance between two layers
+     * @param zStride the distance between two rows
+     * @param values the source array
+     * @param offset the index of the first value in the source array
+     */
+    public void set(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int[] values, int offset) {
+        while (true) {
+            int slot = updateGate.enter();
+            if (slot != StripedUpdateGate.CLOSED) {
+                try {
+                    AtomicShortIntBackingArray s = store.get();
+                    if (!s.isFrozen()) {
+                        s.set(index, sizeX, sizeY, sizeZ, yStride, zStride, values, offset);
+                        return;
+                    }
+                } catch (PaletteFullException pfe) {
+                    // The store must be resized, this is done below
                 } finally {
-                    resizeLock.unlock();
+                    updateGate.exit(slot);
+                }
+            } else if (!resizeLock.isHeldByCurrentThread()) {
+                awaitResize();
+                continue;
+            }
+            lockExclusive();
+            try {
+                thaw();
+                while (true) {
+                    try {
+                        store.get().set(index, sizeX, sizeY, sizeZ, yStride, zStride, values, offset);
+                        return;
+                    } catch (PaletteFullException pfe) {
+                        expand();
+                    }
                 }
+            } finally {
+                unlockExclusive();
             }
         }
     }
 
+    /**
+     * Copies the elements of a cuboid region into the given array.<br> <br> The region is described as for {@link AtomicShortIntBackingArray#get(int, int, int, int, int, int, int[], int)}.  Data
+     * tearing may occur if the store is updated during this method call.
+     *
+     * @param index the index of the first element of the region
+     * @param sizeX the number of consecutive elements in each row
+     * @param sizeY the number of layers
+     * @param sizeZ the number of rows in each layer
+     * @param yStride the distance between two layers
+     * @param zStride the distance between two rows
+     * @param values the destination array
+     * @param offset the index of the first value in the destination array
+     */
+    public void get(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int[] values, int offset) {
+        store.get().get(index, sizeX, sizeY, sizeZ, yStride, zStride, values, offset);
+    }
+
+    /**
+     * Copies the elements of a cuboid region into a cuboid region of the given array.<br> <br> The region is described as for {@link AtomicShortIntBackingArray#get(int, int, int, int, int, int,
+     * int[], int, int, int)}.  Data tearing may occur if the store is updated during this method call.
+     *
+     * @param index the index of the first element of the region
+     * @param sizeX the number of consecutive elements in each row
+     * @param sizeY the number of layers
+     * @param sizeZ the number of rows in each layer
+     * @param yStride the distance between two layers
+     * @param zStride the distance between two rows
+     * @param values the destination array
+     * @param offset the index of the first value in the destination array
+     * @param valuesYStride the distance between two layers in the destination array
+     * @param valuesZStride the distance between two rows in the destination array
+     */
+    public void get(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int[] values, int offset, int valuesYStride, int valuesZStride) {
+        store.get().get(index, sizeX, sizeY, sizeZ, yStride, zStride, values, offset, valuesYStride, valuesZStride);
+    }
+
+    /**
+     * Copies every element of the array into the given array.  The packed array is unpacked in bulk.  Data tearing may occur if the store is updated during this method call.
+     *
+     * @param values the destination array, or null to create a new array
+     * @return the destination array
+     */
+    public int[] getArray(int[] values) {
+        if (values == null || values.length != length) {
+            values = new int[length];
+        }
+        store.get().getArray(values);
+        return values;
+    }
+
+    /**
+     * Copies every element of the array into the given buffer, starting at its position, without allocating.  The position of the buffer is advanced past the elements.  Data tearing may occur if
+     * the store is updated during this method call.
+     *
+     * @param values the destination buffer
+     * @throws IllegalArgumentException if the buffer has fewer elements remaining than the length of the array
+     */
+    public void writeArray(IntBuffer values) {
+        if (values.remaining() < length) {
+            throw new IllegalArgumentException("Buffer too small! Expected: " + length + " Got: " + values.remaining());
+        }
+        store.get().writeArray(values);
+    }
+
+    /**
+     * Copies the lower 16 bits of every element of the array, shifted right by the given amount, into the given array without allocating.  Data tearing may occur if the store is updated during this
+     * method call.
+     *
+     * @param values the destination array
+     * @param shift the number of bits to shift the elements right by, 16 for the block ids and 0 for the block data
+     * @throws IllegalArgumentException if the array is not of the same length as this array
+     */
+    public void getArray(short[] values, int shift) {
+        if (values.length != length) {
+            throw new IllegalArgumentException("Invalid array size! Expected: " + length + " Got: " + values.length);
+        }
+        store.get().getArray(values, shift);
+    }
+
+    /**
+     * Copies the lower 16 bits of every element of the array, shifted right by the given amount, into the given buffer, starting at its position, without allocating.  The position of the buffer is
+     * advanced past the elements.  Data tearing may occur if the store is updated during this method call.
+     *
+     * @param values the destination buffer
+     * @param shift the number of bits to shift the elements right by, 16 for the block ids and 0 for the block data
+     * @throws IllegalArgumentException if the buffer has fewer elements remaining than the length of the array
+     */
+    public void writeArray(ShortBuffer values, int shift) {
+        if (values.remaining() < length) {
+            throw new IllegalArgumentException("Buffer too small! Expected: " + length + " Got: " + values.remaining());
+        }
+        store.get().writeArray(values, shift);
+    }
+
+    /**
+     * Visits every element whose value matches the visitor, in index order.  Uniform and palette arrays test the visitor against their palette before reading any element.  Data tearing may occur
+     * if the store is updated during this method call.
+     *
+     * @param visitor the visitor
+     * @return the number of elements visited
+     */
+    public int visit(BlockVisitor visitor) {
+        return store.get().visit(visitor);
+    }
+
+    /**
+     * Gets the number of elements with the given value.  This is a constant time lookup for uniform and palette arrays, which keep a count for each palette entry.
+     *
+     * @param value the value
+     * @return the number of elements
+     */
+    public int getValueCount(int value) {
+        return store.get().getValueCount(value);
+    }
+
+    /**
+     * Gets the number of elements with each value.  For uniform and palette arrays, this takes a time proportional to the size of the palette.
+     *
+     * @return a map of the values in use to their counts
+     */
+    public TIntIntHashMap getValueCounts() {
+        TIntIntHashMap counts = new TIntIntHashMap();
+        store.get().getValueCounts(counts);
+        return counts;
+    }
+
     /**
      * Sets the array equal to the given array.  The array should be the same length as this array
      *
      * @param initial the array containing the new values
      */
     public void set(int[] initial) {
-        resizeLock.lock();
+        lockExclusive();
         try {
             if (initial.length != length) {
                 throw new IllegalArgumentException("Array length mismatch, expected " + length + ", got " + initial.length);
@@ -150,14 +457,14 @@ public class AtomicShortIntArray {
             int unique = AtomicShortIntArray.getUnique(initial);
             int allowedPalette = AtomicShortIntPaletteBackingArray.getAllowedPalette(length);
             if (unique == 1) {
-                store.set(new AtomicShortIntUniformBackingArray(length, initial[0]));
+                setStore(AtomicShortIntUniformBackingArray.getShared(length, initial[0]));
             } else if (unique > allowedPalette) {
-                store.set(new AtomicShortIntDirectBackingArray(length, initial));
+                setStore(new AtomicShortIntDirectBackingArray(length, initial, offHeap));
             } else {
-                store.set(new AtomicShortIntPaletteBackingArray(length, unique, initial));
+                setStore(new AtomicShortIntPaletteBackingArray(length, unique, initial, offHeap, compactWidths));
             }
         } finally {
-            resizeLock.unlock();
+            unlockExclusive();
         }
     }
 
@@ -167,14 +474,14 @@ public class AtomicShortIntArray {
      * @param initial the array containing the new values
      */
     public void uncompressedSet(int[] initial) {
-        resizeLock.lock();
+        lockExclusive();
         try {
             if (initial.length != length) {
                 throw new IllegalArgumentException("Array length mismatch, expected " + length + ", got " + initial.length);
             }
-            store.set(new AtomicShortIntDirectBackingArray(length, initial));
+            setStore(new AtomicShortIntDirectBackingArray(length, initial, offHeap));
         } finally {
-            resizeLock.unlock();
+            unlockExclusive();
         }
     }
 
@@ -186,17 +493,29 @@ public class AtomicShortIntArray {
      * @param variableWidthBlockArray the array containing the new values, packed into ints
      */
     public void set(int[] palette, int blockArrayWidth, int[] variableWidthBlockArray) {
-        resizeLock.lock();
+        set(palette, blockArrayWidth, IntBuffer.wrap(variableWidthBlockArray));
+    }
+
+    /**
+     * Sets the array equal to the given palette based array.  The main array should be the same length as this array.<br> <br> The packed values are read from the remaining elements of the buffer,
+     * without copying them to an intermediate array.  The position of the buffer is not changed.
+     *
+     * @param palette the palette, if the palette is of length 0, variableWidthBlockArray contains the data, in flat format
+     * @param blockArrayWidth the with of each entry in the main array
+     * @param variableWidthBlockArray the buffer containing the new values, packed into ints
+     */
+    public void set(int[] palette, int blockArrayWidth, IntBuffer variableWidthBlockArray) {
+        lockExclusive();
         try {
             if (palette.length == 0) {
-                store.set(new AtomicShortIntDirectBackingArray(length, variableWidthBlockArray));
+                setStore(new AtomicShortIntDirectBackingArray(length, variableWidthBlockArray, offHeap));
             } else if (palette.length == 1) {
-                store.set(new AtomicShortIntUniformBackingArray(length, palette[0]));
+                setStore(AtomicShortIntUniformBackingArray.getShared(length, palette[0]));
             } else {
-                store.set(new AtomicShortIntPaletteBackingArray(length, palette, blockArrayWidth, variableWidthBlockArray));
+                setStore(new AtomicShortIntPaletteBackingArray(length, palette, blockArrayWidth, variableWidthBlockArray, offHeap));
             }
         } finally {
-            resizeLock.unlock();
+            unlockExclusive();
         }
     }
 
@@ -210,64 +529,224 @@ public class AtomicShortIntArray {
      */
     public boolean compareAndSet(int i, int expect, int update) {
         while (true) {
-            try {
-                updateLock.lock();
+            int slot = updateGate.enter();
+            if (slot != StripedUpdateGate.CLOSED) {
                 try {
-                    return store.get().compareAndSet(i, expect, update);
+                    AtomicShortIntBackingArray s = store.get();
+                    if (!s.isFrozen()) {
+                        return s.compareAndSet(i, expect, update);
+                    }
+                } catch (PaletteFullException pfe) {
+                    // The store must be resized, this is done below
                 } finally {
-                    updateLock.unlock();
+                    updateGate.exit(slot);
                 }
+            } else if (!resizeLock.isHeldByCurrentThread()) {
+                awaitResize();
+                continue;
+            }
+            lockExclusive();
+            try {
+                thaw();
+                return store.get().compareAndSet(i, expect, update);
             } catch (PaletteFullException pfe) {
-                resizeLock.lock();
-                try {
-                    if (store.get().isPaletteMaxSize()) {
-                        store.set(new AtomicShortIntDirectBackingArray(store.get()));
-                    } else {
-                        store.set(new AtomicShortIntPaletteBackingArray(store.get(), true));
+                expand();
+            } finally {
+                unlockExclusive();
+            }
+        }
+    }
+
+    /**
+     * Sets the elements at the given indexes, but only if the previous value of every element was its expected value.  Either every element is set, or none is.<br> <br> This costs the same as
+     * checking and setting the values while holding {@link #lock()}: the array is held exclusively, which blocks every writer, while the values are checked again and set.  The only saving is a
+     * first check without locking, so that an update that is bound to fail does not block writers.  Reads are not blocked, so readers that don't lock the array or validate an optimistic read may
+     * see part of the update.
+     *
+     * @param indexes the indexes, which must be distinct
+     * @param expect the expected values
+     * @param update the new values
+     * @return true on success
+     */
+    public boolean compareAndSet(int[] indexes, int[] expect, int[] update) {
+        if (expect.length != indexes.length || update.length != indexes.length) {
+            throw new IllegalArgumentException("The index, expected value and new value arrays must have the same length");
+        }
+        if (!matches(store.get(), indexes, expect)) {
+            return false;
+        }
+        lockExclusive();
+        try {
+            thaw();
+            if (!matches(store.get(), indexes, expect)) {
+                return false;
+            }
+            for (int i = 0; i < indexes.length; i++) {
+                while (true) {
+                    try {
+                        store.get().set(indexes[i], update[i]);
+                        break;
+                    } catch (PaletteFullException pfe) {
+                        expand();
                     }
-                } finally {
-                    resizeLock.unlock();
                 }
             }
+            return true;
+        } finally {
+            unlockExclusive();
+        }
+    }
+
+    private static boolean matches(AtomicShortIntBackingArray s, int[] indexes, int[] expect) {
+        for (int i = 0; i < indexes.length; i++) {
+            if (s.get(indexes[i]) != expect[i]) {
+                return false;
+            }
         }
+        return true;
     }
 
     /**
-     * Attempts to compress the array
+     * Replaces the store.  The array must be locked exclusively when calling this method.
      */
-    public void compress() {
-        resizeLock.lock();
+    private void setStore(AtomicShortIntBackingArray s) {
+        store.set(s);
+        version++;
+    }
+
+    /**
+     * Replaces the store by a copy if it is frozen, so that it can be updated.  A frozen uniform store is replaced directly by a palette with room for a new value, since a uniform copy would have
+     * to be expanded by the first update that changes a value.  The array must be locked exclusively when calling this method.
+     */
+    private void thaw() {
+        AtomicShortIntBackingArray s = store.get();
+        if (!s.isFrozen()) {
+            return;
+        }
+        if (s instanceof AtomicShortIntUniformBackingArray) {
+            setStore(new AtomicShortIntPaletteBackingArray(s, true, offHeap, compactWidths));
+        } else {
+            setStore(s.copy());
+        }
+    }
+
+    /**
+     * Freezes the store and returns it.  The returned store is never updated again, the next update copies it first.  Updates in progress are completed before the store is frozen.
+     *
+     * @return the frozen store
+     */
+    AtomicShortIntBackingArray freeze() {
+        lockExclusive();
         try {
             AtomicShortIntBackingArray s = store.get();
-            if (s instanceof AtomicShortIntUniformBackingArray) {
+            s.freeze();
+            return s;
+        } finally {
+            unlockExclusive();
+        }
+    }
+
+    /**
+     * Gets the version of the array.  The version changes each time the backing array is replaced, which includes the first update after the array is frozen.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Makes room in the palette of the store.  Unused palette entries are reclaimed if possible, otherwise the store is replaced by a store with a larger palette, or by a direct store if the palette
+     * is at its maximum size.  The array must be locked exclusively when calling this method.
+     */
+    private void expand() {
+        AtomicShortIntBackingArray s = store.get();
+        if (s.reclaimPalette()) {
+            return;
+        }
+        if (s instanceof AtomicShortIntRunLengthBackingArray) {
+            // A write fragmented a run, the runs are converted to a palette with room for a new value
+            int unique = s.getUnique();
+            if (unique < AtomicShortIntPaletteBackingArray.getAllowedPalette(length)) {
+                setStore(new AtomicShortIntPaletteBackingArray(s, length, true, true, unique, offHeap, compactWidths));
+            } else {
+                setStore(new AtomicShortIntDirectBackingArray(s, offHeap));
+            }
+        } else if (s.isPaletteMaxSize()) {
+            setStore(new AtomicShortIntDirectBackingArray(s, offHeap));
+        } else {
+            setStore(new AtomicShortIntPaletteBackingArray(s, true, offHeap, compactWidths));
+        }
+    }
+
+    /**
+     * Gets if compressing the array would reduce its size.<br> <br> This is proportional to the palette size for palette based stores, but requires a scan of the array for direct stores.  If the
+     * array is being updated by another thread, the result may be spurious.
+     *
+     * @return true if the array should be compressed
+     */
+    public boolean needsCompression() {
+        AtomicShortIntBackingArray s = store.get();
+        return !(s instanceof AtomicShortIntUniformBackingArray) && !(s instanceof AtomicShortIntRunLengthBackingArray) && canCompress(s, s.getUnique());
+    }
+
+    private boolean canCompress(AtomicShortIntBackingArray s, int unique) {
+        return AtomicShortIntPaletteBackingArray.getWidth(unique - 1, compactWidths) < s.width() && unique <= AtomicShortIntPaletteBackingArray.getAllowedPalette(s.length());
+    }
+
+    /**
+     * Attempts to compress the array.<br> <br> The array is only locked if it can change form.  Whether the array would be smaller as runs is estimated by scanning it in place, before locking, so
+     * arrays without long runs are neither unpacked nor locked.
+     */
+    public void compress() {
+        AtomicShortIntBackingArray s = store.get();
+        if (s instanceof AtomicShortIntUniformBackingArray || s instanceof AtomicShortIntRunLengthBackingArray) {
+            return;
+        }
+        if (!canCompress(s, s.getUnique()) && !canCompressRuns(s, s.getUnique())) {
+            return;
+        }
+        lockExclusive();
+        try {
+            s = store.get();
+            if (s instanceof AtomicShortIntUniformBackingArray || s instanceof AtomicShortIntRunLengthBackingArray) {
                 return;
             }
             int unique = s.getUnique();
-            if (AtomicShortIntPaletteBackingArray.roundUpWidth(unique - 1) >= s.width()) {
-                return;
+            AtomicShortIntBackingArray compressed = s;
+            if (canCompress(s, unique)) {
+                if (unique == 1) {
+                    setStore(AtomicShortIntUniformBackingArray.getShared(length, s.get(0)));
+                    return;
+                }
+                compressed = new AtomicShortIntPaletteBackingArray(s, length, true, false, unique, offHeap, compactWidths);
             }
-            if (unique > AtomicShortIntPaletteBackingArray.getAllowedPalette(s.length())) {
-                return;
+            if (canCompressRuns(compressed, unique)) {
+                int[] values = new int[length];
+                compressed.getArray(values);
+                AtomicShortIntBackingArray runs = AtomicShortIntRunLengthBackingArray.create(values, unique, compressed.getMemoryUsage(), compactWidths);
+                if (runs != null) {
+                    compressed = runs;
+                }
             }
-            if (unique == 1) {
-                store.set(new AtomicShortIntUniformBackingArray(s));
-            } else {
-                store.set(new AtomicShortIntPaletteBackingArray(s, length, true, false, unique));
+            if (compressed != s) {
+                setStore(compressed);
             }
         } finally {
-            resizeLock.unlock();
+            unlockExclusive();
         }
     }
 
+    private boolean canCompressRuns(AtomicShortIntBackingArray s, int unique) {
+        // Layered arrays may be smaller as runs, off-heap arrays keep their data in direct memory
+        return !offHeap && unique > 1 && unique <= AtomicShortIntPaletteBackingArray.getAllowedPalette(length) && AtomicShortIntRunLengthBackingArray.isSmaller(s, unique, s.getMemoryUsage());
+    }
+
     /**
      * Gets the number of unique entries in the array
      */
     public int getUnique() {
-        TIntHashSet inUse = new TIntHashSet();
-        for (int i = 0; i < length; i++) {
-            inUse.add(get(i));
-        }
-        return inUse.size();
+        return store.get().getUnique();
     }
 
     /**
@@ -294,14 +773,14 @@ public class AtomicShortIntArray {
      * Locks the store so that reads and writes are prevented
      */
     public void lock() {
-        resizeLock.lock();
+        lockExclusive();
     }
 
     /**
      * Unlocks the store
      */
     public void unlock() {
-        resizeLock.unlock();
+        unlockExclusive();
     }
 
     /**
@@ -310,7 +789,95 @@ public class AtomicShortIntArray {
      * @return true on success
      */
     public boolean tryLock() {
-        return resizeLock.tryLock();
+        if (!resizeLock.tryLock()) {
+            return false;
+        }
+        if (resizeLock.getHoldCount() == 1) {
+            exclusiveSequence++;
+            updateGate.close();
+        }
+        return true;
+    }
+
+    /**
+     * Acquires the resize lock and closes the update gate, waiting for the updates in progress to complete.  The lock is reentrant, the gate is only closed by the outermost call.
+     */
+    private void lockExclusive() {
+        resizeLock.lock();
+        if (resizeLock.getHoldCount() == 1) {
+            exclusiveSequence++;
+            updateGate.close();
+        }
+    }
+
+    /**
+     * Releases the resize lock, and opens the update gate if this is the outermost call.
+     */
+    private void unlockExclusive() {
+        if (resizeLock.getHoldCount() == 1) {
+            exclusiveSequence++;
+            updateGate.open();
+        }
+        resizeLock.unlock();
+    }
+
+    /**
+     * Starts an optimistic read of the array.  The values read after this call are consistent with each other if {@link #validate(long)} returns true for the returned stamp once they have been
+     * read.<br> <br> Updates are counted as they enter and exit the update gate, and the array being held exclusively is tracked by a sequence number, so readers never block writers and writers
+     * only update counters in their own stripe of the gate.
+     *
+     * @return a stamp, or 0 if an update is in progress
+     */
+    public long tryOptimisticRead() {
+        int sequence = exclusiveSequence;
+        if ((sequence & 1) != 0) {
+            return 0;
+        }
+        // The ended updates are counted first, every update counted as ended is then counted as started
+        int ended = updateGate.getEnded();
+        int started = updateGate.getStarted();
+        if (started != ended) {
+            return 0;
+        }
+        return (long) sequence << 32 | started & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Checks that no update has started since the stamp was obtained by {@link #tryOptimisticRead()}
+     *
+     * @param stamp the stamp
+     * @return true if the values read since the stamp was obtained are consistent
+     */
+    public boolean validate(long stamp) {
+        return stamp != 0 && updateGate.getStarted() == (int) stamp && exclusiveSequence == (int) (stamp >>> 32);
+    }
+
+    /**
+     * Waits for the thread holding the array exclusively to release it
+     */
+    private void awaitResize() {
+        resizeLock.lock();
+        resizeLock.unlock();
+    }
+
+    /**
+     * Resets the array to zero and drops the current backing array.<br> <br> This should be called once an off-heap array is no longer used. Since reads are not locked, another thread may still be
+     * reading the dropped backing array, so its direct memory is freed once it has been garbage collected, like the backing arrays replaced during a resize or compression.
+     */
+    public void release() {
+        lockExclusive();
+        try {
+            setStore(AtomicShortIntUniformBackingArray.getShared(length, 0));
+        } finally {
+            unlockExclusive();
+        }
+    }
+
+    /**
+     * Gets the backing array currently in use.  The backing array is replaced when the palette fills or when the array is compressed.
+     */
+    AtomicShortIntBackingArray getStore() {
+        return store.get();
     }
 
     /**
@@ -23,12 +23,20 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
-import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.hash.TIntHashSet;
 
+import com.flowpowered.commons.store.block.BlockVisitor;
+
 public abstract class AtomicShortIntBackingArray {
     private final int length;
+    /**
+     * Frozen arrays are shared with snapshots and are never updated again
+     */
+    private volatile boolean frozen = false;
 
     /**
      * Creates an AtomicShortIntArray
@@ -55,6 +63,13 @@ public abstract class AtomicShortIntBackingArray {
         return length;
     }
 
+    /**
+     * Gets the number of bytes used by the data of the array.  This includes the packed array, the palette and the structures used to maintain the palette, but not the object headers.
+     *
+     * @return the memory usage, in bytes
+     */
+    public abstract long getMemoryUsage();
+
     /**
      * Gets the size of the internal palette
      *
@@ -98,6 +113,163 @@ public abstract class AtomicShortIntBackingArray {
 
     public abstract boolean isPaletteMaxSize();
 
+    /**
+     * Sets every element of a cuboid region to the given value.<br> <br> The region starts at the given index and spans sizeX consecutive elements per row, with sizeZ rows of zStride elements
+     * per layer and sizeY layers of yStride elements.
+     *
+     * @param index the index of the first element of the region
+     * @param sizeX the number of consecutive elements in each row
+     * @param sizeY the number of layers
+     * @param sizeZ the number of rows in each layer
+     * @param yStride the distance between two layers
+     * @param zStride the distance between two rows
+     * @param value the new value
+     */
+    public void fill(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int value) throws PaletteFullException {
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                int rowStart = index + y * yStride + z * zStride;
+                for (int i = rowStart; i < rowStart + sizeX; i++) {
+                    set(i, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the elements of a cuboid region to the values of the given array.<br> <br> The region is described as for {@link #fill(int, int, int, int, int, int, int)}. The values are read
+     * consecutively from the source array starting at the offset, in x, z, y order.
+     *
+     * @param index the index of the first element of the region
+     * @param sizeX the number of consecutive elements in each row
+     * @param sizeY the number of layers
+     * @param sizeZ the number of rows in each layer
+     * @param yStride the distance between two layers
+     * @param zStride the distance between two rows
+     * @param values the source array
+     * @param offset the index of the first value in the source array
+     */
+    public void set(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int[] values, int offset) throws PaletteFullException {
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                int rowStart = index + y * yStride + z * zStride;
+                for (int i = rowStart; i < rowStart + sizeX; i++) {
+                    set(i, values[offset++]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the elements of a cuboid region into the given array.<br> <br> The region is described as for {@link #fill(int, int, int, int, int, int, int)}. The values are written
+     * consecutively to the destination array starting at the offset, in x, z, y order.
+     *
+     * @param index the index of the first element of the region
+     * @param sizeX the number of consecutive elements in each row
+     * @param sizeY the number of layers
+     * @param sizeZ the number of rows in each layer
+     * @param yStride the distance between two layers
+     * @param zStride the distance between two rows
+     * @param values the destination array
+     * @param offset the index of the first value in the destination array
+     */
+    public void get(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int[] values, int offset) {
+        get(index, sizeX, sizeY, sizeZ, yStride, zStride, values, offset, sizeZ * sizeX, sizeX);
+    }
+
+    /**
+     * Copies the elements of a cuboid region into a cuboid region of the given array.<br> <br> The region is described as for {@link #fill(int, int, int, int, int, int, int)}.  The values are
+     * written to rows of the destination array, using the destination strides.
+     *
+     * @param index the index of the first element of the region
+     * @param sizeX the number of consecutive elements in each row
+     * @param sizeY the number of layers
+     * @param sizeZ the number of rows in each layer
+     * @param yStride the distance between two layers
+     * @param zStride the distance between two rows
+     * @param values the destination array
+     * @param offset the index of the first value in the destination array
+     * @param valuesYStride the distance between two layers in the destination array
+     * @param valuesZStride the distance between two rows in the destination array
+     */
+    public void get(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int[] values, int offset, int valuesYStride, int valuesZStride) {
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                int rowStart = index + y * yStride + z * zStride;
+                int valuesStart = offset + y * valuesYStride + z * valuesZStride;
+                for (int x = 0; x < sizeX; x++) {
+                    values[valuesStart + x] = get(rowStart + x);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies every element of the array into the given array.  Data tearing may occur if the array is updated during this method call.
+     *
+     * @param values the destination array, it must be of the same length as this array
+     */
+    public void getArray(int[] values) {
+        for (int i = 0; i < length; i++) {
+            values[i] = get(i);
+        }
+    }
+
+    /**
+     * Copies every element of the array into the given buffer, starting at its position.  The position of the buffer is advanced past the elements.  Data tearing may occur if the array is updated
+     * during this method call.
+     *
+     * @param values the destination buffer, it must have at least as many elements remaining as the length of this array
+     */
+    public void writeArray(IntBuffer values) {
+        for (int i = 0; i < length; i++) {
+            values.put(get(i));
+        }
+    }
+
+    /**
+     * Copies the lower 16 bits of every element of the array, shifted right by the given amount, into the given array.  Data tearing may occur if the array is updated during this method call.
+     *
+     * @param values the destination array, it must be of the same length as this array
+     * @param shift the number of bits to shift the elements right by
+     */
+    public void getArray(short[] values, int shift) {
+        for (int i = 0; i < length; i++) {
+            values[i] = (short) (get(i) >> shift);
+        }
+    }
+
+    /**
+     * Copies the lower 16 bits of every element of the array, shifted right by the given amount, into the given buffer, starting at its position.  The position of the buffer is advanced past the
+     * elements.  Data tearing may occur if the array is updated during this method call.
+     *
+     * @param values the destination buffer, it must have at least as many elements remaining as the length of this array
+     * @param shift the number of bits to shift the elements right by
+     */
+    public void writeArray(ShortBuffer values, int shift) {
+        for (int i = 0; i < length; i++) {
+            values.put((short) (get(i) >> shift));
+        }
+    }
+
+    /**
+     * Visits every element whose value matches the visitor, in index order.  Data tearing may occur if the array is updated during this method call.
+     *
+     * @param visitor the visitor
+     * @return the number of elements visited
+     */
+    public int visit(BlockVisitor visitor) {
+        int visited = 0;
+        for (int i = 0; i < length; i++) {
+            int value = get(i);
+            if (visitor.matches(value)) {
+                visitor.visit(i, value);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
     /**
      * Gets the number of unique entries in the array
      */
@@ -109,6 +281,66 @@ public abstract class AtomicShortIntBackingArray {
         return inUseSet.size();
     }
 
+    /**
+     * Gets the number of elements with the given value.  Arrays without a palette count the elements.
+     *
+     * @param value the value
+     * @return the number of elements
+     */
+    public int getValueCount(int value) {
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (get(i) == value) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds the number of elements with each value to the given map.  Arrays without a palette count the elements.
+     *
+     * @param counts the map of values to counts
+     */
+    public void getValueCounts(TIntIntHashMap counts) {
+        for (int i = 0; i < length; i++) {
+            counts.adjustOrPutValue(get(i), 1, 1);
+        }
+    }
+
+    /**
+     * Freezes the array.  A frozen array may be shared with readers that expect it to never change, so the owner of the array must replace it with a {@link #copy()} before updating it.  This must
+     * only be called when no other thread is updating the array.
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    /**
+     * Gets if the array is frozen
+     *
+     * @return true if the array must not be updated
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Creates a copy of the array of the same form.  The copy is not frozen.
+     *
+     * @return the copy
+     */
+    public abstract AtomicShortIntBackingArray copy();
+
+    /**
+     * Makes the palette entries that are no longer used by any element available for new values.  This must only be called when no other thread is updating the array.
+     *
+     * @return true if entries were reclaimed
+     */
+    public boolean reclaimPalette() {
+        return false;
+    }
+
     /**
      * Gets the palette in use by the backing array or an array of zero length if no palette is in use.
      */
@@ -119,6 +351,35 @@ public abstract class AtomicShortIntBackingArray {
      */
     public abstract int[] getBackingArray();
 
+    /**
+     * Gets the number of ints in the packed array used by the backing store.
+     */
+    public abstract int getPackedLength();
+
+    /**
+     * Gets an int from the packed array used by the backing store, without copying the array.
+     *
+     * @param i the index in the packed array
+     * @return the packed int
+     */
+    public abstract int getPacked(int i);
+
+    /**
+     * Gets if the data of the backing array is stored in direct memory
+     *
+     * @return true if the backing array is off-heap
+     */
+    public boolean isOffHeap() {
+        return false;
+    }
+
+    /**
+     * Frees the direct memory used by an off-heap backing array.  The backing array must not be accessed after this call.  This has no effect for backing arrays stored on the heap, or for frozen
+     * backing arrays, which may be shared with snapshots and are only freed once garbage collected.
+     */
+    public void release() {
+    }
+
     protected void copyFromPrevious(AtomicShortIntBackingArray previous) throws PaletteFullException {
         if (previous != null) {
             for (int i = 0; i < length; i++) {
@@ -129,20 +390,11 @@ public abstract class AtomicShortIntBackingArray {
         }
     }
 
-    protected static int[] toIntArray(AtomicIntegerArray array, int length) {
-        int[] packed = new int[length];
-        for (int i = 0; i < length; i++) {
-            packed[i] = array.get(i);
-        }
-        return packed;
+    protected static int[] toIntArray(AtomicIntStorage array, int length) {
+        return array.toArray(length);
     }
 
-    protected static int[] toIntArray(AtomicIntegerArray array) {
-        int length = array.length();
-        int[] packed = new int[length];
-        for (int i = 0; i < length; i++) {
-            packed[i] = array.get(i);
-        }
-        return packed;
+    protected static int[] toIntArray(AtomicIntStorage array) {
+        return array.toArray();
     }
 }
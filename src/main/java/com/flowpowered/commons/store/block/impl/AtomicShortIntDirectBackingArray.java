@@ -23,24 +23,32 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
-import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.nio.IntBuffer;
 
 public class AtomicShortIntDirectBackingArray extends AtomicShortIntBackingArray {
     private final static int[] NO_PALETTE = new int[0];
-    private final AtomicIntegerArray store;
+    private final AtomicIntStorage store;
     private final int width;
 
     public AtomicShortIntDirectBackingArray(int length) {
-        this(length, (AtomicShortIntBackingArray) null);
+        this(length, false);
+    }
+
+    public AtomicShortIntDirectBackingArray(int length, boolean offHeap) {
+        this(length, (AtomicShortIntBackingArray) null, offHeap);
     }
 
     public AtomicShortIntDirectBackingArray(AtomicShortIntBackingArray previous) {
-        this(previous.length(), previous);
+        this(previous, false);
+    }
+
+    public AtomicShortIntDirectBackingArray(AtomicShortIntBackingArray previous, boolean offHeap) {
+        this(previous.length(), previous, offHeap);
     }
 
-    private AtomicShortIntDirectBackingArray(int length, AtomicShortIntBackingArray previous) {
+    private AtomicShortIntDirectBackingArray(int length, AtomicShortIntBackingArray previous, boolean offHeap) {
         super(length);
-        store = new AtomicIntegerArray(length);
+        store = AtomicIntStorage.allocate(length, offHeap);
         width = AtomicShortIntPaletteBackingArray.roundUpWidth(length - 1);
         try {
             copyFromPrevious(previous);
@@ -50,14 +58,32 @@ public class AtomicShortIntDirectBackingArray extends AtomicShortIntBackingArray
     }
 
     public AtomicShortIntDirectBackingArray(int length, int[] initial) {
+        this(length, initial, false);
+    }
+
+    public AtomicShortIntDirectBackingArray(int length, int[] initial, boolean offHeap) {
+        this(length, IntBuffer.wrap(initial), offHeap);
+    }
+
+    public AtomicShortIntDirectBackingArray(int length, IntBuffer initial, boolean offHeap) {
         super(length);
-        if (initial.length != length) {
+        if (initial.remaining() != length) {
             throw new IllegalArgumentException("The length of the initialization array must match the given length");
         }
-        store = new AtomicIntegerArray(initial);
+        store = AtomicIntStorage.allocate(initial, offHeap);
         width = AtomicShortIntPaletteBackingArray.roundUpWidth(length - 1);
     }
 
+    @Override
+    public AtomicShortIntBackingArray copy() {
+        return new AtomicShortIntDirectBackingArray(this, isOffHeap());
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return (long) length() << 2;
+    }
+
     @Override
     public int width() {
         return width;
@@ -93,11 +119,34 @@ public class AtomicShortIntDirectBackingArray extends AtomicShortIntBackingArray
         return true;
     }
 
+    @Override
+    public boolean isOffHeap() {
+        return store.isOffHeap();
+    }
+
+    @Override
+    public void release() {
+        if (isFrozen()) {
+            return;
+        }
+        store.release();
+    }
+
     @Override
     public int[] getPalette() {
         return NO_PALETTE;
     }
 
+    @Override
+    public int getPackedLength() {
+        return store.length();
+    }
+
+    @Override
+    public int getPacked(int i) {
+        return store.get(i);
+    }
+
     @Override
     public int[] getBackingArray() {
         return toIntArray(store);
@@ -23,30 +23,90 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
+import java.nio.IntBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicIntegerArray;
 
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import com.flowpowered.commons.store.block.BlockVisitor;
 import com.flowpowered.math.GenericMath;
 
 public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArray {
     private final static int CALCULATE_UNIQUE = -1;
     private final int width;
     private final int paletteSize;
-    private final AtomicIntShortSingleUseHashMap idLookup;
+    private final boolean offHeap;
+    /**
+     * The lookup is rebuilt when unused palette entries are reclaimed
+     */
+    private volatile AtomicIntShortSingleUseHashMap idLookup;
     private final AtomicVariableWidthArray store;
-    private final AtomicIntegerArray palette;
+    private final AtomicIntStorage palette;
+    /**
+     * The number of elements using each palette entry
+     */
+    private final AtomicIntStorage counts;
     private final AtomicInteger paletteCounter;
+    /**
+     * Palette entries that have been reclaimed and can be reused, the first freeCount entries are available
+     */
+    private volatile int[] freeIds = new int[0];
+    private final AtomicInteger freeCount = new AtomicInteger(0);
     private final boolean maxPaletteSize;
+    /**
+     * Allocates the ids of values that are not in the lookup yet.  The entry is set before the id is published, as a reclaimed entry still holds its previous value.  If the id loses the race to be
+     * published, its count stays at zero and it is reclaimed with the other unused entries.
+     */
+    private final AtomicIntShortSingleUseHashMap.ValueAllocator idAllocator = new AtomicIntShortSingleUseHashMap.ValueAllocator() {
+        @Override
+        public short allocate(int value) throws PaletteFullException {
+            short id = (short) allocateId();
+            palette.set(id, value);
+            return id;
+        }
+    };
 
     public AtomicShortIntPaletteBackingArray(int length) {
-        this(null, length, false, false, CALCULATE_UNIQUE);
+        this(length, false);
+    }
+
+    public AtomicShortIntPaletteBackingArray(int length, boolean offHeap) {
+        this(null, length, false, false, CALCULATE_UNIQUE, offHeap);
     }
 
     public AtomicShortIntPaletteBackingArray(AtomicShortIntBackingArray previous, boolean expand) {
-        this(previous, previous.length(), false, expand, CALCULATE_UNIQUE);
+        this(previous, expand, false);
+    }
+
+    public AtomicShortIntPaletteBackingArray(AtomicShortIntBackingArray previous, boolean expand, boolean offHeap) {
+        this(previous, expand, offHeap, false);
+    }
+
+    public AtomicShortIntPaletteBackingArray(AtomicShortIntBackingArray previous, boolean expand, boolean offHeap, boolean compactWidth) {
+        this(previous, previous.length(), false, expand, CALCULATE_UNIQUE, offHeap, compactWidth);
     }
 
     public AtomicShortIntPaletteBackingArray(AtomicShortIntBackingArray previous, int length, boolean compress, boolean expand, int unique) {
+        this(previous, length, compress, expand, unique, false);
+    }
+
+    public AtomicShortIntPaletteBackingArray(AtomicShortIntBackingArray previous, int length, boolean compress, boolean expand, int unique, boolean offHeap) {
+        this(previous, length, compress, expand, unique, offHeap, false);
+    }
+
+    /**
+     * Creates a new palette backing array, copying the values of the previous array if there is one.<br> <br> If compact widths are used, the width is not rounded up to a power of 2, and
+     * expanding the palette adds a single bit to the width.
+     *
+     * @param previous the previous array, or null
+     * @param length the length of the array
+     * @param compress if the width should be computed from the number of unique values of the previous array
+     * @param expand if room should be left for an additional value when compressing
+     * @param unique the number of unique values of the previous array, or -1 to compute it
+     * @param offHeap whether or not the arrays should be stored in direct memory
+     * @param compactWidth whether or not the width may be any number of bits
+     */
+    public AtomicShortIntPaletteBackingArray(AtomicShortIntBackingArray previous, int length, boolean compress, boolean expand, int unique, boolean offHeap, boolean compactWidth) {
         super(length);
         if (previous == null) {
             width = 1;
@@ -55,19 +115,26 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
                 if (unique == CALCULATE_UNIQUE) {
                     unique = previous.getUnique();
                 }
-                width = roundUpWidth(expand ? unique : (unique - 1));
+                width = getWidth(expand ? unique : (unique - 1), compactWidth);
             } else {
                 int oldWidth = previous.width();
-                width = oldWidth == 0 ? 1 : oldWidth <= 8 ? (oldWidth << 1) : (16);
+                if (compactWidth) {
+                    width = Math.min(oldWidth + 1, 16);
+                } else {
+                    width = oldWidth == 0 ? 1 : oldWidth <= 8 ? (oldWidth << 1) : (16);
+                }
             }
         }
         int allowedPalette = AtomicShortIntPaletteBackingArray.getAllowedPalette(length);
         paletteSize = Math.min(widthToPaletteSize(width), allowedPalette);
         maxPaletteSize = paletteSize == allowedPalette;
-        store = new AtomicVariableWidthArray(length, width);
-        palette = new AtomicIntegerArray(paletteSize);
+        this.offHeap = offHeap;
+        store = new AtomicVariableWidthArray(length, width, offHeap);
+        palette = AtomicIntStorage.allocate(paletteSize, offHeap);
+        counts = AtomicIntStorage.allocate(paletteSize, offHeap);
+        counts.set(0, length);
         paletteCounter = new AtomicInteger(0);
-        idLookup = new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2));
+        idLookup = newLookup();
         try {
             if (previous == null) { // sets id=0 to map to value=0 (so non-set elements are zero)
                 paletteCounter.incrementAndGet();
@@ -83,18 +150,43 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
     }
 
     public AtomicShortIntPaletteBackingArray(int length, int unique, int[] initial) {
+        this(length, unique, initial, false);
+    }
+
+    public AtomicShortIntPaletteBackingArray(int length, int unique, int[] initial, boolean offHeap) {
+        this(length, unique, initial, offHeap, false);
+    }
+
+    public AtomicShortIntPaletteBackingArray(int length, int unique, int[] initial, boolean offHeap, boolean compactWidth) {
         super(length);
-        width = roundUpWidth(unique - 1);
+        width = getWidth(unique - 1, compactWidth);
         int allowedPalette = AtomicShortIntPaletteBackingArray.getAllowedPalette(length);
         paletteSize = Math.min(widthToPaletteSize(width), allowedPalette);
         paletteCounter = new AtomicInteger(0);
         maxPaletteSize = paletteSize == allowedPalette;
-        palette = new AtomicIntegerArray(paletteSize);
-        store = new AtomicVariableWidthArray(length, width);
-        idLookup = new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2));
+        this.offHeap = offHeap;
+        palette = AtomicIntStorage.allocate(paletteSize, offHeap);
+        counts = AtomicIntStorage.allocate(paletteSize, offHeap);
+        counts.set(0, length);
+        store = new AtomicVariableWidthArray(length, width, offHeap);
+        idLookup = newLookup();
         try {
+            // The ids are packed in bulk, neighbouring values are usually equal, so the last lookup is reused
+            int[] ids = new int[length];
+            int[] idCounts = new int[paletteSize];
+            int lastValue = initial[0];
+            int lastId = getId(lastValue);
             for (int i = 0; i < length; i++) {
-                set(i, initial[i]);
+                if (initial[i] != lastValue) {
+                    lastValue = initial[i];
+                    lastId = getId(lastValue);
+                }
+                ids[i] = lastId;
+                idCounts[lastId]++;
+            }
+            store.set(ids);
+            for (int id = 0; id < paletteSize; id++) {
+                counts.set(id, idCounts[id]);
             }
         } catch (PaletteFullException pfe) {
             throw new IllegalStateException("Unable to copy old array to new array, as palette was filled, length " + length + ", paletteSize " + paletteSize + ", unique " + unique);
@@ -102,18 +194,57 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
     }
 
     public AtomicShortIntPaletteBackingArray(int length, int[] palette, int width, int[] variableWidthBlockArray) {
+        this(length, palette, width, variableWidthBlockArray, false);
+    }
+
+    public AtomicShortIntPaletteBackingArray(int length, int[] palette, int width, int[] variableWidthBlockArray, boolean offHeap) {
+        this(length, palette, width, IntBuffer.wrap(variableWidthBlockArray), offHeap);
+    }
+
+    public AtomicShortIntPaletteBackingArray(int length, int[] palette, int width, IntBuffer variableWidthBlockArray, boolean offHeap) {
         super(length);
         this.width = width;
         int allowedPalette = AtomicShortIntPaletteBackingArray.getAllowedPalette(length);
-        this.paletteSize = palette.length;
+        // Leave room for the entries that fit in the width, so new values don't force an expansion
+        this.paletteSize = Math.max(palette.length, Math.min(widthToPaletteSize(width), allowedPalette));
         this.paletteCounter = new AtomicInteger(palette.length);
         this.maxPaletteSize = paletteSize >= allowedPalette;
-        this.palette = new AtomicIntegerArray(palette);
-        store = new AtomicVariableWidthArray(length, width, variableWidthBlockArray);
-        idLookup = new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2));
-        for (int i = 0; i < paletteSize; i++) {
-            idLookup.putIfAbsent(palette[i], (short) i);
+        this.offHeap = offHeap;
+        this.palette = AtomicIntStorage.allocate(paletteSize, offHeap);
+        for (int i = 0; i < palette.length; i++) {
+            this.palette.set(i, palette[i]);
         }
+        store = new AtomicVariableWidthArray(length, width, variableWidthBlockArray, offHeap);
+        counts = AtomicIntStorage.allocate(paletteSize, offHeap);
+        for (int i = 0; i < length; i++) {
+            int id = store.get(i);
+            if (id >= palette.length) {
+                throw new IllegalArgumentException("Palette id " + id + " at index " + i + " is not in the palette of length " + palette.length);
+            }
+            counts.addAndGet(id, 1);
+        }
+        // An entry that lost the race to be published, or was reclaimed, may hold a value that is in use by another entry, the entry in use is mapped
+        idLookup = newLookup();
+        for (int i = 0; i < palette.length; i++) {
+            if (counts.get(i) > 0) {
+                idLookup.putIfAbsent(palette[i], (short) i);
+            }
+        }
+        for (int i = 0; i < palette.length; i++) {
+            if (counts.get(i) == 0) {
+                idLookup.putIfAbsent(palette[i], (short) i);
+            }
+        }
+    }
+
+    @Override
+    public AtomicShortIntBackingArray copy() {
+        return new AtomicShortIntPaletteBackingArray(length(), getPalette(), width, IntBuffer.wrap(store.getPacked()), offHeap);
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return store.getMemoryUsage() + ((long) paletteSize << 3) + ((long) idLookup.capacity() << 3) + ((long) freeIds.length << 2);
     }
 
     @Override
@@ -136,26 +267,258 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
         return maxPaletteSize;
     }
 
+    @Override
+    public boolean isOffHeap() {
+        return store.isOffHeap();
+    }
+
+    @Override
+    public void release() {
+        if (isFrozen()) {
+            return;
+        }
+        store.release();
+        palette.release();
+        counts.release();
+        idLookup.release();
+    }
+
     @Override
     public int get(int i) {
         return palette.get(store.get(i));
     }
 
+    @Override
+    public void getArray(int[] values) {
+        store.getArray(values);
+        // The palette is read after the ids, so that it contains every id found in the packed array.  The entries are read in place rather than copied, so that no array is allocated.
+        for (int i = 0; i < length(); i++) {
+            values[i] = palette.get(values[i]);
+        }
+    }
+
+    @Override
+    public void get(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int[] values, int offset, int valuesYStride, int valuesZStride) {
+        // The ids are read from the packed array first, and mapped through a single read of the palette
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                int rowStart = index + y * yStride + z * zStride;
+                int valuesStart = offset + y * valuesYStride + z * valuesZStride;
+                for (int x = 0; x < sizeX; x++) {
+                    values[valuesStart + x] = store.get(rowStart + x);
+                }
+            }
+        }
+        int[] palette = getPalette();
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                int valuesStart = offset + y * valuesYStride + z * valuesZStride;
+                for (int i = valuesStart; i < valuesStart + sizeX; i++) {
+                    values[i] = palette[values[i]];
+                }
+            }
+        }
+    }
+
+    @Override
+    public int visit(BlockVisitor visitor) {
+        // The filter is applied to the palette entries in use, the packed data is only read if one matches
+        int[] palette = getPalette();
+        boolean[] matches = new boolean[palette.length];
+        boolean any = false;
+        for (int id = 0; id < palette.length; id++) {
+            if (counts.get(id) > 0 && visitor.matches(palette[id])) {
+                matches[id] = true;
+                any = true;
+            }
+        }
+        if (!any) {
+            return 0;
+        }
+        int length = length();
+        int valuesPerInt = 32 / width;
+        int mask = (1 << width) - 1;
+        int packedLength = store.getPackedLength();
+        int visited = 0;
+        for (int index = 0; index < packedLength; index++) {
+            int packed = store.getPacked(index);
+            // Packed ints where every id is zero are skipped at once
+            if (packed == 0 && !matches[0]) {
+                continue;
+            }
+            int end = Math.min(length, (index + 1) * valuesPerInt);
+            for (int i = index * valuesPerInt; i < end; i++) {
+                int id = packed & mask;
+                packed >>>= width;
+                // Ids allocated after the palette was read are skipped
+                if (id < matches.length && matches[id]) {
+                    visitor.visit(i, palette[id]);
+                    visited++;
+                }
+            }
+        }
+        return visited;
+    }
+
     @Override
     public int set(int i, int newValue) throws PaletteFullException {
         int id = getId(newValue);
         int oldId = store.getAndSet(i, id);
+        if (oldId != id) {
+            counts.addAndGet(id, 1);
+            counts.addAndGet(oldId, -1);
+        }
         return palette.get(oldId);
     }
 
     @Override
     public boolean compareAndSet(int i, int expect, int update) throws PaletteFullException {
+        AtomicIntShortSingleUseHashMap idLookup = this.idLookup;
         short expId = idLookup.get(expect);
         if (idLookup.isEmptyValue(expId)) {
             return false;
         }
         int newId = getId(update);
-        return store.compareAndSet(i, expId, newId);
+        if (!store.compareAndSet(i, expId, newId)) {
+            return false;
+        }
+        if (expId != newId) {
+            counts.addAndGet(newId, 1);
+            counts.addAndGet(expId, -1);
+        }
+        return true;
+    }
+
+    @Override
+    public void fill(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int value) throws PaletteFullException {
+        int id = getId(value);
+        int[] deltas = new int[paletteSize];
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                int rowStart = index + y * yStride + z * zStride;
+                for (int i = rowStart; i < rowStart + sizeX; i++) {
+                    deltas[store.getAndSet(i, id)]--;
+                }
+            }
+        }
+        deltas[id] += sizeX * sizeY * sizeZ;
+        applyCountDeltas(deltas);
+    }
+
+    @Override
+    public void set(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int[] values, int offset) throws PaletteFullException {
+        // Neighbouring values are usually equal, so the last lookup is reused
+        int lastValue = values[offset];
+        int lastId = getId(lastValue);
+        int[] deltas = new int[paletteSize];
+        try {
+            for (int y = 0; y < sizeY; y++) {
+                for (int z = 0; z < sizeZ; z++) {
+                    int rowStart = index + y * yStride + z * zStride;
+                    for (int i = rowStart; i < rowStart + sizeX; i++) {
+                        int value = values[offset++];
+                        if (value != lastValue) {
+                            lastValue = value;
+                            lastId = getId(value);
+                        }
+                        deltas[store.getAndSet(i, lastId)]--;
+                        deltas[lastId]++;
+                    }
+                }
+            }
+        } finally {
+            // The elements set before the palette filled must be counted
+            applyCountDeltas(deltas);
+        }
+    }
+
+    private void applyCountDeltas(int[] deltas) {
+        for (int id = 0; id < deltas.length; id++) {
+            if (deltas[id] != 0) {
+                counts.addAndGet(id, deltas[id]);
+            }
+        }
+    }
+
+    @Override
+    public int getUnique() {
+        int unique = 0;
+        int used = Math.min(paletteCounter.get(), paletteSize);
+        for (int id = 0; id < used; id++) {
+            if (counts.get(id) > 0) {
+                unique++;
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Gets the number of elements that use the palette entry with the given id
+     *
+     * @param id the palette id
+     * @return the number of elements
+     */
+    public int getCount(int id) {
+        return counts.get(id);
+    }
+
+    @Override
+    public int getValueCount(int value) {
+        // Each value in use has a single id, the counts are maintained by the updates
+        short id = idLookup.get(value);
+        return id < 0 ? 0 : Math.max(0, counts.get(id));
+    }
+
+    @Override
+    public void getValueCounts(TIntIntHashMap counts) {
+        int used = Math.min(paletteCounter.get(), paletteSize);
+        for (int id = 0; id < used; id++) {
+            int count = this.counts.get(id);
+            if (count > 0) {
+                counts.adjustOrPutValue(palette.get(id), count, count);
+            }
+        }
+    }
+
+    @Override
+    public boolean reclaimPalette() {
+        int used = Math.min(paletteCounter.get(), paletteSize);
+        int[] free = new int[used];
+        int freed = 0;
+        for (int id = 0; id < used; id++) {
+            if (counts.get(id) <= 0) {
+                free[freed++] = id;
+            }
+        }
+        if (freed == 0) {
+            return false;
+        }
+        AtomicIntShortSingleUseHashMap newLookup = newLookup();
+        for (int id = 0; id < used; id++) {
+            if (counts.get(id) > 0) {
+                newLookup.putIfAbsent(palette.get(id), (short) id);
+            }
+        }
+        // Ids are popped from the end, so the lowest ids are reused first
+        for (int i = 0; i < freed >> 1; i++) {
+            int swap = free[i];
+            free[i] = free[freed - 1 - i];
+            free[freed - 1 - i] = swap;
+        }
+        freeIds = free;
+        freeCount.set(freed);
+        // The old lookup may still be read by unlocked readers, it is freed once garbage collected
+        idLookup = newLookup;
+        return true;
+    }
+
+    /**
+     * Creates an empty lookup.  The lookup is always larger than the palette, so that a probe for a value which is not in the palette ends at an empty entry.
+     *
+     * @return the lookup
+     */
+    private AtomicIntShortSingleUseHashMap newLookup() {
+        return new AtomicIntShortSingleUseHashMap(paletteSize + (paletteSize >> 2) + 1, offHeap);
     }
 
     /**
@@ -164,21 +527,26 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
      * @return the id
      */
     private int getId(int value) throws PaletteFullException {
-        short id = idLookup.get(value);
-        if (!idLookup.isEmptyValue(id)) {
-            return id;
-        } else {
-            id = (short) paletteCounter.getAndIncrement();
-            if (id >= paletteSize) {
-                throw new PaletteFullException();
-            }
-            short oldId = idLookup.putIfAbsent(value, id);
-            if (!idLookup.isEmptyValue(oldId)) {
-                id = oldId;
+        return idLookup.getOrAssign(value, idAllocator);
+    }
+
+    /**
+     * Allocates a palette entry, reusing reclaimed entries first
+     *
+     * @return the id
+     */
+    private int allocateId() throws PaletteFullException {
+        int free;
+        while ((free = freeCount.get()) > 0) {
+            if (freeCount.compareAndSet(free, free - 1)) {
+                return freeIds[free - 1];
             }
-            palette.set(id, value);
-            return id;
         }
+        int id = paletteCounter.getAndIncrement();
+        if (id >= paletteSize) {
+            throw new PaletteFullException();
+        }
+        return id;
     }
 
     private static final byte[] roundLookup = new byte[65537];
@@ -206,6 +574,27 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
         return roundLookup[GenericMath.roundUpPow2(i + 1)];
     }
 
+    /**
+     * Gets the smallest number of bits that can hold the given value, with a minimum of 1
+     *
+     * @param i the value
+     * @return the width
+     */
+    public static int getCompactWidth(int i) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(i));
+    }
+
+    /**
+     * Gets the width required to hold the given id
+     *
+     * @param i the id
+     * @param compactWidth if the width may be any number of bits, instead of a power of 2
+     * @return the width
+     */
+    public static int getWidth(int i, boolean compactWidth) {
+        return compactWidth ? getCompactWidth(i) : roundUpWidth(i);
+    }
+
     public static int widthToPaletteSize(int width) {
         return 1 << width;
     }
@@ -216,7 +605,18 @@ public class AtomicShortIntPaletteBackingArray extends AtomicShortIntBackingArra
 
     @Override
     public int[] getPalette() {
-        return toIntArray(palette, paletteCounter.get());
+        // The counter is incremented past the palette size when the palette fills
+        return toIntArray(palette, Math.min(paletteCounter.get(), paletteSize));
+    }
+
+    @Override
+    public int getPackedLength() {
+        return store.getPackedLength();
+    }
+
+    @Override
+    public int getPacked(int i) {
+        return store.getPacked(i);
     }
 
     @Override
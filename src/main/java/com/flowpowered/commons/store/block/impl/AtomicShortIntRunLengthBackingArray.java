@@ -0,0 +1,345 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import com.flowpowered.commons.store.block.BlockVisitor;
+
+/**
+ * A backing array that stores runs of equal consecutive values, in index order.  This suits arrays made of horizontal layers, where each layer is a single run.<br> <br> The runs are never updated
+ * in place.  Like a uniform array, setting an element to a value different from its current value throws a {@link PaletteFullException}, which causes the owning array to migrate to the palette
+ * form.  The array is presented to readers as a palette array, its packed array holding the palette ids of the elements.
+ */
+public class AtomicShortIntRunLengthBackingArray extends AtomicShortIntBackingArray {
+    /**
+     * The index following the last element of each run, in increasing order
+     */
+    private final int[] runEnds;
+    /**
+     * The palette id of the value of each run
+     */
+    private final short[] runIds;
+    private final int[] palette;
+    /**
+     * The number of elements using each palette entry
+     */
+    private final int[] counts;
+    private final int width;
+    private final int valuesPerInt;
+    private final int mask;
+
+    private AtomicShortIntRunLengthBackingArray(int length, int[] runEnds, short[] runIds, int[] palette, int[] counts, int width) {
+        super(length);
+        this.runEnds = runEnds;
+        this.runIds = runIds;
+        this.palette = palette;
+        this.counts = counts;
+        this.width = width;
+        this.valuesPerInt = 32 / width;
+        this.mask = (1 << width) - 1;
+    }
+
+    /**
+     * Creates a run length array holding the given values, if it uses less memory than the given limit.  The values are scanned once, and the scan stops as soon as the runs exceed the limit.
+     *
+     * @param values the values, which must hold more than one unique value
+     * @param unique the number of unique values
+     * @param maxMemoryUsage the memory usage, in bytes, that the array must be below
+     * @param compactWidth whether or not the width of the packed palette ids may be any number of bits
+     * @return the array, or null if it would not be smaller than the limit
+     */
+    public static AtomicShortIntRunLengthBackingArray create(int[] values, int unique, long maxMemoryUsage, boolean compactWidth) {
+        long maxRuns = (maxMemoryUsage - getMemoryUsage(0, unique)) / 6;
+        int runs = 1;
+        for (int i = 1; i < values.length && runs < maxRuns; i++) {
+            if (values[i] != values[i - 1]) {
+                runs++;
+            }
+        }
+        if (runs >= maxRuns) {
+            return null;
+        }
+        int[] runEnds = new int[runs];
+        short[] runIds = new short[runs];
+        int[] palette = new int[unique];
+        int[] counts = new int[unique];
+        TIntIntHashMap ids = new TIntIntHashMap(unique);
+        int run = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i + 1 < values.length && values[i + 1] == values[i]) {
+                continue;
+            }
+            int id;
+            if (ids.containsKey(values[i])) {
+                id = ids.get(values[i]);
+            } else {
+                id = ids.size();
+                ids.put(values[i], id);
+                palette[id] = values[i];
+            }
+            runEnds[run] = i + 1;
+            runIds[run] = (short) id;
+            counts[id] += i + 1 - (run == 0 ? 0 : runEnds[run - 1]);
+            run++;
+        }
+        int width = AtomicShortIntPaletteBackingArray.getWidth(unique - 1, compactWidth);
+        return new AtomicShortIntRunLengthBackingArray(values.length, runEnds, runIds, palette, counts, width);
+    }
+
+    /**
+     * Gets if a run length array holding the values of the given array would use less memory than the given limit.  The values are read in place, and the scan stops as soon as the runs exceed the
+     * limit, so arrays that don't have long runs are rejected early.  If the array is being updated by another thread, the result may be spurious.
+     *
+     * @param array the array to scan
+     * @param unique the number of unique values
+     * @param maxMemoryUsage the memory usage, in bytes, that the array must be below
+     * @return true if the runs would be smaller than the limit
+     */
+    public static boolean isSmaller(AtomicShortIntBackingArray array, int unique, long maxMemoryUsage) {
+        long maxRuns = (maxMemoryUsage - getMemoryUsage(0, unique)) / 6;
+        int length = array.length();
+        int runs = 1;
+        int previous = array.get(0);
+        for (int i = 1; i < length && runs < maxRuns; i++) {
+            int value = array.get(i);
+            if (value != previous) {
+                runs++;
+                previous = value;
+            }
+        }
+        return runs < maxRuns;
+    }
+
+    private static long getMemoryUsage(int runs, int paletteSize) {
+        return runs * 6L + paletteSize * 8L;
+    }
+
+    /**
+     * Gets the number of runs
+     *
+     * @return the number of runs
+     */
+    public int getRuns() {
+        return runEnds.length;
+    }
+
+    /**
+     * Gets the run that holds the element at the given index
+     */
+    private int getRun(int i) {
+        if (i < 0 || i >= length()) {
+            throw new ArrayIndexOutOfBoundsException(i);
+        }
+        int run = Arrays.binarySearch(runEnds, i);
+        // The element at a run end belongs to the next run
+        return run >= 0 ? run + 1 : -run - 1;
+    }
+
+    @Override
+    public AtomicShortIntBackingArray copy() {
+        // The runs are never updated, so they are shared with the copy
+        return new AtomicShortIntRunLengthBackingArray(length(), runEnds, runIds, palette, counts, width);
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return getMemoryUsage(runEnds.length, palette.length);
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int getPaletteSize() {
+        return palette.length;
+    }
+
+    @Override
+    public int getPaletteUsage() {
+        return palette.length;
+    }
+
+    @Override
+    public int get(int i) {
+        return palette[runIds[getRun(i)]];
+    }
+
+    @Override
+    public int set(int i, int newValue) throws PaletteFullException {
+        if (get(i) != newValue) {
+            throw new PaletteFullException();
+        }
+        return newValue;
+    }
+
+    @Override
+    public boolean compareAndSet(int i, int expect, int update) throws PaletteFullException {
+        if (get(i) != expect) {
+            return false;
+        }
+        if (expect != update) {
+            throw new PaletteFullException();
+        }
+        return true;
+    }
+
+    @Override
+    public void getArray(int[] values) {
+        int start = 0;
+        for (int run = 0; run < runEnds.length; run++) {
+            Arrays.fill(values, start, runEnds[run], palette[runIds[run]]);
+            start = runEnds[run];
+        }
+    }
+
+    @Override
+    public void writeArray(IntBuffer values) {
+        int start = 0;
+        for (int run = 0; run < runEnds.length; run++) {
+            int value = palette[runIds[run]];
+            for (int i = start; i < runEnds[run]; i++) {
+                values.put(value);
+            }
+            start = runEnds[run];
+        }
+    }
+
+    @Override
+    public void getArray(short[] values, int shift) {
+        int start = 0;
+        for (int run = 0; run < runEnds.length; run++) {
+            Arrays.fill(values, start, runEnds[run], (short) (palette[runIds[run]] >> shift));
+            start = runEnds[run];
+        }
+    }
+
+    @Override
+    public void writeArray(ShortBuffer values, int shift) {
+        int start = 0;
+        for (int run = 0; run < runEnds.length; run++) {
+            short value = (short) (palette[runIds[run]] >> shift);
+            for (int i = start; i < runEnds[run]; i++) {
+                values.put(value);
+            }
+            start = runEnds[run];
+        }
+    }
+
+    @Override
+    public int visit(BlockVisitor visitor) {
+        boolean[] matches = new boolean[palette.length];
+        boolean any = false;
+        for (int id = 0; id < palette.length; id++) {
+            if (visitor.matches(palette[id])) {
+                matches[id] = true;
+                any = true;
+            }
+        }
+        if (!any) {
+            return 0;
+        }
+        int visited = 0;
+        int start = 0;
+        for (int run = 0; run < runEnds.length; run++) {
+            int id = runIds[run];
+            if (matches[id]) {
+                int value = palette[id];
+                for (int i = start; i < runEnds[run]; i++) {
+                    visitor.visit(i, value);
+                }
+                visited += runEnds[run] - start;
+            }
+            start = runEnds[run];
+        }
+        return visited;
+    }
+
+    @Override
+    public int getValueCount(int value) {
+        for (int id = 0; id < palette.length; id++) {
+            if (palette[id] == value) {
+                return counts[id];
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void getValueCounts(TIntIntHashMap counts) {
+        for (int id = 0; id < palette.length; id++) {
+            counts.adjustOrPutValue(palette[id], this.counts[id], this.counts[id]);
+        }
+    }
+
+    @Override
+    public int getUnique() {
+        return palette.length;
+    }
+
+    @Override
+    public boolean isPaletteMaxSize() {
+        return false;
+    }
+
+    @Override
+    public int[] getPalette() {
+        return palette.clone();
+    }
+
+    @Override
+    public int getPackedLength() {
+        return (length() + valuesPerInt - 1) / valuesPerInt;
+    }
+
+    @Override
+    public int getPacked(int i) {
+        int start = i * valuesPerInt;
+        int end = Math.min(length(), start + valuesPerInt);
+        int run = getRun(start);
+        int packed = 0;
+        for (int index = start; index < end; index++) {
+            if (index == runEnds[run]) {
+                run++;
+            }
+            packed |= (runIds[run] & mask) << (index - start) * width;
+        }
+        return packed;
+    }
+
+    @Override
+    public int[] getBackingArray() {
+        int[] packed = new int[getPackedLength()];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = getPacked(i);
+        }
+        return packed;
+    }
+}
@@ -23,9 +23,23 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import com.flowpowered.commons.store.block.BlockVisitor;
+
 public class AtomicShortIntUniformBackingArray extends AtomicShortIntBackingArray {
+    /**
+     * The maximum number of shared arrays, once reached new arrays are created for the values that are not shared yet
+     */
+    private static final int MAX_SHARED = 4096;
+    private static final ConcurrentMap<Long, AtomicShortIntUniformBackingArray> SHARED = new ConcurrentHashMap<>();
     private final AtomicInteger store;
 
     public AtomicShortIntUniformBackingArray(int length) {
@@ -55,6 +69,39 @@ public class AtomicShortIntUniformBackingArray extends AtomicShortIntBackingArra
         store = new AtomicInteger(initial);
     }
 
+    /**
+     * Gets a frozen uniform array of the given length and value, shared by every array that holds only this value.  Since the array is frozen, it is replaced by a palette before the first update.
+     *
+     * @param length the length of the array
+     * @param value the value of every element
+     * @return the shared array
+     */
+    public static AtomicShortIntUniformBackingArray getShared(int length, int value) {
+        Long key = (long) length << 32 | value & 0xFFFFFFFFL;
+        AtomicShortIntUniformBackingArray array = SHARED.get(key);
+        if (array == null) {
+            array = new AtomicShortIntUniformBackingArray(length, value);
+            array.freeze();
+            if (SHARED.size() < MAX_SHARED) {
+                AtomicShortIntUniformBackingArray previous = SHARED.putIfAbsent(key, array);
+                if (previous != null) {
+                    array = previous;
+                }
+            }
+        }
+        return array;
+    }
+
+    @Override
+    public AtomicShortIntBackingArray copy() {
+        return new AtomicShortIntUniformBackingArray(length(), store.get());
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return 4;
+    }
+
     @Override
     public int width() {
         return 0;
@@ -95,6 +142,94 @@ public class AtomicShortIntUniformBackingArray extends AtomicShortIntBackingArra
         }
     }
 
+    @Override
+    public void fill(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int value) throws PaletteFullException {
+        if (store.get() != value) {
+            throw new PaletteFullException();
+        }
+    }
+
+    @Override
+    public void set(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int[] values, int offset) throws PaletteFullException {
+        int value = store.get();
+        int end = offset + sizeX * sizeY * sizeZ;
+        for (int i = offset; i < end; i++) {
+            if (values[i] != value) {
+                throw new PaletteFullException();
+            }
+        }
+    }
+
+    @Override
+    public void get(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int[] values, int offset) {
+        Arrays.fill(values, offset, offset + sizeX * sizeY * sizeZ, store.get());
+    }
+
+    @Override
+    public void get(int index, int sizeX, int sizeY, int sizeZ, int yStride, int zStride, int[] values, int offset, int valuesYStride, int valuesZStride) {
+        int value = store.get();
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                int valuesStart = offset + y * valuesYStride + z * valuesZStride;
+                Arrays.fill(values, valuesStart, valuesStart + sizeX, value);
+            }
+        }
+    }
+
+    @Override
+    public int getValueCount(int value) {
+        return value == get(0) ? length() : 0;
+    }
+
+    @Override
+    public void getValueCounts(TIntIntHashMap counts) {
+        counts.adjustOrPutValue(get(0), length(), length());
+    }
+
+    @Override
+    public int visit(BlockVisitor visitor) {
+        int value = get(0);
+        if (!visitor.matches(value)) {
+            return 0;
+        }
+        int length = length();
+        for (int i = 0; i < length; i++) {
+            visitor.visit(i, value);
+        }
+        return length;
+    }
+
+    @Override
+    public void getArray(int[] values) {
+        Arrays.fill(values, 0, length(), store.get());
+    }
+
+    @Override
+    public void writeArray(IntBuffer values) {
+        int value = store.get();
+        for (int i = 0; i < length(); i++) {
+            values.put(value);
+        }
+    }
+
+    @Override
+    public void getArray(short[] values, int shift) {
+        Arrays.fill(values, 0, length(), (short) (store.get() >> shift));
+    }
+
+    @Override
+    public void writeArray(ShortBuffer values, int shift) {
+        short value = (short) (store.get() >> shift);
+        for (int i = 0; i < length(); i++) {
+            values.put(value);
+        }
+    }
+
+    @Override
+    public int getUnique() {
+        return 1;
+    }
+
     @Override
     public boolean isPaletteMaxSize() {
         return false;
@@ -105,6 +240,16 @@ public class AtomicShortIntUniformBackingArray extends AtomicShortIntBackingArra
         return new int[] {store.get()};
     }
 
+    @Override
+    public int getPackedLength() {
+        return 0;
+    }
+
+    @Override
+    public int getPacked(int i) {
+        throw new IndexOutOfBoundsException("Uniform arrays have no packed array");
+    }
+
     @Override
     public int[] getBackingArray() {
         return new int[] {};
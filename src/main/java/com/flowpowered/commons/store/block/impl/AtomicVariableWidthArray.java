@@ -24,38 +24,31 @@
 package com.flowpowered.commons.store.block.impl;
 
 import java.io.Serializable;
-import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.nio.IntBuffer;
 
 import com.flowpowered.math.GenericMath;
 
 /**
- * This class implements a variable width Atomic array.  It is backed by an AtomicInteger array.<br> <br> Entries widths can be a power of 2 from 1 to 32
+ * This class implements a variable width Atomic array.  It is backed by an {@link AtomicIntStorage}, either on or off the heap.<br> <br> Entries widths can be from 1 to 32.  Entries never straddle
+ * two ints, so each entry is updated by a single compare and set.  If the width is not a power of 2, the unused high bits of each int are left empty.
  */
 public class AtomicVariableWidthArray implements Serializable {
     private static final long serialVersionUID = 423785245671235L;
-    private final static int[] log2 = new int[33];
-
-    static {
-        log2[1] = 0;
-        log2[2] = 1;
-        log2[4] = 2;
-        log2[8] = 3;
-        log2[16] = 4;
-        log2[32] = 5;
-    }
-
     private final boolean fullWidth;
+    /**
+     * If the width is a power of 2, the index in the packed array is computed by shifting instead of dividing
+     */
+    private final boolean powerOfTwo;
+    private final int valuesPerInt;
     private final int indexShift;
     private final int subIndexMask;
-    private final int[] valueBitmask;
-    private final int[] valueShift;
     private final int maxValue;
     private final int width;
-    private AtomicIntegerArray array;
+    private final AtomicIntStorage array;
     private final int length;
 
     /**
-     * Creates a variable Atomic array.  The width must be a power of two from 1 to 32 and the length must be a multiple of the number of elements that fit in an int after packing.
+     * Creates a variable Atomic array.  The width must be from 1 to 32.
      *
      * @param length the length of the array
      * @param width the number of bits in each entry
@@ -65,54 +58,86 @@ public class AtomicVariableWidthArray implements Serializable {
     }
 
     /**
-     * Creates a variable Atomic array.  The width must be a power of two from 1 to 32 and the length must be a multiple of the number of elements that fit in an int after packing.
+     * Creates a variable Atomic array.  The width must be from 1 to 32.
      *
      * @param length the length of the array
      * @param width the number of bits in each entry
      * @param initial the initial state of the array (in packed format)
      */
     public AtomicVariableWidthArray(int length, int width, int[] initial) {
-        if (GenericMath.roundUpPow2(width) != width || width < 1 || width > 32) {
-            throw new IllegalArgumentException("Width must be a power of 2 between 1 and 32 " + width);
-        }
-
-        indexShift = 5 - log2[width];
-        subIndexMask = (1 << indexShift) - 1;
+        this(length, width, initial, false);
+    }
 
-        int valuesPerInt = 32 / width;
+    /**
+     * Creates a variable Atomic array.  The width must be from 1 to 32.
+     *
+     * @param length the length of the array
+     * @param width the number of bits in each entry
+     * @param offHeap whether or not the packed array should be stored in direct memory
+     */
+    public AtomicVariableWidthArray(int length, int width, boolean offHeap) {
+        this(length, width, (IntBuffer) null, offHeap);
+    }
 
-        valueBitmask = new int[valuesPerInt];
-        valueShift = new int[valuesPerInt];
+    /**
+     * Creates a variable Atomic array.  The width must be from 1 to 32.
+     *
+     * @param length the length of the array
+     * @param width the number of bits in each entry
+     * @param initial the initial state of the array (in packed format), or null
+     * @param offHeap whether or not the packed array should be stored in direct memory
+     */
+    public AtomicVariableWidthArray(int length, int width, int[] initial, boolean offHeap) {
+        this(length, width, initial == null ? null : IntBuffer.wrap(initial), offHeap);
+    }
 
-        for (int i = 0; i < valuesPerInt; i++) {
-            valueShift[i] = i * width;
-            valueBitmask[i] = ((1 << width) - 1) << valueShift[i];
+    /**
+     * Creates a variable Atomic array.  The width must be from 1 to 32.
+     *
+     * @param length the length of the array
+     * @param width the number of bits in each entry
+     * @param initial the initial state of the array (in packed format) in the remaining elements of the buffer, or null
+     * @param offHeap whether or not the packed array should be stored in direct memory
+     */
+    public AtomicVariableWidthArray(int length, int width, IntBuffer initial, boolean offHeap) {
+        if (width < 1 || width > 32) {
+            throw new IllegalArgumentException("Width must be between 1 and 32 " + width);
         }
 
-        this.length = length;
+        powerOfTwo = GenericMath.roundUpPow2(width) == width;
+        valuesPerInt = 32 / width;
+        indexShift = Integer.numberOfTrailingZeros(valuesPerInt);
+        subIndexMask = valuesPerInt - 1;
 
-        int newLength = length / valuesPerInt;
+        this.length = length;
 
-        if (newLength * valuesPerInt != length) {
-            throw new IllegalArgumentException("The length must be a multiple of " + valuesPerInt + " for arrays of width " + width);
-        }
+        int newLength = (length + valuesPerInt - 1) / valuesPerInt;
 
         if (initial != null) {
-            if (newLength != initial.length) {
+            if (newLength != initial.remaining()) {
                 throw new IllegalArgumentException("Length of packed array did not match expected");
             }
-            this.array = new AtomicIntegerArray(initial);
+            this.array = AtomicIntStorage.allocate(initial, offHeap);
         } else {
-            this.array = new AtomicIntegerArray(newLength);
+            this.array = AtomicIntStorage.allocate(newLength, offHeap);
         }
 
         this.fullWidth = width == 32;
 
-        this.maxValue = this.fullWidth ? -1 : valueBitmask[0];
+        this.maxValue = this.fullWidth ? -1 : (1 << width) - 1;
 
         this.width = width;
     }
 
+    /**
+     * Gets the number of bytes used by the packed array
+     *
+     * @return the memory usage, in bytes
+     */
+    public long getMemoryUsage() {
+        return (long) array.length() << 2;
+    }
+
     /**
      * Gets the maximum unsigned value that can be stored in the array
      *
@@ -213,7 +238,7 @@ public class AtomicVariableWidthArray implements Serializable {
     private int addAndGet(int i, int delta, boolean old) {
         if (fullWidth) {
             if (old) {
-                return array.getAndAdd(i, delta);
+                return array.addAndGet(i, delta) - delta;
             } else {
                 return array.addAndGet(i, delta);
             }
@@ -232,7 +257,7 @@ public class AtomicVariableWidthArray implements Serializable {
             int next = pack(prev, newValue, subIndex);
             success = array.compareAndSet(index, prev, next);
         }
-        return (old ? prevValue : newValue) & valueBitmask[0];
+        return (old ? prevValue : newValue) & maxValue;
     }
 
     /**
@@ -261,27 +286,189 @@ public class AtomicVariableWidthArray implements Serializable {
      * @return an array containing the values in the array
      */
     public final int[] getArray(int[] array) {
-        if (array == null || array.length != length()) {
-            array = new int[length()];
+        if (array == null || array.length != length) {
+            array = new int[length];
         }
 
-        for (int i = 0; i < length(); i++) {
-            array[i] = get(i);
+        // Each packed int is read once and unpacked by a loop with a constant trip count for its width
+        int packedLength = this.array.length();
+        int i = 0;
+        // The specialized loops require every packed int to be full, otherwise the generic loop is used
+        switch (packedLength * valuesPerInt == length ? width : 0) {
+            case 1:
+                for (int index = 0; index < packedLength; index++) {
+                    int packed = this.array.get(index);
+                    for (int shift = 0; shift < 32; shift++) {
+                        array[i++] = packed >>> shift & 0x1;
+                    }
+                }
+                break;
+            case 2:
+                for (int index = 0; index < packedLength; index++) {
+                    int packed = this.array.get(index);
+                    for (int shift = 0; shift < 32; shift += 2) {
+                        array[i++] = packed >>> shift & 0x3;
+                    }
+                }
+                break;
+            case 4:
+                for (int index = 0; index < packedLength; index++) {
+                    int packed = this.array.get(index);
+                    for (int shift = 0; shift < 32; shift += 4) {
+                        array[i++] = packed >>> shift & 0xF;
+                    }
+                }
+                break;
+            case 8:
+                for (int index = 0; index < packedLength; index++) {
+                    int packed = this.array.get(index);
+                    array[i] = packed & 0xFF;
+                    array[i + 1] = packed >>> 8 & 0xFF;
+                    array[i + 2] = packed >>> 16 & 0xFF;
+                    array[i + 3] = packed >>> 24;
+                    i += 4;
+                }
+                break;
+            case 16:
+                for (int index = 0; index < packedLength; index++) {
+                    int packed = this.array.get(index);
+                    array[i] = packed & 0xFFFF;
+                    array[i + 1] = packed >>> 16;
+                    i += 2;
+                }
+                break;
+            case 32:
+                for (int index = 0; index < packedLength; index++) {
+                    array[index] = this.array.get(index);
+                }
+                break;
+            default:
+                // Widths which are not a power of 2, or arrays with a partially used last int
+                for (int index = 0; index < packedLength; index++) {
+                    int packed = this.array.get(index);
+                    for (int end = Math.min(i + valuesPerInt, length); i < end; i++) {
+                        array[i] = packed & maxValue;
+                        packed >>>= width;
+                    }
+                }
+                break;
         }
 
         return array;
     }
 
+    /**
+     * Sets every element of the array to the values of the given array.  The values are packed and each packed int is written once, so concurrent updates of the array during this method call may be
+     * lost.
+     *
+     * @param values the new values, the array must be of the same length as this array
+     */
+    public final void set(int[] values) {
+        if (values.length != length) {
+            throw new IllegalArgumentException("Array length mismatch, expected " + length + ", got " + values.length);
+        }
+
+        int packedLength = this.array.length();
+        int i = 0;
+        // The specialized loops require every packed int to be full, otherwise the generic loop is used
+        switch (packedLength * valuesPerInt == length ? width : 0) {
+            case 1:
+                for (int index = 0; index < packedLength; index++) {
+                    int packed = 0;
+                    for (int shift = 0; shift < 32; shift++) {
+                        packed |= (values[i++] & 0x1) << shift;
+                    }
+                    this.array.set(index, packed);
+                }
+                break;
+            case 2:
+                for (int index = 0; index < packedLength; index++) {
+                    int packed = 0;
+                    for (int shift = 0; shift < 32; shift += 2) {
+                        packed |= (values[i++] & 0x3) << shift;
+                    }
+                    this.array.set(index, packed);
+                }
+                break;
+            case 4:
+                for (int index = 0; index < packedLength; index++) {
+                    int packed = 0;
+                    for (int shift = 0; shift < 32; shift += 4) {
+                        packed |= (values[i++] & 0xF) << shift;
+                    }
+                    this.array.set(index, packed);
+                }
+                break;
+            case 8:
+                for (int index = 0; index < packedLength; index++) {
+                    this.array.set(index, values[i] & 0xFF | (values[i + 1] & 0xFF) << 8 | (values[i + 2] & 0xFF) << 16 | values[i + 3] << 24);
+                    i += 4;
+                }
+                break;
+            case 16:
+                for (int index = 0; index < packedLength; index++) {
+                    this.array.set(index, values[i] & 0xFFFF | values[i + 1] << 16);
+                    i += 2;
+                }
+                break;
+            case 32:
+                for (int index = 0; index < packedLength; index++) {
+                    this.array.set(index, values[index]);
+                }
+                break;
+            default:
+                // Widths which are not a power of 2, or arrays with a partially used last int
+                for (int index = 0; index < packedLength; index++) {
+                    int packed = 0;
+                    for (int shift = 0, end = Math.min(i + valuesPerInt, length); i < end; i++, shift += width) {
+                        packed |= (values[i] & maxValue) << shift;
+                    }
+                    this.array.set(index, packed);
+                }
+                break;
+        }
+    }
+
     /**
      * Gets a packed version of this array.  Tearing may occur if the array is updated during this method call.
      */
     public int[] getPacked() {
-        int length = this.array.length();
-        int[] packed = new int[length];
-        for (int i = 0; i < length; i++) {
-            packed[i] = this.array.get(i);
-        }
-        return packed;
+        return array.toArray();
+    }
+
+    /**
+     * Gets the number of ints in the packed version of this array
+     *
+     * @return the packed length
+     */
+    public int getPackedLength() {
+        return array.length();
+    }
+
+    /**
+     * Gets an int from the packed version of this array, without copying it
+     *
+     * @param i the index in the packed array
+     * @return the packed int
+     */
+    public int getPacked(int i) {
+        return array.get(i);
+    }
+
+    /**
+     * Gets if the packed array is stored in direct memory
+     *
+     * @return true if the array is off-heap
+     */
+    public boolean isOffHeap() {
+        return array.isOffHeap();
+    }
+
+    /**
+     * Frees the direct memory used by the packed array.  The array must not be accessed after this call.  This has no effect for arrays stored on the heap.
+     */
+    public void release() {
+        array.release();
     }
 
     /**
@@ -312,20 +499,19 @@ public class AtomicVariableWidthArray implements Serializable {
     }
 
     private int getIndex(int i) {
-        return i >> indexShift;
+        return powerOfTwo ? i >> indexShift : i / valuesPerInt;
     }
 
     private int getSubIndex(int i) {
-        return subIndexMask & i;
+        return powerOfTwo ? subIndexMask & i : i % valuesPerInt;
     }
 
     private int unPack(int packed, int subIndex) {
-        return (packed & valueBitmask[subIndex]) >>> valueShift[subIndex];
+        return packed >>> (subIndex * width) & maxValue;
     }
 
     private int pack(int prev, int newValue, int subIndex) {
-        int bitmask = valueBitmask[subIndex];
-        int shift = valueShift[subIndex];
-        return (prev & ~bitmask) | (bitmask & (newValue << shift));
+        int shift = subIndex * width;
+        return (prev & ~(maxValue << shift)) | ((newValue & maxValue) << shift);
     }
 }
@@ -0,0 +1,72 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+/**
+ * Checks the cuboid regions of blocks read and written by the block stores and their snapshots
+ */
+final class BlockRegions {
+    private BlockRegions() {
+    }
+
+    /**
+     * Checks that the region is inside the store.
+     *
+     * @param shift the log2 of the side of the store
+     * @return false if the region is empty
+     * @throws IllegalArgumentException if the region is outside of the store
+     */
+    static boolean check(int shift, int x, int y, int z, int sizeX, int sizeY, int sizeZ) {
+        int side = 1 << shift;
+        if (x < 0 || y < 0 || z < 0 || sizeX < 0 || sizeY < 0 || sizeZ < 0 || x + sizeX > side || y + sizeY > side || z + sizeZ > side) {
+            throw new IllegalArgumentException("Region (" + x + ", " + y + ", " + z + ") of size (" + sizeX + ", " + sizeY + ", " + sizeZ + ") is outside of the store");
+        }
+        return sizeX != 0 && sizeY != 0 && sizeZ != 0;
+    }
+
+    /**
+     * Checks that the array holds a state for every block of the region
+     *
+     * @throws IllegalArgumentException if the length of the array is not the volume of the region
+     */
+    static void checkStates(int[] states, int sizeX, int sizeY, int sizeZ) {
+        if (states.length != sizeX * sizeY * sizeZ) {
+            throw new IllegalArgumentException("Invalid array size! Expected: " + sizeX * sizeY * sizeZ + " Got: " + states.length);
+        }
+    }
+
+    /**
+     * Gets an array that can hold the states of the region
+     *
+     * @param array the array to use, or null
+     * @return the given array if its length is the volume of the region, otherwise a new array
+     */
+    static int[] getArray(int[] array, int sizeX, int sizeY, int sizeZ) {
+        int volume = sizeX * sizeY * sizeZ;
+        if (array == null || array.length != volume) {
+            array = new int[volume];
+        }
+        return array;
+    }
+}
@@ -0,0 +1,864 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+
+import com.flowpowered.commons.store.block.AtomicBlockStore;
+import com.flowpowered.commons.store.block.BlockVisitor;
+import com.flowpowered.math.vector.Vector3i;
+
+/**
+ * A palette based block store which is confined to a single thread.<br> <br> The block data is packed into a plain int array, using the same layout as {@link AtomicPaletteBlockStore}, and no
+ * atomic operations or locks are used.  The store must only be accessed by the thread that owns it, the lock methods have no effect.  Widths may be any number of bits, and expanding the palette
+ * adds a single bit to the width.<br> <br> Ownership is handed off by creating a confined store from an {@link AtomicPaletteBlockStore}, and by converting it back with {@link
+ * #toAtomicStore(boolean, int, boolean)}.  The packed array and the palette are copied as is, without unpacking the blocks, and the dirty blocks are carried over.
+ */
+public class ConfinedPaletteBlockStore implements AtomicBlockStore {
+    private static final int NO_ID = -1;
+    private final int shift;
+    private final int doubleShift;
+    private final int length;
+    private final int allowedPalette;
+    /**
+     * The packed palette ids, or the states of the blocks if the store is direct
+     */
+    private int[] packed;
+    private boolean direct;
+    private int width;
+    private boolean powerOfTwo;
+    private int valuesPerInt;
+    private int indexShift;
+    private int subIndexMask;
+    private int maxValue;
+    private int[] palette;
+    /**
+     * The number of blocks using each palette entry
+     */
+    private int[] counts;
+    private int paletteUsage;
+    private int unique;
+    private TIntIntHashMap idLookup;
+    /**
+     * Palette entries that have been reclaimed, the first freeCount entries are available
+     */
+    private int[] freeIds;
+    private int freeCount;
+    private final DirtyBlockTracker dirty;
+
+    /**
+     * Creates a new store with every block set to zero
+     *
+     * @param shift the log2 of the side of the store
+     * @param storeState whether or not the old and new states of the dirty blocks are recorded
+     * @param dirtySize the maximum number of dirty blocks that can be recorded before overflowing
+     */
+    public ConfinedPaletteBlockStore(int shift, boolean storeState, int dirtySize) {
+        int side = 1 << shift;
+        this.shift = shift;
+        this.doubleShift = shift << 1;
+        this.length = side * side * side;
+        this.allowedPalette = AtomicShortIntPaletteBackingArray.getAllowedPalette(length);
+        this.dirty = new DirtyBlockTracker(shift, storeState, dirtySize, false);
+        loadPalette(new int[] {0}, 1, null);
+    }
+
+    /**
+     * Creates a store holding the blocks of an atomic store, taking over its ownership.  The atomic store is locked while it is copied, and the dirty blocks of the atomic store are marked dirty in
+     * this store.  The atomic store should not be used once ownership has been handed off.
+     *
+     * @param store the atomic store
+     * @param storeState whether or not the old and new states of the dirty blocks are recorded
+     * @param dirtySize the maximum number of dirty blocks that can be recorded before overflowing
+     */
+    public ConfinedPaletteBlockStore(AtomicPaletteBlockStore store, boolean storeState, int dirtySize) {
+        this(store.getShift(), storeState, dirtySize);
+        store.writeLock();
+        try {
+            int[] palette = store.getPalette();
+            if (palette.length == 0) {
+                toDirect(store.getPackedArray());
+            } else if (palette.length == 1) {
+                loadPalette(palette, 1, null);
+            } else {
+                loadPalette(palette, store.getPackedWidth(), store.getPackedArray());
+            }
+            store.getDirtyTracker().copyTo(dirty);
+        } finally {
+            store.writeUnlock();
+        }
+    }
+
+    /**
+     * Creates an atomic store holding the blocks of this store, handing off its ownership.  The dirty blocks of this store are marked dirty in the atomic store.  This store should not be used
+     * once ownership has been handed off.
+     *
+     * @param storeState whether or not the atomic store records the old and new states of the dirty blocks
+     * @param dirtySize the maximum number of dirty blocks that the atomic store can record before overflowing
+     * @param offHeap whether or not the block data of the atomic store should be stored in direct memory
+     * @return the atomic store
+     */
+    public AtomicPaletteBlockStore toAtomicStore(boolean storeState, int dirtySize, boolean offHeap) {
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(shift, storeState, true, dirtySize, getPalette(), width, IntBuffer.wrap(packed), offHeap, false, true);
+        dirty.copyTo(store.getDirtyTracker());
+        return store;
+    }
+
+    /**
+     * Replaces the block data by the given palette and packed ids.  If the packed ids are null, every block is set to the first palette entry.
+     */
+    private void loadPalette(int[] palette, int width, int[] packed) {
+        int capacity = Math.max(palette.length, Math.min(AtomicShortIntPaletteBackingArray.widthToPaletteSize(width), allowedPalette));
+        setWidth(width);
+        this.direct = false;
+        this.packed = packed != null ? packed : new int[getPackedLength()];
+        this.palette = Arrays.copyOf(palette, capacity);
+        this.paletteUsage = palette.length;
+        this.counts = new int[capacity];
+        this.freeIds = new int[capacity];
+        this.freeCount = 0;
+        if (packed == null) {
+            counts[0] = length;
+        } else {
+            for (int i = 0; i < length; i++) {
+                counts[getPackedId(i)]++;
+            }
+        }
+        // A reclaimed entry may still hold a value that is in use by another entry, the entry in use is mapped
+        this.idLookup = new TIntIntHashMap(capacity, Constants.DEFAULT_LOAD_FACTOR, 0, NO_ID);
+        unique = 0;
+        for (int id = 0; id < paletteUsage; id++) {
+            if (counts[id] > 0) {
+                idLookup.put(palette[id], id);
+                unique++;
+            }
+        }
+        for (int id = 0; id < paletteUsage; id++) {
+            if (counts[id] == 0 && !idLookup.containsKey(palette[id])) {
+                idLookup.put(palette[id], id);
+            }
+        }
+    }
+
+    /**
+     * Replaces the block data by the given states, without a palette
+     */
+    private void toDirect(int[] states) {
+        setWidth(32);
+        this.direct = true;
+        this.packed = states;
+        this.palette = null;
+        this.counts = null;
+        this.freeIds = null;
+        this.idLookup = null;
+        this.paletteUsage = 0;
+    }
+
+    /**
+     * Replaces the block data by the given states, using a palette of the smallest width that can hold the unique states
+     */
+    private void toPalette(int[] states, int unique) {
+        int width = AtomicShortIntPaletteBackingArray.getCompactWidth(unique - 1);
+        int capacity = Math.min(AtomicShortIntPaletteBackingArray.widthToPaletteSize(width), allowedPalette);
+        setWidth(width);
+        this.direct = false;
+        this.packed = new int[getPackedLength()];
+        this.palette = new int[capacity];
+        this.counts = new int[capacity];
+        this.freeIds = new int[capacity];
+        this.freeCount = 0;
+        this.paletteUsage = 0;
+        this.unique = 0;
+        this.idLookup = new TIntIntHashMap(capacity, Constants.DEFAULT_LOAD_FACTOR, 0, NO_ID);
+        for (int i = 0; i < length; i++) {
+            int id = idLookup.get(states[i]);
+            if (id == NO_ID) {
+                id = paletteUsage++;
+                palette[id] = states[i];
+                idLookup.put(states[i], id);
+                unique++;
+            }
+            counts[id]++;
+            setPackedId(i, id);
+        }
+    }
+
+    private void setWidth(int width) {
+        this.width = width;
+        this.valuesPerInt = 32 / width;
+        this.powerOfTwo = (width & (width - 1)) == 0;
+        this.indexShift = Integer.numberOfTrailingZeros(valuesPerInt);
+        this.subIndexMask = valuesPerInt - 1;
+        this.maxValue = width == 32 ? -1 : (1 << width) - 1;
+    }
+
+    private int getPackedLength() {
+        return (length + valuesPerInt - 1) / valuesPerInt;
+    }
+
+    private int getPackedId(int i) {
+        int index = powerOfTwo ? i >> indexShift : i / valuesPerInt;
+        int subIndex = powerOfTwo ? i & subIndexMask : i - index * valuesPerInt;
+        return packed[index] >>> (subIndex * width) & maxValue;
+    }
+
+    private void setPackedId(int i, int id) {
+        int index = powerOfTwo ? i >> indexShift : i / valuesPerInt;
+        int valueShift = (powerOfTwo ? i & subIndexMask : i - index * valuesPerInt) * width;
+        packed[index] = packed[index] & ~(maxValue << valueShift) | id << valueShift;
+    }
+
+    private int getState(int index) {
+        return direct ? packed[index] : palette[getPackedId(index)];
+    }
+
+    /**
+     * Sets the state of the block at the given index
+     *
+     * @return the old state
+     */
+    private int setState(int index, int state) {
+        int id = direct ? NO_ID : getId(state);
+        if (direct) {
+            int old = packed[index];
+            packed[index] = state;
+            return old;
+        }
+        int oldId = getPackedId(index);
+        if (oldId != id) {
+            setPackedId(index, id);
+            if (counts[id]++ == 0) {
+                unique++;
+            }
+            if (--counts[oldId] == 0) {
+                unique--;
+            }
+        }
+        return palette[oldId];
+    }
+
+    /**
+     * Gets the palette id for the given state, allocating an id if required.  Allocating an id may expand the palette, or convert the store to a direct store, in which case {@link #NO_ID} is
+     * returned.
+     */
+    private int getId(int state) {
+        int id = idLookup.get(state);
+        if (id != NO_ID) {
+            return id;
+        }
+        if (freeCount == 0 && paletteUsage == palette.length) {
+            makeRoom();
+            if (direct) {
+                return NO_ID;
+            }
+        }
+        id = freeCount > 0 ? freeIds[--freeCount] : paletteUsage++;
+        palette[id] = state;
+        idLookup.put(state, id);
+        return id;
+    }
+
+    /**
+     * Makes room in the full palette.  Unused palette entries are reclaimed if possible, otherwise a bit is added to the width, or the store is converted to a direct store if the palette is at its
+     * maximum size.
+     */
+    private void makeRoom() {
+        // Ids are popped from the end, so the lowest ids are reused first
+        for (int id = paletteUsage - 1; id >= 0; id--) {
+            if (counts[id] == 0) {
+                if (idLookup.get(palette[id]) == id) {
+                    idLookup.remove(palette[id]);
+                }
+                freeIds[freeCount++] = id;
+            }
+        }
+        if (freeCount > 0) {
+            return;
+        }
+        int capacity = Math.min(AtomicShortIntPaletteBackingArray.widthToPaletteSize(width + 1), allowedPalette);
+        if (capacity <= palette.length) {
+            toDirect(getFullArray());
+            return;
+        }
+        int[] ids = new int[length];
+        for (int i = 0; i < length; i++) {
+            ids[i] = getPackedId(i);
+        }
+        setWidth(width + 1);
+        packed = new int[getPackedLength()];
+        for (int i = 0; i < length; i++) {
+            setPackedId(i, ids[i]);
+        }
+        palette = Arrays.copyOf(palette, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        freeIds = new int[capacity];
+    }
+
+    private int getIndex(int x, int y, int z) {
+        return (y << doubleShift) + (z << shift) + x;
+    }
+
+    @Override
+    public int getShift() {
+        return shift;
+    }
+
+    @Override
+    public short getBlockId(int x, int y, int z) {
+        return (short) (getFullData(x, y, z) >> 16);
+    }
+
+    @Override
+    public short getData(int x, int y, int z) {
+        return (short) getFullData(x, y, z);
+    }
+
+    @Override
+    public short getData(int x, int y, int z, DataMask mask) {
+        return mask.extract(getData(x, y, z));
+    }
+
+    @Override
+    public int getFullData(int x, int y, int z) {
+        return getState(getIndex(x, y, z));
+    }
+
+    @Override
+    public int getFullData(int index) {
+        return getState(index);
+    }
+
+    @Override
+    public int touchBlock(int x, int y, int z) {
+        int state = getFullData(x, y, z);
+        markDirty(x, y, z, state, state);
+        return state;
+    }
+
+    @Override
+    public void setBlockId(int x, int y, int z, short id) {
+        int index = getIndex(x, y, z);
+        int oldState = getState(index);
+        int newState = id << 16 | oldState & 0xFFFF;
+        setState(index, newState);
+        markDirty(x, y, z, oldState, newState);
+    }
+
+    @Override
+    public void setData(int x, int y, int z, short data) {
+        int index = getIndex(x, y, z);
+        int oldState = getState(index);
+        int newState = oldState & 0xFFFF0000 | data & 0xFFFF;
+        setState(index, newState);
+        markDirty(x, y, z, oldState, newState);
+    }
+
+    @Override
+    public void setData(int x, int y, int z, short data, DataMask mask) {
+        setData(x, y, z, mask.apply(data));
+    }
+
+    @Override
+    public boolean isBlockUniform() {
+        return unique == 1 && !direct;
+    }
+
+    @Override
+    public void setBlock(int x, int y, int z, short id, short data) {
+        getAndSetBlock(x, y, z, id, data);
+    }
+
+    @Override
+    public void setBlock(int x, int y, int z, short id, short data, DataMask mask) {
+        getAndSetBlock(x, y, z, id, data, mask);
+    }
+
+    @Override
+    public int getAndSetBlock(int x, int y, int z, short id, short data) {
+        int newState = id << 16 | data & 0xFFFF;
+        int oldState = setState(getIndex(x, y, z), newState);
+        markDirty(x, y, z, oldState, newState);
+        return oldState;
+    }
+
+    @Override
+    public int getAndSetBlock(int x, int y, int z, short id, short data, DataMask mask) {
+        int index = getIndex(x, y, z);
+        data = mask.apply(data);
+        int oldState = getState(index);
+        int newState = id << 16 | (oldState & ~(mask.getMask() << mask.getShift()) & 0xFFFF | data & 0xFFFF);
+        setState(index, newState);
+        markDirty(x, y, z, oldState, newState);
+        return oldState;
+    }
+
+    @Override
+    public boolean compareAndSetBlock(int x, int y, int z, short expectId, short expectData, short newId, short newData) {
+        int index = getIndex(x, y, z);
+        int exp = expectId << 16 | expectData & 0xFFFF;
+        int update = newId << 16 | newData & 0xFFFF;
+        if (getState(index) != exp) {
+            return false;
+        }
+        if (exp != update) {
+            setState(index, update);
+            markDirty(x, y, z, exp, update);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean compareAndSetBlocks(int[] indexes, int[] expect, int[] update) {
+        if (expect.length != indexes.length || update.length != indexes.length) {
+            throw new IllegalArgumentException("The index, expected state and new state arrays must have the same length");
+        }
+        for (int i = 0; i < indexes.length; i++) {
+            if (getState(indexes[i]) != expect[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < indexes.length; i++) {
+            if (expect[i] != update[i]) {
+                setState(indexes[i], update[i]);
+            }
+        }
+        dirty.mark(indexes, expect, update);
+        return true;
+    }
+
+    /**
+     * Visits every block whose state matches the visitor, in index order.  Uniform stores are skipped at once when their state does not match, and palette stores only read the packed data if a
+     * palette entry matches.  Data tearing may occur if the store is updated during this method call.
+     *
+     * @param visitor the visitor
+     * @return the number of blocks visited
+     */
+    public int visitBlocks(BlockVisitor visitor) {
+        int visited = 0;
+        if (direct) {
+            for (int i = 0; i < length; i++) {
+                if (visitor.matches(packed[i])) {
+                    visitor.visit(i, packed[i]);
+                    visited++;
+                }
+            }
+            return visited;
+        }
+        boolean[] matches = new boolean[paletteUsage];
+        boolean any = false;
+        for (int id = 0; id < paletteUsage; id++) {
+            if (counts[id] > 0 && visitor.matches(palette[id])) {
+                matches[id] = true;
+                any = true;
+            }
+        }
+        if (!any) {
+            return 0;
+        }
+        for (int i = 0; i < length; i++) {
+            int id = getPackedId(i);
+            if (matches[id]) {
+                visitor.visit(i, palette[id]);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Gets the number of blocks with the given state.  The counts are maintained as blocks are set, so for uniform and palette stores this does not scan the blocks.
+     *
+     * @param state the block state, the block id in the upper 16 bits and the data in the lower 16 bits
+     * @return the number of blocks
+     */
+    public int getBlockCount(int state) {
+        if (direct) {
+            int count = 0;
+            for (int i = 0; i < length; i++) {
+                if (packed[i] == state) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        int id = idLookup.get(state);
+        return id == NO_ID ? 0 : counts[id];
+    }
+
+    /**
+     * Gets the number of blocks with each state in use.  For uniform and palette stores, this takes a time proportional to the size of the palette.
+     *
+     * @return a map of the block states to their counts
+     */
+    public TIntIntHashMap getStateCounts() {
+        TIntIntHashMap stateCounts = new TIntIntHashMap();
+        if (direct) {
+            for (int i = 0; i < length; i++) {
+                stateCounts.adjustOrPutValue(packed[i], 1, 1);
+            }
+        } else {
+            for (int id = 0; id < paletteUsage; id++) {
+                if (counts[id] > 0) {
+                    stateCounts.adjustOrPutValue(palette[id], counts[id], counts[id]);
+                }
+            }
+        }
+        return stateCounts;
+    }
+
+    /**
+     * Sets the block id and data for every block in the cuboid region starting at (x, y, z) and of the given size.<br> <br> The region is marked dirty as a whole, by updating the dirty bounds and
+     * overflowing the dirty arrays, instead of recording each block.
+     *
+     * @param x the x coordinate of the region origin
+     * @param y the y coordinate of the region origin
+     * @param z the z coordinate of the region origin
+     * @param sizeX the size of the region on the x axis
+     * @param sizeY the size of the region on the y axis
+     * @param sizeZ the size of the region on the z axis
+     * @param id the block id
+     * @param data the block data
+     */
+    public void fillBlocks(int x, int y, int z, int sizeX, int sizeY, int sizeZ, short id, short data) {
+        if (!BlockRegions.check(shift, x, y, z, sizeX, sizeY, sizeZ)) {
+            return;
+        }
+        int state = id << 16 | data & 0xFFFF;
+        if (sizeX * sizeY * sizeZ == length) {
+            loadPalette(new int[] {state}, 1, null);
+        } else {
+            setRegion(getIndex(x, y, z), sizeX, sizeY, sizeZ, null, state);
+        }
+        markRegionDirty(x, y, z, x + sizeX - 1, y + sizeY - 1, z + sizeZ - 1);
+    }
+
+    /**
+     * Sets the full state for every block in the cuboid region starting at (x, y, z) and of the given size.<br> <br> The states are read from the array in x, z, y order, so the state for the block
+     * at (x + dx, y + dy, z + dz) is at index (dy * sizeZ + dz) * sizeX + dx. The region is marked dirty as a whole, by updating the dirty bounds and overflowing the dirty arrays, instead of recording
+     * each block.
+     *
+     * @param x the x coordinate of the region origin
+     * @param y the y coordinate of the region origin
+     * @param z the z coordinate of the region origin
+     * @param sizeX the size of the region on the x axis
+     * @param sizeY the size of the region on the y axis
+     * @param sizeZ the size of the region on the z axis
+     * @param states the full states of the blocks
+     */
+    public void setBlocks(int x, int y, int z, int sizeX, int sizeY, int sizeZ, int[] states) {
+        if (!BlockRegions.check(shift, x, y, z, sizeX, sizeY, sizeZ)) {
+            return;
+        }
+        BlockRegions.checkStates(states, sizeX, sizeY, sizeZ);
+        setRegion(getIndex(x, y, z), sizeX, sizeY, sizeZ, states, 0);
+        markRegionDirty(x, y, z, x + sizeX - 1, y + sizeY - 1, z + sizeZ - 1);
+    }
+
+    /**
+     * Sets the states of the blocks of a region, in the order of the region arrays.  The states are taken from the array, or are all the given state if the array is null.
+     */
+    private void setRegion(int index, int sizeX, int sizeY, int sizeZ, int[] states, int state) {
+        int offset = 0;
+        for (int dy = 0; dy < sizeY; dy++) {
+            for (int dz = 0; dz < sizeZ; dz++) {
+                int rowStart = index + (dy << doubleShift) + (dz << shift);
+                for (int i = rowStart; i < rowStart + sizeX; i++) {
+                    setState(i, states == null ? state : states[offset++]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the full state of every block in the cuboid region starting at (x, y, z) and of the given size into an array.<br> <br> The states are written in the same order as for {@link
+     * #setBlocks(int, int, int, int, int, int, int[])}. If the store is updated while the region is being copied, data tearing could occur.<br> <br> If the array is the wrong length or null, a new
+     * array is created.
+     *
+     * @param x the x coordinate of the region origin
+     * @param y the y coordinate of the region origin
+     * @param z the z coordinate of the region origin
+     * @param sizeX the size of the region on the x axis
+     * @param sizeY the size of the region on the y axis
+     * @param sizeZ the size of the region on the z axis
+     * @param array to place the states
+     * @return the array
+     */
+    public int[] getBlocks(int x, int y, int z, int sizeX, int sizeY, int sizeZ, int[] array) {
+        array = BlockRegions.getArray(array, sizeX, sizeY, sizeZ);
+        if (BlockRegions.check(shift, x, y, z, sizeX, sizeY, sizeZ)) {
+            int index = getIndex(x, y, z);
+            int offset = 0;
+            for (int dy = 0; dy < sizeY; dy++) {
+                for (int dz = 0; dz < sizeZ; dz++) {
+                    int rowStart = index + (dy << doubleShift) + (dz << shift);
+                    for (int i = rowStart; i < rowStart + sizeX; i++) {
+                        array[offset++] = getState(i);
+                    }
+                }
+            }
+        }
+        return array;
+    }
+
+    @Override
+    public boolean needsCompression() {
+        if (direct) {
+            return getUnique() <= allowedPalette;
+        }
+        return AtomicShortIntPaletteBackingArray.getCompactWidth(unique - 1) < width;
+    }
+
+    @Override
+    public int[] getFullArray() {
+        return getFullArray(null);
+    }
+
+    /**
+     * Copies both the block ids and data in the store into an array.<br> <br> If the store is updated while this snapshot is being taken, data tearing could occur.<br> <br> If the array is the
+     * wrong length or null, a new array is created.
+     *
+     * @param array to place the data
+     * @return the array
+     */
+    public int[] getFullArray(int[] array) {
+        if (array == null || array.length != length) {
+            array = new int[length];
+        }
+        for (int i = 0; i < length; i++) {
+            array[i] = getState(i);
+        }
+        return array;
+    }
+
+    @Override
+    public short[] getBlockIdArray() {
+        return getBlockIdArray(new short[length]);
+    }
+
+    @Override
+    public short[] getBlockIdArray(short[] array) {
+        if (array.length != length) {
+            throw new IllegalArgumentException("Invalid array size! Expected: " + length + " Got: " + array.length);
+        }
+        for (int i = 0; i < length; i++) {
+            array[i] = (short) (getState(i) >> 16);
+        }
+        return array;
+    }
+
+    @Override
+    public short[] getDataArray() {
+        return getDataArray(new short[length]);
+    }
+
+    @Override
+    public short[] getDataArray(DataMask mask) {
+        return getDataArray(new short[length], mask);
+    }
+
+    @Override
+    public short[] getDataArray(short[] array) {
+        if (array.length != length) {
+            array = new short[length];
+        }
+        for (int i = 0; i < length; i++) {
+            array[i] = (short) getState(i);
+        }
+        return array;
+    }
+
+    @Override
+    public short[] getDataArray(short[] array, DataMask mask) {
+        if (array.length != length) {
+            array = new short[length];
+        }
+        for (int i = 0; i < length; i++) {
+            array[i] = mask.extract((short) getState(i));
+        }
+        return array;
+    }
+
+    @Override
+    public void compress() {
+        if (!needsCompression()) {
+            return;
+        }
+        int[] states = getFullArray();
+        int unique = direct ? getUnique() : this.unique;
+        if (unique == 1) {
+            loadPalette(new int[] {states[0]}, 1, null);
+        } else {
+            toPalette(states, unique);
+        }
+    }
+
+    private int getUnique() {
+        if (!direct) {
+            return unique;
+        }
+        TIntHashSet inUse = new TIntHashSet();
+        inUse.addAll(packed);
+        return inUse.size();
+    }
+
+    @Override
+    public boolean isDirtyOverflow() {
+        return dirty.isOverflow();
+    }
+
+    @Override
+    public boolean isDirty() {
+        return dirty.isDirty();
+    }
+
+    @Override
+    public boolean resetDirtyArrays() {
+        return dirty.reset();
+    }
+
+    @Override
+    public int getDirtyBlocks() {
+        return dirty.getDirtyBlocks();
+    }
+
+    @Override
+    public Vector3i getMinDirty() {
+        return dirty.getMinDirty();
+    }
+
+    @Override
+    public Vector3i getMaxDirty() {
+        return dirty.getMaxDirty();
+    }
+
+    @Override
+    public Vector3i getDirtyBlock(int i) {
+        return dirty.getDirtyBlock(i);
+    }
+
+    /**
+     * Gets the block index of the dirty block at a given index.<br> <br> If there is no block at that index, then the method returns -1.  Block indexes are in the same order as for {@link
+     * #getFullData(int)}.
+     *
+     * @param i the index in the dirty arrays
+     * @return the block index
+     */
+    public int getDirtyIndex(int i) {
+        return dirty.getDirtyIndex(i);
+    }
+
+    @Override
+    public int getDirtyOldState(int i) {
+        return dirty.getDirtyOldState(i);
+    }
+
+    @Override
+    public int getDirtyNewState(int i) {
+        return dirty.getDirtyNewState(i);
+    }
+
+    @Override
+    public int encodeDelta(ByteBuffer buffer) {
+        return AtomicPaletteBlockStoreDeltaCodec.encode(this, buffer);
+    }
+
+    @Override
+    public int applyDelta(ByteBuffer buffer) {
+        return AtomicPaletteBlockStoreDeltaCodec.apply(this, buffer);
+    }
+
+    public void markDirty(int x, int y, int z, int oldState, int newState) {
+        dirty.mark(getIndex(x, y, z), oldState, newState);
+    }
+
+    /**
+     * Marks every block in the region from (minX, minY, minZ) to (maxX, maxY, maxZ), inclusive, as dirty.<br> <br> Only the dirty bounds are updated, the dirty arrays are marked as overflowed.
+     */
+    public void markRegionDirty(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        dirty.markRegion(minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /**
+     * Gets the tracker of the dirty blocks, used to carry the dirty blocks over when ownership is handed off
+     */
+    DirtyBlockTracker getDirtyTracker() {
+        return dirty;
+    }
+
+    /**
+     * Gets the number of bytes used by the block data of the store, excluding object headers.<br> <br> This can be summed over the loaded stores to account for the memory used by the block data.
+     *
+     * @return the memory usage, in bytes
+     */
+    public long getMemoryUsage() {
+        long usage = (long) packed.length << 2;
+        if (!direct) {
+            usage += ((long) palette.length << 2) * 3 + (long) idLookup.capacity() * 9;
+        }
+        return usage;
+    }
+
+    @Override
+    public int getPackedWidth() {
+        return direct ? AtomicShortIntPaletteBackingArray.roundUpWidth(length - 1) : width;
+    }
+
+    @Override
+    public int[] getPackedArray() {
+        return packed.clone();
+    }
+
+    @Override
+    public int[] getPalette() {
+        return direct ? new int[0] : Arrays.copyOf(palette, paletteUsage);
+    }
+
+    /**
+     * The store is confined to its owning thread, so this has no effect
+     */
+    @Override
+    public void writeLock() {
+    }
+
+    /**
+     * The store is confined to its owning thread, so this has no effect
+     */
+    @Override
+    public void writeUnlock() {
+    }
+
+    /**
+     * The store is confined to its owning thread, so this always succeeds
+     */
+    @Override
+    public boolean tryWriteLock() {
+        return true;
+    }
+}
@@ -0,0 +1,546 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.flowpowered.math.vector.Vector3i;
+
+/**
+ * Tracks the dirty blocks of a store: the bounds of every block marked dirty, and the position and, if requested, the old and new states of the first blocks marked, up to the dirty size.  Once
+ * more blocks are marked, or a region is marked, the dirty arrays overflow and only the bounds are kept.<br> <br> A concurrent tracker records the blocks marked by each thread in the stripe
+ * selected by the id of the thread, and merges the stripes into the dirty arrays when they are queried, so that marking threads do not contend on the bounds and the counter.  A stripe holds at
+ * most {@link #STRIPE_CAPACITY} blocks, once full it is merged by the marking thread, so the memory used by the stripes does not grow with the dirty size.  A confined tracker records the blocks
+ * directly in the dirty arrays, and must only be used by one thread.<br> <br> The dirty arrays are only allocated when the first block is recorded, most stores are never updated.
+ */
+final class DirtyBlockTracker {
+    /**
+     * The number of stripes.  Stripes are only allocated when used and are small, so there are several stripes per processor to make collisions between the marking threads rare.
+     */
+    private static final int STRIPES = StripedUpdateGate.STRIPES << 2;
+    /**
+     * The maximum number of blocks recorded by a stripe before it is merged
+     */
+    static final int STRIPE_CAPACITY = 64;
+    private final int shift;
+    private final int doubleShift;
+    private final int mask;
+    private final int dirtySize;
+    private final boolean storeState;
+    private final boolean concurrent;
+    private byte[] dirtyX;
+    private byte[] dirtyY;
+    private byte[] dirtyZ;
+    private int[] oldState;
+    private int[] newState;
+    /**
+     * The number of blocks marked, which may exceed the dirty size, and is at least the dirty size once a region was marked
+     */
+    private int dirtyBlocks = 0;
+    private int minX = 0;
+    private int minY = 0;
+    private int minZ = 0;
+    private int maxX = 0;
+    private int maxY = 0;
+    private int maxZ = 0;
+    /**
+     * The stripes of a concurrent tracker, both the array and the stripes are allocated when first used
+     */
+    private volatile AtomicReferenceArray<DirtyStripe> stripes;
+    /**
+     * Set when a stripe may hold dirty blocks that have not been merged
+     */
+    private volatile boolean pending;
+    /**
+     * Set once the dirty arrays of a concurrent tracker have overflowed, after which the stripes only record the bounds of the marked blocks
+     */
+    private volatile boolean overflowed;
+
+    /**
+     * Creates a new tracker
+     *
+     * @param shift the log2 of the side of the store
+     * @param storeState whether or not the old and new states of the dirty blocks are recorded
+     * @param dirtySize the maximum number of dirty blocks that can be recorded before overflowing
+     * @param concurrent whether or not blocks may be marked by several threads
+     */
+    DirtyBlockTracker(int shift, boolean storeState, int dirtySize, boolean concurrent) {
+        this.shift = shift;
+        this.doubleShift = shift << 1;
+        this.mask = (1 << shift) - 1;
+        this.dirtySize = dirtySize;
+        this.storeState = storeState;
+        this.concurrent = concurrent;
+    }
+
+    /**
+     * Marks a block as dirty.  Blocks marked by the same thread are recorded in the order they were marked.
+     *
+     * @param index the index of the block
+     * @param oldState the state of the block before the update
+     * @param newState the state of the block after the update
+     */
+    void mark(int index, int oldState, int newState) {
+        if (!concurrent) {
+            record(index, oldState, newState);
+            return;
+        }
+        int x = index & mask, y = index >> doubleShift, z = index >> shift & mask;
+        DirtyStripe stripe = getStripe();
+        if (overflowed) {
+            synchronized (stripe) {
+                stripe.markRegion(x, y, z, x, y, z);
+            }
+            setPending();
+            return;
+        }
+        while (true) {
+            synchronized (stripe) {
+                if (stripe.mark(index, x, y, z, oldState, newState, dirtySize)) {
+                    break;
+                }
+            }
+            spill();
+        }
+        setPending();
+    }
+
+    /**
+     * Marks the blocks at the given indexes as dirty, skipping the blocks whose state did not change.  A concurrent tracker records the batch under a single lock.
+     *
+     * @param indexes the indexes of the blocks
+     * @param oldStates the states of the blocks before the update
+     * @param newStates the states of the blocks after the update
+     */
+    void mark(int[] indexes, int[] oldStates, int[] newStates) {
+        if (!concurrent) {
+            for (int i = 0; i < indexes.length; i++) {
+                if (oldStates[i] != newStates[i]) {
+                    record(indexes[i], oldStates[i], newStates[i]);
+                }
+            }
+            return;
+        }
+        DirtyStripe stripe = getStripe();
+        int i = 0;
+        while (true) {
+            synchronized (stripe) {
+                for (; i < indexes.length; i++) {
+                    int index = indexes[i];
+                    if (oldStates[i] != newStates[i] && !stripe.mark(index, index & mask, index >> doubleShift, index >> shift & mask, oldStates[i], newStates[i], dirtySize)) {
+                        break;
+                    }
+                }
+            }
+            if (i == indexes.length) {
+                break;
+            }
+            spill();
+        }
+        setPending();
+    }
+
+    /**
+     * Marks every block in the region from (minX, minY, minZ) to (maxX, maxY, maxZ), inclusive, as dirty.  Only the bounds are updated, the dirty arrays are marked as overflowed.
+     */
+    void markRegion(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        if (!concurrent) {
+            updateBounds(minX, minY, minZ, maxX, maxY, maxZ);
+            dirtyBlocks = Math.max(dirtyBlocks, dirtySize);
+            return;
+        }
+        DirtyStripe stripe = getStripe();
+        synchronized (stripe) {
+            stripe.markRegion(minX, minY, minZ, maxX, maxY, maxZ);
+        }
+        setPending();
+    }
+
+    /**
+     * Marks the dirty blocks of this tracker dirty in another tracker.  If this tracker has overflowed, its bounds are marked as a region.
+     *
+     * @param to the tracker to mark the blocks in
+     */
+    synchronized void copyTo(DirtyBlockTracker to) {
+        merge();
+        if (dirtyBlocks == 0) {
+            return;
+        }
+        if (dirtyBlocks >= dirtySize) {
+            if (minX <= maxX && minY <= maxY && minZ <= maxZ) {
+                to.markRegion(minX, minY, minZ, maxX, maxY, maxZ);
+            }
+            return;
+        }
+        for (int i = 0; i < dirtyBlocks; i++) {
+            to.mark(getIndex(i), storeState ? oldState[i] : -1, storeState ? newState[i] : -1);
+        }
+    }
+
+    synchronized boolean isOverflow() {
+        merge();
+        return dirtyBlocks >= dirtySize;
+    }
+
+    synchronized boolean isDirty() {
+        merge();
+        return dirtyBlocks > 0;
+    }
+
+    /**
+     * Clears the dirty blocks and resets the bounds.  The blocks that were marked but not merged yet are cleared too.
+     *
+     * @return true if any block was dirty
+     */
+    synchronized boolean reset() {
+        merge();
+        minX = minY = minZ = Integer.MAX_VALUE;
+        maxX = maxY = maxZ = Integer.MIN_VALUE;
+        boolean dirty = dirtyBlocks > 0;
+        dirtyBlocks = 0;
+        overflowed = false;
+        return dirty;
+    }
+
+    synchronized int getDirtyBlocks() {
+        merge();
+        return dirtyBlocks;
+    }
+
+    synchronized Vector3i getMinDirty() {
+        merge();
+        return new Vector3i(minX, minY, minZ);
+    }
+
+    synchronized Vector3i getMaxDirty() {
+        merge();
+        return new Vector3i(maxX, maxY, maxZ);
+    }
+
+    synchronized Vector3i getDirtyBlock(int i) {
+        merge();
+        if (i >= dirtyBlocks || i >= dirtySize) {
+            return null;
+        }
+        return new Vector3i(dirtyX[i] & 0xFF, dirtyY[i] & 0xFF, dirtyZ[i] & 0xFF);
+    }
+
+    synchronized int getDirtyIndex(int i) {
+        merge();
+        if (i >= dirtyBlocks || i >= dirtySize) {
+            return -1;
+        }
+        return getIndex(i);
+    }
+
+    /**
+     * Copies the indexes of the dirty blocks, in the order they were recorded.  The indexes are copied while holding the lock of the tracker, so the copy is consistent even if blocks are marked or
+     * the tracker is reset concurrently.
+     *
+     * @return the indexes, or null if the dirty arrays have overflowed
+     */
+    synchronized int[] copyIndexes() {
+        merge();
+        if (dirtyBlocks >= dirtySize) {
+            return null;
+        }
+        int[] indexes = new int[dirtyBlocks];
+        if (dirtyBlocks > 0) {
+            // Entries reserved by incrementDirtyIndex may be the only ones
+            allocate();
+        }
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = getIndex(i);
+        }
+        return indexes;
+    }
+
+    synchronized int getDirtyOldState(int i) {
+        merge();
+        if (!storeState || i >= dirtyBlocks || i >= dirtySize) {
+            return -1;
+        }
+        return oldState[i];
+    }
+
+    synchronized int getDirtyNewState(int i) {
+        merge();
+        if (!storeState || i >= dirtyBlocks || i >= dirtySize) {
+            return -1;
+        }
+        return newState[i];
+    }
+
+    /**
+     * Reserves the next entry of the dirty arrays, without recording a block in it
+     *
+     * @return the index of the entry, which is at least the dirty size if the dirty arrays have overflowed
+     */
+    synchronized int incrementDirtyIndex() {
+        merge();
+        int index = dirtyBlocks;
+        if (index <= dirtySize) {
+            dirtyBlocks = index + 1;
+            if (index + 1 >= dirtySize && concurrent) {
+                overflowed = true;
+            }
+        }
+        return index;
+    }
+
+    private int getIndex(int i) {
+        return ((dirtyY[i] & 0xFF) << doubleShift) + ((dirtyZ[i] & 0xFF) << shift) + (dirtyX[i] & 0xFF);
+    }
+
+    /**
+     * Records a block in the dirty arrays.  This must be called by the confined thread, or while holding the lock of the tracker.
+     */
+    private void record(int index, int oldState, int newState) {
+        int x = index & mask;
+        int y = index >> doubleShift;
+        int z = index >> shift & mask;
+        updateBounds(x, y, z, x, y, z);
+        int i = dirtyBlocks;
+        if (i > dirtySize) {
+            return;
+        }
+        dirtyBlocks = i + 1;
+        if (i < dirtySize) {
+            allocate();
+            dirtyX[i] = (byte) x;
+            dirtyY[i] = (byte) y;
+            dirtyZ[i] = (byte) z;
+            if (storeState) {
+                this.oldState[i] = oldState;
+                this.newState[i] = newState;
+            }
+        }
+    }
+
+    private void updateBounds(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        this.minX = Math.min(this.minX, minX);
+        this.minY = Math.min(this.minY, minY);
+        this.minZ = Math.min(this.minZ, minZ);
+        this.maxX = Math.max(this.maxX, maxX);
+        this.maxY = Math.max(this.maxY, maxY);
+        this.maxZ = Math.max(this.maxZ, maxZ);
+    }
+
+    /**
+     * Allocates the dirty arrays if no block has been recorded yet
+     */
+    private void allocate() {
+        if (dirtyX == null) {
+            dirtyX = new byte[dirtySize];
+            dirtyY = new byte[dirtySize];
+            dirtyZ = new byte[dirtySize];
+            if (storeState) {
+                oldState = new int[dirtySize];
+                newState = new int[dirtySize];
+            }
+        }
+    }
+
+    /**
+     * Gets the stripe of the calling thread, allocating it if required
+     */
+    private DirtyStripe getStripe() {
+        AtomicReferenceArray<DirtyStripe> s = stripes;
+        if (s == null) {
+            s = allocateStripes();
+        }
+        // Thread ids are allocated sequentially, so concurrent threads usually map to different stripes
+        int slot = (int) Thread.currentThread().getId() & (s.length() - 1);
+        DirtyStripe stripe = s.get(slot);
+        if (stripe == null) {
+            stripe = new DirtyStripe(storeState);
+            if (!s.compareAndSet(slot, null, stripe)) {
+                stripe = s.get(slot);
+            }
+        }
+        return stripe;
+    }
+
+    private synchronized AtomicReferenceArray<DirtyStripe> allocateStripes() {
+        AtomicReferenceArray<DirtyStripe> s = stripes;
+        if (s == null) {
+            s = new AtomicReferenceArray<>(STRIPES);
+            stripes = s;
+        }
+        return s;
+    }
+
+    /**
+     * Flags the stripes as holding blocks to merge.  The flag is only written if it is not already set, so that marking threads do not contend on it.
+     */
+    private void setPending() {
+        if (!pending) {
+            pending = true;
+        }
+    }
+
+    /**
+     * Merges the stripes to make room in a full stripe.  The lock of the stripe must not be held, the stripes are always locked after the tracker.
+     */
+    private synchronized void spill() {
+        pending = true;
+        merge();
+    }
+
+    /**
+     * Merges the blocks recorded in the stripes into the dirty arrays and bounds.  Each stripe is merged as a batch, in the order its blocks were marked.  This must be called while holding the lock
+     * of the tracker.
+     */
+    private void merge() {
+        if (!pending) {
+            return;
+        }
+        // The flag is cleared before the stripes are read, blocks marked after a stripe is merged set it again
+        pending = false;
+        AtomicReferenceArray<DirtyStripe> s = stripes;
+        for (int i = 0; i < s.length(); i++) {
+            DirtyStripe stripe = s.get(i);
+            if (stripe != null) {
+                synchronized (stripe) {
+                    if (stripe.count > 0 || stripe.overflow) {
+                        merge(stripe);
+                        stripe.reset();
+                    }
+                }
+            }
+        }
+    }
+
+    private void merge(DirtyStripe stripe) {
+        updateBounds(stripe.minX, stripe.minY, stripe.minZ, stripe.maxX, stripe.maxY, stripe.maxZ);
+        int first = dirtyBlocks;
+        if (first > dirtySize) {
+            return;
+        }
+        int next = Math.min(first + stripe.count, dirtySize + 1);
+        if (stripe.overflow) {
+            next = Math.max(next, dirtySize);
+        }
+        dirtyBlocks = next;
+        if (next >= dirtySize && concurrent) {
+            overflowed = true;
+        }
+        int recorded = Math.min(Math.min(stripe.count, dirtySize), dirtySize - first);
+        if (recorded <= 0) {
+            return;
+        }
+        allocate();
+        for (int i = 0; i < recorded; i++) {
+            int index = stripe.indexes[i];
+            dirtyX[first + i] = (byte) (index & mask);
+            dirtyY[first + i] = (byte) (index >> doubleShift);
+            dirtyZ[first + i] = (byte) (index >> shift & mask);
+            if (storeState) {
+                oldState[first + i] = stripe.oldStates[i];
+                newState[first + i] = stripe.newStates[i];
+            }
+        }
+    }
+
+    /**
+     * The dirty blocks marked by the threads of a stripe since it was last merged.  Only accessed while holding the lock of the stripe.  The arrays grow up to the capacity of a stripe, and are kept
+     * between merges.
+     */
+    private static final class DirtyStripe {
+        private static final int INITIAL_CAPACITY = 16;
+        private int[] indexes = new int[0];
+        private int[] oldStates;
+        private int[] newStates;
+        private final boolean storeState;
+        /**
+         * The number of blocks marked, which may exceed the number of blocks recorded
+         */
+        private int count;
+        /**
+         * Set if a region was marked, in which case the dirty arrays overflow when merged
+         */
+        private boolean overflow;
+        private int minX, minY, minZ, maxX, maxY, maxZ;
+
+        private DirtyStripe(boolean storeState) {
+            this.storeState = storeState;
+            if (storeState) {
+                oldStates = new int[0];
+                newStates = new int[0];
+            }
+            reset();
+        }
+
+        /**
+         * Marks a block.  Blocks past the dirty size are only counted, since the dirty arrays overflow when they are merged.
+         *
+         * @return false if the stripe is full and must be merged before the block can be marked
+         */
+        private boolean mark(int index, int x, int y, int z, int oldState, int newState, int dirtySize) {
+            if (count < dirtySize) {
+                if (count == indexes.length) {
+                    if (count == STRIPE_CAPACITY) {
+                        return false;
+                    }
+                    int capacity = Math.min(Math.max(INITIAL_CAPACITY, count << 1), Math.min(STRIPE_CAPACITY, dirtySize));
+                    indexes = Arrays.copyOf(indexes, capacity);
+                    if (storeState) {
+                        oldStates = Arrays.copyOf(oldStates, capacity);
+                        newStates = Arrays.copyOf(newStates, capacity);
+                    }
+                }
+                indexes[count] = index;
+                if (storeState) {
+                    oldStates[count] = oldState;
+                    newStates[count] = newState;
+                }
+            }
+            updateBounds(x, y, z, x, y, z);
+            count++;
+            return true;
+        }
+
+        private void markRegion(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            updateBounds(minX, minY, minZ, maxX, maxY, maxZ);
+            overflow = true;
+        }
+
+        private void updateBounds(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            this.minX = Math.min(this.minX, minX);
+            this.minY = Math.min(this.minY, minY);
+            this.minZ = Math.min(this.minZ, minZ);
+            this.maxX = Math.max(this.maxX, maxX);
+            this.maxY = Math.max(this.maxY, maxY);
+            this.maxZ = Math.max(this.maxZ, maxZ);
+        }
+
+        private void reset() {
+            count = 0;
+            overflow = false;
+            minX = minY = minZ = Integer.MAX_VALUE;
+            maxX = maxY = maxZ = Integer.MIN_VALUE;
+        }
+    }
+}
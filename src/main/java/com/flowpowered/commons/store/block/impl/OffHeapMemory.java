@@ -0,0 +1,141 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.misc.Unsafe;
+
+/**
+ * Allocates, accesses and frees the direct memory used by the off-heap storages.<br> <br> Memory is freed either explicitly, or once the object owning it has been garbage collected. Since reads of
+ * the backing arrays are not locked, a replaced backing array may still be read by another thread, so its memory can only be freed safely by the garbage collector.<br> <br> This is the only class
+ * that uses {@link Unsafe}, the storages go through the accessors below.
+ */
+final class OffHeapMemory {
+    private static final Unsafe UNSAFE;
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+    /**
+     * Keeps the deallocators reachable until they are used
+     */
+    private static final Set<Deallocator> LIVE = Collections.newSetFromMap(new ConcurrentHashMap<Deallocator, Boolean>());
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private OffHeapMemory() {
+    }
+
+    /**
+     * Allocates a block of zeroed memory that will be freed when the owner is garbage collected, if it hasn't been freed explicitly before.
+     *
+     * @param owner the object owning the memory
+     * @param bytes the size of the memory block
+     * @return the deallocator for the memory block
+     */
+    static Deallocator allocate(Object owner, long bytes) {
+        freeCollected();
+        long address = UNSAFE.allocateMemory(bytes);
+        UNSAFE.setMemory(address, bytes, (byte) 0);
+        Deallocator deallocator = new Deallocator(owner, address);
+        LIVE.add(deallocator);
+        return deallocator;
+    }
+
+    static int getInt(long address) {
+        return UNSAFE.getIntVolatile(null, address);
+    }
+
+    static void putInt(long address, int value) {
+        UNSAFE.putIntVolatile(null, address, value);
+    }
+
+    static boolean compareAndSwapInt(long address, int expect, int update) {
+        return UNSAFE.compareAndSwapInt(null, address, expect, update);
+    }
+
+    static long getLong(long address) {
+        return UNSAFE.getLongVolatile(null, address);
+    }
+
+    static void putLong(long address, long value) {
+        UNSAFE.putLongVolatile(null, address, value);
+    }
+
+    static boolean compareAndSwapLong(long address, long expect, long update) {
+        return UNSAFE.compareAndSwapLong(null, address, expect, update);
+    }
+
+    /**
+     * Frees the memory of all the owners that have been garbage collected
+     */
+    static void freeCollected() {
+        Reference<?> reference;
+        while ((reference = QUEUE.poll()) != null) {
+            ((Deallocator) reference).free();
+        }
+    }
+
+    static final class Deallocator extends PhantomReference<Object> {
+        private final AtomicLong address;
+
+        private Deallocator(Object owner, long address) {
+            super(owner, QUEUE);
+            this.address = new AtomicLong(address);
+        }
+
+        /**
+         * Gets the address of the memory block
+         *
+         * @return the address
+         */
+        long getAddress() {
+            return address.get();
+        }
+
+        /**
+         * Frees the memory block.  Calling this method more than once has no effect.
+         */
+        void free() {
+            long old = address.getAndSet(0);
+            if (old != 0) {
+                UNSAFE.freeMemory(old);
+                LIVE.remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An unbounded log of block changes, appended to by many threads and drained by one.<br> <br> The log is split into stripes, and each thread appends to the stripe selected by its id, so threads
+ * only contend when they share a stripe.  Changes made by a thread are drained in the order they were made, changes made by different threads are not ordered.<br> <br> Stripes are only allocated
+ * when a thread first appends to them, and are trimmed when they are drained after a burst of changes.  The changes are drained into arrays owned by the log, which are reused by the next drain.
+ */
+class StripedChangeLog {
+    private static final int INITIAL_CAPACITY = 16;
+    private final AtomicReferenceArray<Stripe> stripes = new AtomicReferenceArray<>(StripedUpdateGate.STRIPES);
+    private int[] indexes = new int[INITIAL_CAPACITY];
+    private int[] oldStates = new int[INITIAL_CAPACITY];
+    private int[] newStates = new int[INITIAL_CAPACITY];
+
+    /**
+     * Appends a change to the stripe of the calling thread
+     *
+     * @param index the index of the block
+     * @param oldState the state of the block before the change
+     * @param newState the state of the block after the change
+     */
+    void add(int index, int oldState, int newState) {
+        int i = (int) Thread.currentThread().getId() & (stripes.length() - 1);
+        Stripe stripe = stripes.get(i);
+        if (stripe == null) {
+            stripes.compareAndSet(i, null, new Stripe());
+            stripe = stripes.get(i);
+        }
+        synchronized (stripe) {
+            stripe.add(index, oldState, newState);
+        }
+    }
+
+    /**
+     * Removes every change from the log, copying them to the arrays returned by {@link #getIndexes()}, {@link #getOldStates()} and {@link #getNewStates()}.  The arrays are reused, so they are only
+     * valid until the next drain, and may hold more entries than the number of changes.
+     *
+     * @return the number of changes removed
+     */
+    int drain() {
+        int count = 0;
+        for (int i = 0; i < stripes.length(); i++) {
+            Stripe stripe = stripes.get(i);
+            if (stripe == null) {
+                continue;
+            }
+            synchronized (stripe) {
+                int size = stripe.size;
+                if (count + size > indexes.length) {
+                    int capacity = Math.max(count + size, indexes.length << 1);
+                    indexes = Arrays.copyOf(indexes, capacity);
+                    oldStates = Arrays.copyOf(oldStates, capacity);
+                    newStates = Arrays.copyOf(newStates, capacity);
+                }
+                System.arraycopy(stripe.indexes, 0, indexes, count, size);
+                System.arraycopy(stripe.oldStates, 0, oldStates, count, size);
+                System.arraycopy(stripe.newStates, 0, newStates, count, size);
+                count += size;
+                stripe.clear();
+            }
+        }
+        if (indexes.length > INITIAL_CAPACITY && count < indexes.length >> 2) {
+            // The last burst is over, the arrays are halved until they fit the changes again
+            int capacity = indexes.length >> 1;
+            indexes = Arrays.copyOf(indexes, capacity);
+            oldStates = Arrays.copyOf(oldStates, capacity);
+            newStates = Arrays.copyOf(newStates, capacity);
+        }
+        return count;
+    }
+
+    /**
+     * Removes every change from the log, discarding them
+     */
+    void clear() {
+        for (int i = 0; i < stripes.length(); i++) {
+            Stripe stripe = stripes.get(i);
+            if (stripe != null) {
+                synchronized (stripe) {
+                    stripe.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the indexes of the blocks of the changes removed by the last drain
+     *
+     * @return the indexes
+     */
+    int[] getIndexes() {
+        return indexes;
+    }
+
+    /**
+     * Gets the states of the blocks before the changes removed by the last drain
+     *
+     * @return the old states
+     */
+    int[] getOldStates() {
+        return oldStates;
+    }
+
+    /**
+     * Gets the states of the blocks after the changes removed by the last drain
+     *
+     * @return the new states
+     */
+    int[] getNewStates() {
+        return newStates;
+    }
+
+    private static class Stripe {
+        private int[] indexes = new int[INITIAL_CAPACITY];
+        private int[] oldStates = new int[INITIAL_CAPACITY];
+        private int[] newStates = new int[INITIAL_CAPACITY];
+        private int size = 0;
+
+        private void add(int index, int oldState, int newState) {
+            if (size == indexes.length) {
+                indexes = Arrays.copyOf(indexes, size << 1);
+                oldStates = Arrays.copyOf(oldStates, size << 1);
+                newStates = Arrays.copyOf(newStates, size << 1);
+            }
+            indexes[size] = index;
+            oldStates[size] = oldState;
+            newStates[size] = newState;
+            size++;
+        }
+
+        /**
+         * Empties the stripe, halving its arrays if they are mostly unused
+         */
+        private void clear() {
+            if (indexes.length > INITIAL_CAPACITY && size < indexes.length >> 2) {
+                int capacity = indexes.length >> 1;
+                indexes = new int[capacity];
+                oldStates = new int[capacity];
+                newStates = new int[capacity];
+            }
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tracks the threads which are updating a store, so that a resizing thread can wait for them to finish.<br> <br> The gate counts the updates that have started and ended, and the updates in progress
+ * are the difference between the two counts.  Updating threads do not share a single pair of counters.  As long as there is no contention, a single base pair is used.  Once two threads collide on
+ * the base pair, the gate inflates to an array of pairs, each on its own cache line, and each thread counts itself in the pair selected by its id.  An uncontended update costs one atomic operation
+ * to enter the gate and one to exit it.<br> <br> Updates are not blocked while the gate is open.  Closing the gate makes subsequent calls to {@link #enter()} fail and waits until the updates in
+ * progress have exited.  A call that fails counts itself as ended.  Only one thread may close the gate at a time, this is enforced by the owner of the gate.<br> <br> A reader that sees as many
+ * started as ended updates, and the same number of started updates after reading, knows that no update ran concurrently with its read.
+ */
+class StripedUpdateGate {
+    /**
+     * Returned by {@link #enter()} if the gate is closed
+     */
+    static final int CLOSED = -1;
+    /**
+     * The slot of the base counters
+     */
+    private static final int BASE = 0;
+    /**
+     * The offset of the ended update count from the slot of a pair, the started update count is at the slot
+     */
+    private static final int ENDED = 1;
+    /**
+     * The number of ints in a cache line
+     */
+    private static final int PADDING = 16;
+    /**
+     * The maximum number of pairs once inflated
+     */
+    private static final int MAX_STRIPES = 64;
+    static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final AtomicInteger baseStarted = new AtomicInteger();
+    private final AtomicInteger baseEnded = new AtomicInteger();
+    private volatile AtomicIntegerArray stripes;
+    private volatile boolean closed;
+
+    /**
+     * Enters the gate.  Each successful call must be followed by a call to {@link #exit(int)} with the returned slot.
+     *
+     * @return the slot used to count the calling thread, or {@link #CLOSED} if the gate is closed
+     */
+    int enter() {
+        AtomicIntegerArray s = stripes;
+        int slot;
+        if (s == null) {
+            int count = baseStarted.get();
+            if (baseStarted.compareAndSet(count, count + 1)) {
+                slot = BASE;
+            } else {
+                s = inflate();
+                slot = slot();
+                s.incrementAndGet(slot);
+            }
+        } else {
+            slot = slot();
+            s.incrementAndGet(slot);
+        }
+        if (closed) {
+            exit(slot);
+            return CLOSED;
+        }
+        return slot;
+    }
+
+    /**
+     * Exits the gate
+     *
+     * @param slot the slot returned by {@link #enter()}
+     */
+    void exit(int slot) {
+        if (slot == BASE) {
+            baseEnded.incrementAndGet();
+        } else {
+            stripes.incrementAndGet(slot + ENDED);
+        }
+    }
+
+    /**
+     * Gets the number of updates that have entered the gate, modulo 2^32.  This includes the calls to {@link #enter()} that failed.
+     *
+     * @return the number of started updates
+     */
+    int getStarted() {
+        return sum(baseStarted, 0);
+    }
+
+    /**
+     * Gets the number of updates that have exited the gate, modulo 2^32
+     *
+     * @return the number of ended updates
+     */
+    int getEnded() {
+        return sum(baseEnded, ENDED);
+    }
+
+    private int sum(AtomicInteger baseCount, int offset) {
+        int sum = baseCount.get();
+        AtomicIntegerArray s = stripes;
+        if (s != null) {
+            for (int slot = PADDING; slot < s.length(); slot += PADDING) {
+                sum += s.get(slot + offset);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Closes the gate and waits until all threads have exited it.  The caller must not be inside the gate.
+     */
+    void close() {
+        closed = true;
+        // Threads that enter after this point see the gate closed, so the counts of each pair only differ while updates that entered before are in progress
+        while (baseStarted.get() != baseEnded.get()) {
+            Thread.yield();
+        }
+        AtomicIntegerArray s = stripes;
+        if (s != null) {
+            for (int slot = PADDING; slot < s.length(); slot += PADDING) {
+                while (s.get(slot) != s.get(slot + ENDED)) {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the gate
+     */
+    void open() {
+        closed = false;
+    }
+
+    /**
+     * Gets if the gate is closed
+     *
+     * @return true if closed
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    private synchronized AtomicIntegerArray inflate() {
+        AtomicIntegerArray s = stripes;
+        if (s == null) {
+            // The first cache line is left unused, so that the counters do not share a line with the array header
+            s = new AtomicIntegerArray((STRIPES + 1) * PADDING);
+            stripes = s;
+        }
+        return s;
+    }
+
+    private static int slot() {
+        // Thread ids are allocated sequentially, so concurrent threads usually map to different counters
+        return (((int) Thread.currentThread().getId() & (STRIPES - 1)) + 1) * PADDING;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AtomicBlockStoreCompressorTest {
+    private static final int SHIFT = 4;
+    private static final int STORES = 100;
+
+    @Test
+    public void sweep() {
+        List<AtomicPaletteBlockStore> stores = new ArrayList<>();
+        for (int i = 0; i < STORES; i++) {
+            AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, 10);
+            // Widen the palette, then go back to a few states
+            for (int id = 0; id < 20; id++) {
+                store.setBlock(id, id & 0xF, 0, (short) (id + 1), (short) 0);
+            }
+            if (i % 2 == 0) {
+                for (int id = 0; id < 20; id++) {
+                    store.setBlock(id, id & 0xF, 0, (short) 1, (short) 0);
+                }
+                assertTrue(store.needsCompression());
+            }
+            stores.add(store);
+        }
+        AtomicBlockStoreCompressor compressor = new AtomicBlockStoreCompressor(new ForkJoinPool(4));
+
+        AtomicBlockStoreCompressor.Result skipped = compressor.compress(stores, 0, TimeUnit.SECONDS);
+        assertEquals(STORES, skipped.getSkipped());
+        assertEquals(0, skipped.getCompressed());
+
+        long usage = 0;
+        for (AtomicPaletteBlockStore store : stores) {
+            usage += store.getMemoryUsage();
+        }
+        AtomicBlockStoreCompressor.Result result = compressor.compress(stores, 1, TimeUnit.MINUTES);
+        assertEquals(0, result.getSkipped());
+        assertEquals(STORES / 2, result.getCompressed());
+        assertTrue(result.getBytesReclaimed() > 0);
+        for (AtomicPaletteBlockStore store : stores) {
+            assertFalse(store.needsCompression());
+            usage -= store.getMemoryUsage();
+        }
+        assertEquals(usage, result.getBytesReclaimed());
+    }
+}
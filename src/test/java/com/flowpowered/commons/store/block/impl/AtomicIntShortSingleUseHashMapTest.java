@@ -0,0 +1,68 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class AtomicIntShortSingleUseHashMapTest {
+    @Test
+    public void getOrAssign() throws PaletteFullException {
+        AtomicIntShortSingleUseHashMap map = new AtomicIntShortSingleUseHashMap(20);
+        assertTrue("Capacity is not a power of two", map.capacity() == 32);
+        CountingAllocator allocator = new CountingAllocator();
+        // Keys which only differ in their high bits must not all collide
+        for (int i = 0; i < 16; i++) {
+            assertTrue("Wrong value assigned to key " + i, map.getOrAssign(i << 20, allocator) == i);
+        }
+        for (int i = 0; i < 16; i++) {
+            assertTrue("Wrong value for key " + i, map.getOrAssign(i << 20, allocator) == i);
+            assertTrue("Wrong value for key " + i, map.get(i << 20) == i);
+        }
+        assertTrue("Allocator called for present keys", allocator.next == 16);
+        assertTrue("Absent key has a value", map.isEmptyValue(map.get(12345)));
+        assertTrue("Present key was replaced", map.putIfAbsent(0, (short) 100) == 0);
+    }
+
+    @Test(expected = PaletteFullException.class)
+    public void allocatorFailure() throws PaletteFullException {
+        AtomicIntShortSingleUseHashMap map = new AtomicIntShortSingleUseHashMap(4);
+        map.getOrAssign(1, new AtomicIntShortSingleUseHashMap.ValueAllocator() {
+            @Override
+            public short allocate(int key) throws PaletteFullException {
+                throw new PaletteFullException();
+            }
+        });
+    }
+
+    private static class CountingAllocator implements AtomicIntShortSingleUseHashMap.ValueAllocator {
+        private short next = 0;
+
+        @Override
+        public short allocate(int key) {
+            return next++;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AtomicOctreeBlockStoreTest {
+    private static final int SHIFT = 4;
+    private static final int SIDE = 1 << SHIFT;
+    private static final int DIRTY_SIZE = 10;
+
+    @Test
+    public void matchesPaletteStore() {
+        AtomicOctreeBlockStore octree = new AtomicOctreeBlockStore(SHIFT, true, DIRTY_SIZE);
+        AtomicPaletteBlockStore palette = new AtomicPaletteBlockStore(SHIFT, true, DIRTY_SIZE);
+        assertTrue(octree.isBlockUniform());
+        Random random = new Random();
+        for (int i = 0; i < 2000; i++) {
+            int x = random.nextInt(SIDE), y = random.nextInt(SIDE), z = random.nextInt(SIDE);
+            short id = (short) random.nextInt(10);
+            assertEquals(palette.getAndSetBlock(x, y, z, id, (short) 1), octree.getAndSetBlock(x, y, z, id, (short) 1));
+        }
+        octree.fillBlocks(1, 2, 3, 9, 7, 5, (short) 20, (short) 0);
+        palette.fillBlocks(1, 2, 3, 9, 7, 5, (short) 20, (short) 0);
+        assertArrayEquals(palette.getFullArray(), octree.getFullArray());
+        assertArrayEquals(palette.getBlocks(3, 1, 2, 5, 6, 7, null), octree.getBlocks(3, 1, 2, 5, 6, 7, null));
+        assertEquals(palette.getStateCounts(), octree.getStateCounts());
+        assertEquals(palette.getBlockCount(20 << 16), octree.getBlockCount(20 << 16));
+
+        assertFalse(octree.compareAndSetBlock(1, 2, 3, (short) 0, (short) 0, (short) 5, (short) 0));
+        assertTrue(octree.compareAndSetBlock(1, 2, 3, (short) 20, (short) 0, (short) 5, (short) 0));
+        assertEquals(5 << 16, octree.getFullData(1, 2, 3));
+        assertFalse(octree.compareAndSetBlocks(new int[] {0, 1}, new int[] {octree.getFullData(0), -1}, new int[] {7, 7}));
+        assertTrue(octree.compareAndSetBlocks(new int[] {0, 1}, new int[] {octree.getFullData(0), octree.getFullData(1)}, new int[] {7, 8}));
+        assertEquals(8, octree.getFullData(1, 0, 0));
+    }
+
+    @Test
+    public void collapse() {
+        AtomicOctreeBlockStore store = new AtomicOctreeBlockStore(SHIFT, false, DIRTY_SIZE);
+        store.setBlock(5, 6, 7, (short) 1, (short) 0);
+        assertFalse(store.isBlockUniform());
+        assertFalse(store.needsCompression());
+        store.setBlock(5, 6, 7, (short) 0, (short) 0);
+        assertTrue(store.needsCompression());
+        store.compress();
+        assertTrue(store.isBlockUniform());
+        assertEquals(0, store.getMemoryUsage());
+
+        store.setBlock(0, 0, 0, (short) 1, (short) 0);
+        store.fillBlocks(0, 0, 0, SIDE, SIDE, SIDE / 2, (short) 2, (short) 0);
+        store.fillBlocks(0, 0, SIDE / 2, SIDE, SIDE, SIDE / 2, (short) 2, (short) 0);
+        assertEquals(SIDE * SIDE * SIDE, store.getBlockCount(2 << 16));
+        assertTrue(store.needsCompression());
+        store.compress();
+        assertTrue(store.isBlockUniform());
+        assertTrue(store.isDirtyOverflow());
+    }
+
+    @Test
+    public void sparseMemoryUsage() {
+        int shift = 6;
+        AtomicOctreeBlockStore octree = new AtomicOctreeBlockStore(shift, false, DIRTY_SIZE);
+        AtomicPaletteBlockStore palette = new AtomicPaletteBlockStore(shift, false, DIRTY_SIZE);
+        for (int i = 0; i < 8; i++) {
+            octree.setBlock(i, 40, 10, (short) (i + 1), (short) 0);
+            palette.setBlock(i, 40, 10, (short) (i + 1), (short) 0);
+        }
+        assertArrayEquals(palette.getFullArray(), octree.getFullArray());
+        assertTrue(octree.getMemoryUsage() * 100 < palette.getMemoryUsage());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AtomicPaletteBlockStoreCodecTest {
+    private static final int SHIFT = 4;
+    private static final int LENGTH = 1 << SHIFT * 3;
+
+    @Test
+    public void uniform() {
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, 10);
+        store.fillBlocks(0, 0, 0, 1 << SHIFT, 1 << SHIFT, 1 << SHIFT, (short) 7, (short) 2);
+        AtomicPaletteBlockStore decoded = roundTrip(store, ByteOrder.BIG_ENDIAN);
+        assertTrue(decoded.isBlockUniform());
+        assertArrayEquals(store.getFullArray(), decoded.getFullArray());
+    }
+
+    @Test
+    public void palette() {
+        AtomicPaletteBlockStore store = createStore(40);
+        assertEquals(8, store.getPackedWidth());
+        AtomicPaletteBlockStore decoded = roundTrip(store, ByteOrder.LITTLE_ENDIAN);
+        assertEquals(store.getPackedWidth(), decoded.getPackedWidth());
+        assertArrayEquals(store.getFullArray(), decoded.getFullArray());
+    }
+
+    @Test
+    public void direct() {
+        AtomicPaletteBlockStore store = createStore(LENGTH);
+        assertEquals(0, store.getPalette().length);
+        AtomicPaletteBlockStore decoded = roundTrip(store, ByteOrder.BIG_ENDIAN);
+        assertArrayEquals(store.getFullArray(), decoded.getFullArray());
+    }
+
+    @Test
+    public void channel() throws IOException {
+        AtomicPaletteBlockStore store = createStore(12);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AtomicPaletteBlockStoreCodec.encode(store, Channels.newChannel(out), ByteBuffer.allocate(64));
+        assertEquals(AtomicPaletteBlockStoreCodec.getEncodedSize(store), out.size());
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        AtomicPaletteBlockStore decoded = AtomicPaletteBlockStoreCodec.decode(buffer, false, 10, true);
+        assertFalse(buffer.hasRemaining());
+        assertArrayEquals(store.getFullArray(), decoded.getFullArray());
+        decoded.release();
+    }
+
+    @Test
+    public void invalidInput() {
+        AtomicPaletteBlockStore store = createStore(40);
+        int paletteOffset = 8 + (store.getPackedArray().length << 2);
+        // Shift, width, packed array length, palette length and a palette id out of range
+        assertInvalid(store, 1, 40, false);
+        assertInvalid(store, 3, 0, false);
+        assertInvalid(store, 3, 17, false);
+        assertInvalid(store, 4, Integer.MAX_VALUE, true);
+        assertInvalid(store, 4, -1, true);
+        assertInvalid(store, paletteOffset, 1 << 30, true);
+        assertInvalid(store, paletteOffset, 1, true);
+        assertInvalid(store, paletteOffset, 257, true);
+        assertInvalid(store, 8, -1, true);
+    }
+
+    private void assertInvalid(AtomicPaletteBlockStore store, int offset, int value, boolean isInt) {
+        ByteBuffer buffer = ByteBuffer.allocate(AtomicPaletteBlockStoreCodec.getEncodedSize(store));
+        AtomicPaletteBlockStoreCodec.encode(store, buffer);
+        buffer.flip();
+        if (isInt) {
+            buffer.putInt(offset, value);
+        } else {
+            buffer.put(offset, (byte) value);
+        }
+        try {
+            AtomicPaletteBlockStoreCodec.decode(buffer, false, 10, false);
+            fail("Decoded an invalid store, with " + value + " at " + offset);
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private AtomicPaletteBlockStore createStore(int unique) {
+        int[] states = new int[LENGTH];
+        Random random = new Random();
+        for (int i = 0; i < LENGTH; i++) {
+            states[i] = i < unique ? i : random.nextInt(unique);
+        }
+        return new AtomicPaletteBlockStore(SHIFT, false, true, 10, states);
+    }
+
+    private AtomicPaletteBlockStore roundTrip(AtomicPaletteBlockStore store, ByteOrder order) {
+        ByteBuffer buffer = ByteBuffer.allocate(AtomicPaletteBlockStoreCodec.getEncodedSize(store)).order(order);
+        AtomicPaletteBlockStoreCodec.encode(store, buffer);
+        assertFalse(buffer.hasRemaining());
+        buffer.flip();
+        AtomicPaletteBlockStore decoded = AtomicPaletteBlockStoreCodec.decode(buffer, false, 10, false);
+        assertFalse(buffer.hasRemaining());
+        return decoded;
+    }
+}
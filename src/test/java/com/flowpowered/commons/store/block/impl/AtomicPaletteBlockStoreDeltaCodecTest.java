@@ -0,0 +1,183 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.flowpowered.commons.store.block.AtomicBlockStore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AtomicPaletteBlockStoreDeltaCodecTest {
+    private static final int SHIFT = 4;
+    private static final int SIDE = 1 << SHIFT;
+    private static final int DIRTY_SIZE = 64;
+
+    @Test
+    public void dirtyArrays() {
+        AtomicPaletteBlockStore source = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        AtomicPaletteBlockStore target = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        for (int x = 0; x < 8; x++) {
+            source.setBlock(x, 5, 6, (short) 3, (short) x);
+            // Blocks changed twice are only written once
+            source.setBlock(x, 5, 6, (short) 4, (short) x);
+        }
+        source.setBlock(15, 15, 15, (short) 4, (short) 0);
+        assertEquals(9, roundTrip(source, target));
+        assertArrayEquals(source.getFullArray(), target.getFullArray());
+        assertTrue(target.isDirty());
+    }
+
+    @Test
+    public void octree() {
+        AtomicOctreeBlockStore source = new AtomicOctreeBlockStore(SHIFT, false, DIRTY_SIZE);
+        AtomicPaletteBlockStore target = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        for (int x = 0; x < 8; x++) {
+            source.setBlock(x, 5, 6, (short) 3, (short) x);
+        }
+        source.setBlock(15, 15, 15, (short) 4, (short) 0);
+        assertEquals(9, roundTrip(source, target));
+        assertArrayEquals(source.getFullArray(), target.getFullArray());
+    }
+
+    @Test
+    public void dirtyBitmap() {
+        AtomicPaletteBlockStore source = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE, false, true);
+        AtomicPaletteBlockStore target = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        Random random = new Random();
+        // More distinct states than fit in the palette, and more blocks than fit in the dirty arrays
+        for (int i = 0; i < 1000; i++) {
+            source.setBlock(random.nextInt(SIDE), random.nextInt(SIDE), random.nextInt(SIDE), (short) random.nextInt(1000), (short) 0);
+        }
+        assertTrue(source.isDirtyOverflow());
+        roundTrip(source, target);
+        assertArrayEquals(source.getFullArray(), target.getFullArray());
+    }
+
+    @Test
+    public void overflow() {
+        AtomicPaletteBlockStore source = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        AtomicPaletteBlockStore target = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        source.resetDirtyArrays();
+        source.fillBlocks(2, 3, 4, 5, 6, 7, (short) 12, (short) 1);
+        assertEquals(5 * 6 * 7, roundTrip(source, target));
+        assertArrayEquals(source.getFullArray(), target.getFullArray());
+    }
+
+    @Test
+    public void bufferTooSmall() {
+        AtomicPaletteBlockStore source = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        source.setBlock(1, 2, 3, (short) 4, (short) 5);
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        try {
+            source.encodeDelta(buffer);
+            assertTrue("Delta did not overflow the buffer", false);
+        } catch (BufferOverflowException e) {
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    public void concurrentWriters() throws InterruptedException {
+        final AtomicPaletteBlockStore source = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] writers = new Thread[3];
+        for (int t = 0; t < writers.length; t++) {
+            final int seed = t;
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    while (running.get()) {
+                        source.setBlock(random.nextInt(SIDE), random.nextInt(SIDE), random.nextInt(SIDE), (short) random.nextInt(8), (short) 0);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        try {
+            // The dirty count changes and overflows while the delta is encoded
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            for (int i = 0; i < 5000; i++) {
+                buffer.clear();
+                source.encodeDelta(buffer);
+                source.resetDirtyArrays();
+            }
+        } finally {
+            running.set(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+    }
+
+    @Test
+    public void invalidDelta() {
+        byte[] negative = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+        // Negative gap, negative run, gap and run past the end of the store, and a palette id out of range
+        assertInvalidDelta(concat(negative, new byte[] {1, 0}));
+        assertInvalidDelta(concat(new byte[] {0}, negative));
+        assertInvalidDelta(new byte[] {(byte) 0x80, (byte) 0x80, 0x01, 1, 0});
+        assertInvalidDelta(new byte[] {0, (byte) 0x81, (byte) 0x80, 0x01});
+        assertInvalidDelta(new byte[] {0, 1, 1});
+    }
+
+    private static void assertInvalidDelta(byte[] run) {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put((byte) 1).put((byte) SHIFT).putInt(1 << 20).putShort((short) 1).putInt(5).putInt(1).put(run);
+        buffer.flip();
+        try {
+            new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE).applyDelta(buffer);
+            fail("Applied an invalid delta");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static int roundTrip(AtomicBlockStore source, AtomicPaletteBlockStore target) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        int written = source.encodeDelta(buffer);
+        assertEquals(written, buffer.position());
+        source.resetDirtyArrays();
+        buffer.flip();
+        int applied = target.applyDelta(buffer);
+        assertEquals(0, buffer.remaining());
+        return applied;
+    }
+}
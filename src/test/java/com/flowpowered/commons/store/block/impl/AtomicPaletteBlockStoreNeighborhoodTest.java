@@ -0,0 +1,73 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AtomicPaletteBlockStoreNeighborhoodTest {
+    private static final int SHIFT = 4;
+    private static final int SIDE = 1 << SHIFT;
+
+    @Test
+    public void paddedBlocks() {
+        Random random = new Random();
+        AtomicPaletteBlockStore[] stores = new AtomicPaletteBlockStore[27];
+        for (int i = 0; i < stores.length; i++) {
+            // One neighbour is missing, one is uniform and the others hold random blocks
+            if (i == AtomicPaletteBlockStoreNeighborhood.getNeighborIndex(1, 1, 1)) {
+                continue;
+            }
+            stores[i] = new AtomicPaletteBlockStore(SHIFT, false, 10);
+            if (i == AtomicPaletteBlockStoreNeighborhood.getNeighborIndex(-1, 0, 0)) {
+                stores[i].fillBlocks(0, 0, 0, SIDE, SIDE, SIDE, (short) 9, (short) 0);
+                continue;
+            }
+            int[] states = new int[SIDE * SIDE * SIDE];
+            for (int j = 0; j < states.length; j++) {
+                states[j] = random.nextInt(50);
+            }
+            stores[i].setBlocks(0, 0, 0, SIDE, SIDE, SIDE, states);
+        }
+        int padding = 1;
+        int paddedSide = SIDE + 2 * padding;
+        int[] padded = AtomicPaletteBlockStoreNeighborhood.getPaddedBlocks(stores, padding, -1, null);
+        assertEquals(paddedSide * paddedSide * paddedSide, padded.length);
+        for (int y = -padding; y < SIDE + padding; y++) {
+            for (int z = -padding; z < SIDE + padding; z++) {
+                for (int x = -padding; x < SIDE + padding; x++) {
+                    int dx = x < 0 ? -1 : x >= SIDE ? 1 : 0;
+                    int dy = y < 0 ? -1 : y >= SIDE ? 1 : 0;
+                    int dz = z < 0 ? -1 : z >= SIDE ? 1 : 0;
+                    AtomicPaletteBlockStore store = stores[AtomicPaletteBlockStoreNeighborhood.getNeighborIndex(dx, dy, dz)];
+                    int expected = store == null ? -1 : store.getFullData(x - dx * SIDE, y - dy * SIDE, z - dz * SIDE);
+                    assertEquals(expected, padded[((y + padding) * paddedSide + z + padding) * paddedSide + x + padding]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,642 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.flowpowered.commons.store.block.AtomicBlockStore;
+import com.flowpowered.commons.store.block.BlockChangeListener;
+import com.flowpowered.commons.store.block.BlockReadTransaction;
+import com.flowpowered.commons.store.block.BlockVisitor;
+import com.flowpowered.commons.store.block.StateFilter;
+import com.flowpowered.math.vector.Vector3i;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AtomicPaletteBlockStoreTest {
+    private static final int SHIFT = 4;
+    private static final int SIDE = 1 << SHIFT;
+    private static final int DIRTY_SIZE = 10;
+
+    @Test
+    public void fillRegion() {
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, true, DIRTY_SIZE);
+        store.resetDirtyArrays();
+        store.fillBlocks(2, 3, 4, 5, 6, 7, (short) 12, (short) 3);
+        for (int y = 0; y < SIDE; y++) {
+            for (int z = 0; z < SIDE; z++) {
+                for (int x = 0; x < SIDE; x++) {
+                    boolean inside = x >= 2 && x < 7 && y >= 3 && y < 9 && z >= 4 && z < 11;
+                    assertEquals(inside ? 12 << 16 | 3 : 0, store.getFullData(x, y, z));
+                }
+            }
+        }
+        assertTrue(store.isDirtyOverflow());
+        assertEquals(2, store.getMinDirty().getX());
+        assertEquals(9 - 1, store.getMaxDirty().getY());
+        assertEquals(11 - 1, store.getMaxDirty().getZ());
+
+        store.fillBlocks(0, 0, 0, SIDE, SIDE, SIDE, (short) 5, (short) 0);
+        assertTrue(store.isBlockUniform());
+        assertEquals(5 << 16, store.getFullData(9, 9, 9));
+    }
+
+    @Test
+    public void copyRegion() {
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, true, DIRTY_SIZE);
+        Random random = new Random();
+        int sizeX = 9, sizeY = 10, sizeZ = 11;
+        int[] states = new int[sizeX * sizeY * sizeZ];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = random.nextInt(100);
+        }
+        store.setBlocks(1, 2, 3, sizeX, sizeY, sizeZ, states);
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                for (int x = 0; x < sizeX; x++) {
+                    assertEquals(states[(y * sizeZ + z) * sizeX + x], store.getFullData(x + 1, y + 2, z + 3));
+                }
+            }
+        }
+        assertEquals(0, store.getFullData(0, 0, 0));
+        assertArrayEquals(states, store.getBlocks(1, 2, 3, sizeX, sizeY, sizeZ, null));
+
+        int[] row = store.getBlocks(0, 2, 3, SIDE, 1, 1, new int[SIDE]);
+        assertEquals(0, row[0]);
+        assertEquals(states[0], row[1]);
+    }
+
+    @Test
+    public void offHeap() {
+        AtomicPaletteBlockStore heap = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        AtomicPaletteBlockStore offHeap = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE, true);
+        assertTrue(offHeap.isOffHeap());
+        Random random = new Random();
+        for (int i = 0; i < 20000; i++) {
+            int x = random.nextInt(SIDE), y = random.nextInt(SIDE), z = random.nextInt(SIDE);
+            // Grow the number of distinct states over time so that every backing array type is used
+            short id = (short) random.nextInt(1 + i / 4);
+            heap.setBlock(x, y, z, id, (short) 0);
+            offHeap.setBlock(x, y, z, id, (short) 0);
+        }
+        assertArrayEquals(heap.getFullArray(), offHeap.getFullArray());
+        offHeap.compress();
+        assertArrayEquals(heap.getFullArray(), offHeap.getFullArray());
+        offHeap.release();
+        assertTrue(offHeap.isBlockUniform());
+        assertEquals(0, offHeap.getFullData(1, 2, 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void regionOutsideOfStore() {
+        new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE).fillBlocks(8, 0, 0, 9, 1, 1, (short) 1, (short) 0);
+    }
+
+    @Test
+    public void dirtyBitmap() {
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE, false, true);
+        assertTrue(store.hasDirtyBitmap());
+        assertEquals(-1, store.getNextDirtyIndex(0));
+        store.fillBlocks(1, 2, 3, 2, 2, 2, (short) 7, (short) 0);
+        for (int i = 0; i < DIRTY_SIZE * 2; i++) {
+            store.setBlock(i % SIDE, SIDE - 1, i / SIDE, (short) 8, (short) 0);
+        }
+        assertTrue(store.isDirtyOverflow());
+        int count = 0;
+        int last = -1;
+        for (int i = store.getNextDirtyIndex(0); i != -1; i = store.getNextDirtyIndex(i + 1)) {
+            assertTrue(i > last);
+            assertTrue(store.getFullData(i) != 0);
+            last = i;
+            count++;
+        }
+        assertEquals(8 + DIRTY_SIZE * 2, count);
+
+        store.resetDirtyArrays();
+        assertEquals(-1, store.getNextDirtyIndex(0));
+        store.setBlock(SIDE - 1, SIDE - 1, SIDE - 1, (short) 9, (short) 0);
+        assertEquals(SIDE * SIDE * SIDE - 1, store.getNextDirtyIndex(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noDirtyBitmap() {
+        new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE).getNextDirtyIndex(0);
+    }
+
+    @Test
+    public void snapshot() throws InterruptedException {
+        final AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        store.fillBlocks(0, 0, 0, SIDE, SIDE, 4, (short) 3, (short) 0);
+        AtomicPaletteBlockStoreSnapshot snapshot = store.snapshot();
+        assertTrue(!snapshot.isStale());
+        int[] expected = store.getFullArray();
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random();
+                for (int i = 0; i < 100000; i++) {
+                    store.setBlock(random.nextInt(SIDE), random.nextInt(SIDE), random.nextInt(SIDE), (short) random.nextInt(100), (short) 0);
+                }
+            }
+        };
+        writer.start();
+        while (writer.isAlive()) {
+            assertArrayEquals(expected, snapshot.getFullArray());
+        }
+        writer.join();
+        assertTrue(snapshot.isStale());
+        assertArrayEquals(expected, snapshot.getFullArray());
+        assertEquals(3, snapshot.getBlockId(1, 2, 3));
+
+        AtomicPaletteBlockStoreSnapshot current = store.snapshot();
+        assertArrayEquals(store.getFullArray(), current.getFullArray());
+        assertArrayEquals(store.getBlocks(1, 2, 3, 4, 5, 6, null), current.getBlocks(1, 2, 3, 4, 5, 6, null));
+    }
+
+    @Test
+    public void releaseWithSnapshot() {
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE, true);
+        for (int i = 0; i < SIDE * SIDE; i++) {
+            store.setBlock(i % SIDE, i / SIDE, i % 3, (short) (i % 40), (short) 0);
+        }
+        int[] expected = store.getFullArray();
+        AtomicPaletteBlockStoreSnapshot snapshot = store.snapshot();
+        AtomicShortIntBackingArray frozen = store.getStore().getStore();
+        assertTrue(frozen.isFrozen());
+        store.release();
+        // The frozen array is shared with the snapshot, so it must not be freed
+        frozen.release();
+        System.gc();
+        OffHeapMemory.freeCollected();
+        assertEquals(0, store.getFullData(1, 2, 3));
+        assertArrayEquals(expected, snapshot.getFullArray());
+        assertEquals(expected[(2 << (SHIFT << 1)) + 1], snapshot.getFullData(1, 2, 0));
+    }
+
+    @Test
+    public void compactWidths() {
+        AtomicPaletteBlockStore compact = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE, false, false, true);
+        AtomicPaletteBlockStore rounded = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        int[] states = new int[SIDE * SIDE * SIDE];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = (i % 17) << 16;
+        }
+        compact.setBlocks(0, 0, 0, SIDE, SIDE, SIDE, states);
+        rounded.setBlocks(0, 0, 0, SIDE, SIDE, SIDE, states);
+        compact.compress();
+        rounded.compress();
+        assertEquals(5, compact.getPackedWidth());
+        assertEquals(8, rounded.getPackedWidth());
+        assertArrayEquals(states, compact.getFullArray());
+        assertTrue(compact.getMemoryUsage() < rounded.getMemoryUsage());
+
+        // Expanding the palette adds a single bit
+        for (int i = 17; i < 40; i++) {
+            compact.setBlock(i % SIDE, 0, i / SIDE, (short) i, (short) 0);
+        }
+        assertEquals(6, compact.getPackedWidth());
+        assertEquals(39, compact.getBlockId(39 % SIDE, 0, 39 / SIDE));
+    }
+
+    @Test
+    public void compareAndSetBlocks() throws InterruptedException {
+        final AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, true, DIRTY_SIZE);
+        store.resetDirtyArrays();
+        int[] indexes = {0, 17, 300, 4095};
+        int[] expect = {0, 0, 0, 0};
+        int[] update = {1, 2, 0, 3};
+        assertTrue(store.compareAndSetBlocks(indexes, expect, update));
+        for (int i = 0; i < indexes.length; i++) {
+            assertEquals(update[i], store.getFullData(indexes[i]));
+        }
+        assertEquals(3, store.getDirtyBlocks());
+        assertEquals(4095, store.getDirtyIndex(2));
+        assertEquals(3, store.getDirtyNewState(2));
+        assertEquals(SIDE - 1, store.getMaxDirty().getY());
+
+        assertFalse(store.compareAndSetBlocks(indexes, expect, new int[] {5, 5, 5, 5}));
+        for (int i = 0; i < indexes.length; i++) {
+            assertEquals(update[i], store.getFullData(indexes[i]));
+        }
+        assertEquals(3, store.getDirtyBlocks());
+
+        // Two blocks are swapped by several threads, they must never both hold the same value
+        final int[] pair = {0, 1};
+        store.setBlocks(0, 0, 0, 2, 1, 1, new int[] {100, 200});
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        int a = store.getFullData(pair[0]);
+                        int b = store.getFullData(pair[1]);
+                        store.compareAndSetBlocks(pair, new int[] {a, b}, new int[] {b, a});
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        int a = store.getFullData(pair[0]);
+        int b = store.getFullData(pair[1]);
+        assertTrue(a == 100 && b == 200 || a == 200 && b == 100);
+    }
+
+    @Test
+    public void visitBlocks() {
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, true, DIRTY_SIZE);
+        RecordingVisitor visitor = new RecordingVisitor(7 << 16);
+        assertEquals(0, store.visitBlocks(visitor));
+        assertEquals(1, visitor.tested);
+
+        Random random = new Random();
+        TIntArrayList expected = new TIntArrayList();
+        for (int i = 0; i < SIDE * SIDE * SIDE; i++) {
+            int id = random.nextInt(10);
+            if (id == 7) {
+                expected.add(i);
+            }
+            store.setBlock(i & (SIDE - 1), i >> (SHIFT << 1), i >> SHIFT & (SIDE - 1), (short) id, (short) 0);
+        }
+        visitor = new RecordingVisitor(7 << 16);
+        assertEquals(expected.size(), store.visitBlocks(visitor));
+        assertEquals(expected, visitor.indexes);
+        assertTrue(visitor.tested <= store.getPalette().length);
+
+        store.fillBlocks(0, 0, 0, SIDE, SIDE, SIDE, (short) 7, (short) 0);
+        visitor = new RecordingVisitor(7 << 16);
+        assertEquals(SIDE * SIDE * SIDE, store.visitBlocks(visitor));
+        assertEquals(1, visitor.tested);
+    }
+
+    @Test
+    public void stateCounts() {
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        int length = SIDE * SIDE * SIDE;
+        assertEquals(length, store.getBlockCount(0));
+        assertEquals(0, store.getBlockCount(1));
+
+        Random random = new Random();
+        TIntIntHashMap expected = new TIntIntHashMap();
+        for (int i = 0; i < length; i++) {
+            int id = random.nextInt(12);
+            expected.adjustOrPutValue(id << 16, 1, 1);
+            store.setBlock(i & (SIDE - 1), i >> (SHIFT << 1), i >> SHIFT & (SIDE - 1), (short) id, (short) 0);
+        }
+        assertEquals(expected, store.getStateCounts());
+        for (int id = 0; id < 12; id++) {
+            assertEquals(expected.get(id << 16), store.getBlockCount(id << 16));
+        }
+
+        assertTrue(store.compareAndSetBlock(0, 0, 0, (short) (store.getFullData(0) >> 16), (short) 0, (short) 20, (short) 0));
+        assertEquals(1, store.getBlockCount(20 << 16));
+        store.fillBlocks(0, 0, 0, SIDE, SIDE, SIDE, (short) 3, (short) 0);
+        assertEquals(length, store.getBlockCount(3 << 16));
+        assertEquals(0, store.getBlockCount(20 << 16));
+    }
+
+    @Test
+    public void heightMap() {
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        store.setBlock(1, 5, 2, (short) 1, (short) 0);
+        AtomicHeightMap heightMap = store.addHeightMap(new StateFilter() {
+            @Override
+            public boolean matches(int state) {
+                return state != 0;
+            }
+        });
+        assertEquals(5, heightMap.getHeight(1, 2));
+        assertEquals(-1, heightMap.getHeight(0, 0));
+
+        store.setBlock(1, 9, 2, (short) 2, (short) 0);
+        store.setBlock(1, 3, 2, (short) 2, (short) 0);
+        assertEquals(9, heightMap.getHeight(1, 2));
+        store.setBlock(1, 9, 2, (short) 0, (short) 0);
+        assertEquals(5, heightMap.getHeight(1, 2));
+        assertTrue(store.compareAndSetBlock(1, 5, 2, (short) 1, (short) 0, (short) 0, (short) 0));
+        assertEquals(3, heightMap.getHeight(1, 2));
+
+        store.fillBlocks(0, 0, 0, 4, 7, 4, (short) 3, (short) 0);
+        short[] heights = heightMap.getHeights(null);
+        assertEquals(SIDE * SIDE, heights.length);
+        assertEquals(6, heights[2 * SIDE + 1]);
+        assertEquals(6, heights[3 * SIDE + 3]);
+        assertEquals(-1, heights[4 * SIDE + 4]);
+
+        assertTrue(store.removeHeightMap(heightMap));
+        store.setBlock(8, 8, 8, (short) 1, (short) 0);
+        assertEquals(-1, heightMap.getHeight(8, 8));
+    }
+
+    @Test
+    public void heightMapConcurrentClears() throws InterruptedException {
+        for (int repeat = 0; repeat < 200; repeat++) {
+            final AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+            for (int y = 0; y < SIDE; y++) {
+                store.setBlock(1, y, 2, (short) 1, (short) 0);
+            }
+            AtomicHeightMap heightMap = store.addHeightMap(new StateFilter() {
+                @Override
+                public boolean matches(int state) {
+                    return state != 0;
+                }
+            });
+            // Each thread clears every fourth block of the column, from the top, so the lowering scans race with the clears below them
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final int offset = t;
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int y = SIDE - 1 - offset; y >= 0; y -= 4) {
+                            store.setBlock(1, y, 2, (short) 0, (short) 0);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(-1, heightMap.getHeight(1, 2));
+        }
+    }
+
+    @Test
+    public void changeListeners() {
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, true, DIRTY_SIZE);
+        store.setBlock(0, 0, 0, (short) 1, (short) 0);
+        assertEquals(0, store.flushChanges());
+
+        RecordingListener listener = new RecordingListener();
+        store.addChangeListener(listener);
+        store.setBlock(1, 2, 3, (short) 4, (short) 5);
+        store.setBlock(1, 2, 3, (short) 4, (short) 5);
+        store.fillBlocks(0, 0, 0, 2, 1, 1, (short) 1, (short) 0);
+        assertEquals(0, listener.indexes.size());
+
+        assertEquals(2, store.flushChanges());
+        assertEquals(2 * SIDE * SIDE + 3 * SIDE + 1, listener.indexes.get(0));
+        assertEquals(0, listener.oldStates.get(0));
+        assertEquals(4 << 16 | 5, listener.newStates.get(0));
+        assertEquals(1, listener.indexes.get(1));
+        assertEquals(1 << 16, listener.newStates.get(1));
+        assertEquals(0, store.flushChanges());
+
+        // A burst grows the log, which is trimmed again by the following flushes
+        for (int i = 0; i < SIDE * SIDE; i++) {
+            store.setBlock(i % SIDE, 10, i / SIDE, (short) 2, (short) 0);
+        }
+        assertEquals(SIDE * SIDE, store.flushChanges());
+        for (int i = 0; i < 8; i++) {
+            store.setBlock(i, 11, 0, (short) 3, (short) 0);
+            assertEquals(1, store.flushChanges());
+            assertEquals(11 * SIDE * SIDE + i, listener.indexes.get(listener.indexes.size() - 1));
+        }
+        assertEquals(2 + SIDE * SIDE + 8, listener.indexes.size());
+
+        assertTrue(store.removeChangeListener(listener));
+        assertFalse(store.removeChangeListener(listener));
+        store.setBlock(5, 5, 5, (short) 1, (short) 0);
+        assertEquals(0, store.flushChanges());
+        assertEquals(2 + SIDE * SIDE + 8, listener.indexes.size());
+    }
+
+    @Test
+    public void allocationFreeExport() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        Random random = new Random();
+        for (int i = 0; i < 1000; i++) {
+            store.setBlock(random.nextInt(SIDE), random.nextInt(SIDE), random.nextInt(SIDE), (short) random.nextInt(10), (short) random.nextInt(3));
+        }
+        int length = SIDE * SIDE * SIDE;
+        int[] states = new int[length];
+        short[] ids = new short[length];
+        short[] data = new short[length];
+        IntBuffer stateBuffer = ByteBuffer.allocateDirect(length << 2).asIntBuffer();
+        ShortBuffer shortBuffer = ByteBuffer.allocateDirect(length << 1).asShortBuffer();
+
+        int calls = 100 * 6;
+        long allocated = 0;
+        // The first rounds warm up the export paths, only the last round is measured
+        for (int round = 0; round < 20; round++) {
+            long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < 100; i++) {
+                store.getFullArray(states);
+                store.getBlockIdArray(ids);
+                store.getDataArray(data);
+                stateBuffer.clear();
+                store.writeFullArray(stateBuffer);
+                shortBuffer.clear();
+                store.writeBlockIdArray(shortBuffer);
+                shortBuffer.clear();
+                store.writeDataArray(shortBuffer);
+            }
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+        }
+        assertTrue("Allocated " + allocated + " bytes in " + calls + " calls", allocated < calls);
+
+        int[] expected = store.getFullArray();
+        assertArrayEquals(expected, states);
+        for (int i = 0; i < length; i++) {
+            assertEquals(expected[i], stateBuffer.get(i));
+            assertEquals((short) (expected[i] >> 16), ids[i]);
+            assertEquals((short) expected[i], data[i]);
+            assertEquals((short) expected[i], shortBuffer.get(i));
+        }
+    }
+
+    @Test
+    public void concurrentDirtyMerge() throws InterruptedException {
+        final AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, true, 100);
+        store.resetDirtyArrays();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int y = t + 1;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int x = 0; x < 5; x++) {
+                        store.setBlock(x + 2, y, 3, (short) y, (short) x);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(store.isDirty());
+        assertFalse(store.isDirtyOverflow());
+        assertEquals(20, store.getDirtyBlocks());
+        assertEquals(2, store.getMinDirty().getX());
+        assertEquals(1, store.getMinDirty().getY());
+        assertEquals(6, store.getMaxDirty().getX());
+        assertEquals(4, store.getMaxDirty().getY());
+        TIntArrayList indexes = new TIntArrayList();
+        for (int i = 0; i < 20; i++) {
+            int index = store.getDirtyIndex(i);
+            indexes.add(index);
+            assertEquals(store.getFullData(index), store.getDirtyNewState(i));
+            assertEquals(0, store.getDirtyOldState(i));
+        }
+        indexes.sort();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(((i / 5 + 1) << 8) + (3 << 4) + i % 5 + 2, indexes.get(i));
+        }
+
+        assertTrue(store.resetDirtyArrays());
+        assertFalse(store.isDirty());
+        store.setBlock(1, 1, 1, (short) 9, (short) 0);
+        store.markRegionDirty(0, 0, 0, 3, 3, 3);
+        assertTrue(store.isDirtyOverflow());
+        assertEquals(3, store.getMaxDirty().getZ());
+    }
+
+    @Test
+    public void dirtyStripeSpill() {
+        int blocks = DirtyBlockTracker.STRIPE_CAPACITY * 3 + 5;
+        AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, true, blocks + 1);
+        store.resetDirtyArrays();
+        for (int i = 0; i < blocks; i++) {
+            store.setBlock(i % SIDE, i / SIDE, 7, (short) 1, (short) i);
+        }
+        assertFalse(store.isDirtyOverflow());
+        assertEquals(blocks, store.getDirtyBlocks());
+        for (int i = 0; i < blocks; i++) {
+            assertEquals(((i / SIDE) << (SHIFT << 1)) + (7 << SHIFT) + i % SIDE, store.getDirtyIndex(i));
+            assertEquals(1 << 16 | i, store.getDirtyNewState(i));
+        }
+
+        // Once the dirty arrays overflow, only the bounds are kept
+        store.setBlock(0, 0, 0, (short) 2, (short) 0);
+        store.setBlock(SIDE - 1, SIDE - 1, SIDE - 1, (short) 2, (short) 0);
+        assertTrue(store.isDirtyOverflow());
+        store.setBlock(3, 3, 3, (short) 2, (short) 0);
+        assertTrue(store.isDirtyOverflow());
+        assertEquals(new Vector3i(SIDE - 1, SIDE - 1, SIDE - 1), store.getMaxDirty());
+        assertTrue(store.resetDirtyArrays());
+        store.setBlock(1, 1, 1, (short) 3, (short) 0);
+        assertFalse(store.isDirtyOverflow());
+        assertEquals(1, store.getDirtyBlocks());
+    }
+
+    @Test
+    public void readTransaction() throws InterruptedException {
+        final AtomicPaletteBlockStore store = new AtomicPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                // Both blocks are set by a single region update, so they are only seen different while the update is in progress
+                for (short id = 1; running.get(); id = (short) (id % 100 + 1)) {
+                    store.fillBlocks(0, 0, 0, 2, 1, 1, id, (short) 0);
+                }
+            }
+        };
+        writer.start();
+        try {
+            final int[] read = new int[2];
+            BlockReadTransaction transaction = new BlockReadTransaction() {
+                @Override
+                public void read(AtomicBlockStore store) {
+                    read[0] = store.getFullData(0, 0, 0);
+                    read[1] = store.getFullData(1, 0, 0);
+                }
+            };
+            for (int i = 0; i < 1000; i++) {
+                store.read(transaction);
+                assertEquals(read[0], read[1]);
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+        assertTrue(store.read(new BlockReadTransaction() {
+            @Override
+            public void read(AtomicBlockStore store) {
+                store.getFullData(0);
+            }
+        }));
+    }
+
+    private static class RecordingListener implements BlockChangeListener {
+        private final TIntArrayList indexes = new TIntArrayList();
+        private final TIntArrayList oldStates = new TIntArrayList();
+        private final TIntArrayList newStates = new TIntArrayList();
+
+        @Override
+        public void onBlockChanges(AtomicBlockStore store, int[] indexes, int[] oldStates, int[] newStates, int count) {
+            this.indexes.add(indexes, 0, count);
+            this.oldStates.add(oldStates, 0, count);
+            this.newStates.add(newStates, 0, count);
+        }
+    }
+
+    private static class RecordingVisitor implements BlockVisitor {
+        private final int state;
+        private final TIntArrayList indexes = new TIntArrayList();
+        private int tested = 0;
+
+        private RecordingVisitor(int state) {
+            this.state = state;
+        }
+
+        @Override
+        public boolean matches(int state) {
+            tested++;
+            return state == this.state;
+        }
+
+        @Override
+        public void visit(int index, int state) {
+            assertEquals(this.state, state);
+            indexes.add(index);
+        }
+    }
+}
@@ -23,10 +23,16 @@
  */
 package com.flowpowered.commons.store.block.impl;
 
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class AtomicShortIntArrayTest {
@@ -49,7 +55,8 @@ public class AtomicShortIntArrayTest {
             set(i, 54321);
         }
 
-        checkWidth(2);
+        // The palette entry for the initial zero value is no longer used and is reclaimed
+        checkWidth(1);
 
         for (int i = 0; i < a.length(); i++) {
             check(i);
@@ -178,6 +185,47 @@ public class AtomicShortIntArrayTest {
         }
     }
 
+    @Test
+    public void referenceCounts() {
+
+        for (int i = 0; i < 256; i++) {
+            set(i, i & 15);
+        }
+
+        checkWidth(4);
+        assertTrue("Wrong unique count " + a.getUnique(), a.getUnique() == 16);
+        assertTrue("Array with all entries in use should not need compression", !a.needsCompression());
+
+        for (int i = 0; i < 256; i++) {
+            set(i, i & 1);
+        }
+
+        assertTrue("Wrong unique count " + a.getUnique(), a.getUnique() == 2);
+        assertTrue("Array with unused entries should need compression", a.needsCompression());
+
+        a.compress();
+
+        checkWidth(1);
+        assertTrue("Compressed array should not need compression", !a.needsCompression());
+
+        for (int i = 0; i < 256; i++) {
+            check(i);
+        }
+    }
+
+    @Test
+    public void deadPaletteEntry() {
+        // Entry 1 lost the race to be published, only entry 2 holds the value in use
+        int[] packed = new int[16];
+        Arrays.fill(packed, 0xAAAAAAAA);
+        a.set(new int[] {0, 7, 7}, 2, packed);
+        assertEquals(7, a.get(0));
+        assertTrue("The value in use was mapped to an unused entry", a.compareAndSet(0, 7, 9));
+        assertEquals(9, a.get(0));
+        assertEquals(7, a.set(1, 10));
+        assertEquals(7, a.get(2));
+    }
+
     private void checkCompress(int unique, int expWidth, int base) {
         for (int i = 0; i < 256; i++) {
             set(i, base + (i % unique));
@@ -190,6 +238,38 @@ public class AtomicShortIntArrayTest {
         //System.out.println("");
     }
 
+    @Test
+    public void lockBlocksWriters() throws InterruptedException {
+        a.lock();
+        Thread writer;
+        try {
+            // The thread holding the lock can still update the array, and resize it
+            for (int i = 0; i < a.length(); i++) {
+                set(i, i);
+            }
+            final CountDownLatch started = new CountDownLatch(1);
+            writer = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    a.set(0, 12345);
+                }
+            };
+            writer.start();
+            started.await();
+            // Once the writer is in set, it can only wait by parking on the lock
+            while (writer.getState() != Thread.State.WAITING) {
+                assertTrue("Writer was not blocked by the lock", writer.isAlive());
+                Thread.yield();
+            }
+            check(0);
+        } finally {
+            a.unlock();
+        }
+        writer.join();
+        assertTrue("Writer did not complete once the lock was released", a.get(0) == 12345);
+    }
+
     Exception parallelException = null;
     Error parallelError = null;
 
@@ -302,4 +382,73 @@ public class AtomicShortIntArrayTest {
             }
         }
     }
+
+    @Test
+    public void sharedUniform() {
+        AtomicShortIntArray first = new AtomicShortIntArray(4096);
+        AtomicShortIntArray second = new AtomicShortIntArray(4096);
+        assertSame(first.getStore(), second.getStore());
+        assertTrue(first.getStore().isFrozen());
+
+        first.set(10, 5);
+        assertEquals(5, first.get(10));
+        assertEquals(0, second.get(10));
+        assertSame(AtomicShortIntUniformBackingArray.getShared(4096, 0), second.getStore());
+
+        first.fill(0, 16, 16, 16, 256, 16, 0);
+        assertSame(second.getStore(), first.getStore());
+    }
+
+    @Test
+    public void runLength() {
+        AtomicShortIntArray array = new AtomicShortIntArray(4096);
+        int[] expected = new int[4096];
+        // Sixteen layers of 256 elements, using five values
+        for (int i = 0; i < 4096; i++) {
+            expected[i] = (i >> 8) % 5;
+            array.set(i, expected[i]);
+        }
+        long paletteMemory = array.getMemoryUsage();
+        array.compress();
+        assertTrue(array.getStore() instanceof AtomicShortIntRunLengthBackingArray);
+        assertEquals(16, ((AtomicShortIntRunLengthBackingArray) array.getStore()).getRuns());
+        assertTrue(array.getMemoryUsage() < paletteMemory);
+        assertArrayEquals(expected, array.getArray(null));
+        assertEquals(256 * 4, array.getValueCount(0));
+
+        AtomicShortIntArray copy = new AtomicShortIntArray(4096);
+        copy.set(array.getPalette(), array.width(), array.getBackingArray());
+        assertArrayEquals(expected, copy.getArray(null));
+
+        // Writing the current value keeps the runs, a different value migrates to a palette
+        array.set(300, expected[300]);
+        assertTrue(array.getStore() instanceof AtomicShortIntRunLengthBackingArray);
+        array.set(300, 7);
+        expected[300] = 7;
+        assertTrue(array.getStore() instanceof AtomicShortIntPaletteBackingArray);
+        assertArrayEquals(expected, array.getArray(null));
+    }
+
+    @Test
+    public void optimisticRead() {
+        AtomicShortIntArray array = new AtomicShortIntArray(4096);
+        long stamp = array.tryOptimisticRead();
+        assertTrue(stamp != 0);
+        assertTrue(array.validate(stamp));
+        array.set(5, 3);
+        assertFalse(array.validate(stamp));
+
+        stamp = array.tryOptimisticRead();
+        array.lock();
+        try {
+            assertEquals(0, array.tryOptimisticRead());
+        } finally {
+            array.unlock();
+        }
+        assertFalse(array.validate(stamp));
+        assertFalse(array.validate(0));
+        stamp = array.tryOptimisticRead();
+        array.get(5);
+        assertTrue(array.validate(stamp));
+    }
 }
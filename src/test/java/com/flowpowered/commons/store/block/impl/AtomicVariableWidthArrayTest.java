@@ -84,6 +84,29 @@ public class AtomicVariableWidthArrayTest {
         }
     }
 
+    @Test
+    public void compactWidths() {
+        for (int i = 1; i <= 32; i++) {
+            setup(i);
+            testArray(i);
+        }
+    }
+
+    @Test
+    public void bulkArray() {
+        for (int i = 1; i <= 32; i++) {
+            setup(i);
+            array.set(arrayData);
+            for (int j = 0; j < LENGTH; j++) {
+                assertTrue("Width = " + i + " Packed data mismatch at " + j, array.get(j) == arrayData[j]);
+            }
+            int[] unpacked = array.getArray(null);
+            for (int j = 0; j < LENGTH; j++) {
+                assertTrue("Width = " + i + " Unpacked data mismatch at " + j, unpacked[j] == arrayData[j]);
+            }
+        }
+    }
+
     public void testArray(int width) {
         Random rand = new Random();
 
@@ -0,0 +1,107 @@
+/*
+ * This file is part of Flow Commons, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2013 Flow Powered <https://flowpowered.com/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.commons.store.block.impl;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConfinedPaletteBlockStoreTest {
+    private static final int SHIFT = 4;
+    private static final int SIDE = 1 << SHIFT;
+    private static final int LENGTH = SIDE * SIDE * SIDE;
+    private static final int DIRTY_SIZE = 10;
+
+    @Test
+    public void setAndGet() {
+        ConfinedPaletteBlockStore store = new ConfinedPaletteBlockStore(SHIFT, true, DIRTY_SIZE);
+        assertTrue(store.isBlockUniform());
+        Random random = new Random();
+        int[] expected = new int[LENGTH];
+        // Enough unique states to go through every width and convert to direct
+        for (int i = 0; i < LENGTH; i++) {
+            int state = random.nextInt(2000);
+            expected[i] = state;
+            store.setBlock(i & 0xF, i >> 8, i >> 4 & 0xF, (short) (state >> 16), (short) state);
+            assertEquals(state, store.getFullData(i));
+        }
+        assertArrayEquals(expected, store.getFullArray());
+        assertEquals(0, store.getPalette().length);
+        assertTrue(store.isDirtyOverflow());
+
+        for (int i = 0; i < LENGTH; i++) {
+            expected[i] = expected[i] % 5;
+            store.setBlock(i & 0xF, i >> 8, i >> 4 & 0xF, (short) 0, (short) expected[i]);
+        }
+        assertTrue(store.needsCompression());
+        store.compress();
+        assertFalse(store.needsCompression());
+        assertEquals(3, store.getPackedWidth());
+        assertArrayEquals(expected, store.getFullArray());
+    }
+
+    @Test
+    public void reuseIds() {
+        ConfinedPaletteBlockStore store = new ConfinedPaletteBlockStore(SHIFT, false, DIRTY_SIZE);
+        for (int i = 0; i < 100; i++) {
+            store.setBlock(1, 2, 3, (short) i, (short) 0);
+        }
+        assertEquals(99 << 16, store.getFullData(1, 2, 3));
+        assertEquals(2, store.getPackedWidth());
+        assertFalse(store.isBlockUniform());
+        store.setBlock(1, 2, 3, (short) 0, (short) 0);
+        assertTrue(store.isBlockUniform());
+    }
+
+    @Test
+    public void handOff() {
+        AtomicPaletteBlockStore atomic = new AtomicPaletteBlockStore(SHIFT, true, DIRTY_SIZE);
+        Random random = new Random();
+        for (int i = 0; i < 1000; i++) {
+            atomic.setBlock(random.nextInt(SIDE), random.nextInt(SIDE), random.nextInt(SIDE), (short) random.nextInt(20), (short) 0);
+        }
+        atomic.resetDirtyArrays();
+        atomic.setBlock(3, 4, 5, (short) 30, (short) 1);
+
+        ConfinedPaletteBlockStore confined = new ConfinedPaletteBlockStore(atomic, true, DIRTY_SIZE);
+        assertArrayEquals(atomic.getFullArray(), confined.getFullArray());
+        assertEquals(1, confined.getDirtyBlocks());
+        assertEquals(atomic.getDirtyNewState(0), confined.getDirtyNewState(0));
+        assertEquals(atomic.getDirtyIndex(0), confined.getDirtyIndex(0));
+
+        confined.resetDirtyArrays();
+        confined.fillBlocks(0, 0, 0, 4, 4, 4, (short) 40, (short) 0);
+        AtomicPaletteBlockStore back = confined.toAtomicStore(true, DIRTY_SIZE, false);
+        assertArrayEquals(confined.getFullArray(), back.getFullArray());
+        assertTrue(back.isDirtyOverflow());
+        assertEquals(3, back.getMaxDirty().getX());
+        back.setBlock(0, 0, 0, (short) 50, (short) 0);
+        assertEquals(50 << 16, back.getFullData(0, 0, 0));
+    }
+}